@@ -0,0 +1,281 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.nextbus.benchmarks;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeIncrementalUpdate;
+import org.onebusaway.gtfs_realtime.nextbus.NextBusToGtfsRealtimeModule;
+import org.onebusaway.gtfs_realtime.nextbus.model.FlatPrediction;
+import org.onebusaway.gtfs_realtime.nextbus.model.api.NBDirection;
+import org.onebusaway.gtfs_realtime.nextbus.model.api.NBPrediction;
+import org.onebusaway.gtfs_realtime.nextbus.model.api.NBPredictions;
+import org.onebusaway.gtfs_realtime.nextbus.model.api.NBRoute;
+import org.onebusaway.gtfs_realtime.nextbus.model.api.NBStop;
+import org.onebusaway.gtfs_realtime.nextbus.services.NextBusApiService;
+import org.onebusaway.gtfs_realtime.nextbus.services.NextBusToGtfsRealtimeService;
+import org.onebusaway.gtfs_realtime.nextbus.services.NextBusToGtfsService;
+import org.onebusaway.gtfs_realtime.nextbus.services.TripUpdateFactory;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Guards the per-cycle hot path against allocation regressions. Predictions
+ * for every route of a {@link SyntheticAgency} are recorded once from a
+ * {@link MockNextBusServer}, then replayed through each stage of the path
+ * after the download, with the bytes allocated by the calling thread measured
+ * per prediction. The stages are:
+ * 
+ * <ul>
+ * <li>mapToGtfs - {@link NextBusToGtfsService#mapToGtfsIfApplicable(List)},
+ * with GTFS trip matching</li>
+ * <li>tripUpdates - {@link TripUpdateFactory#addTripUpdates}</li>
+ * <li>publish - {@link NextBusToGtfsRealtimeService#publishPredictions}, which
+ * flattens the predictions and runs both stages above before handing the
+ * trip updates to the feed</li>
+ * </ul>
+ * 
+ * Exits with a non-zero status if any stage is over its budget, so it can be
+ * run as a build step. Budgets can be overridden on the command line.
+ * 
+ * Usage: {@code AllocationBudgetCheck [stage=bytesPerPrediction ...]}
+ */
+public class AllocationBudgetCheck {
+
+  private static final String AGENCY_ID = "synthetic";
+
+  private int _routeCount = 50;
+
+  private int _warmupIterations = 50;
+
+  private int _measurementIterations = 50;
+
+  /**
+   * Bytes allocated per prediction, by stage, beyond which the check fails
+   */
+  private final Map<String, Long> _budgets = new LinkedHashMap<String, Long>();
+
+  private final Map<String, Long> _allocatedBytes = new LinkedHashMap<String, Long>();
+
+  private long _predictionCount;
+
+  private ThreadMXBean _threads;
+
+  public static void main(String[] args) throws Exception {
+    AllocationBudgetCheck check = new AllocationBudgetCheck();
+    check.setDefaultBudgets();
+    for (String arg : args) {
+      int index = arg.indexOf('=');
+      if (index == -1) {
+        System.err.println("usage: AllocationBudgetCheck [stage=bytesPerPrediction ...]");
+        System.exit(-1);
+      }
+      check.setBudget(arg.substring(0, index),
+          Long.parseLong(arg.substring(index + 1)));
+    }
+    if (!check.run()) {
+      System.exit(1);
+    }
+  }
+
+  public void setRouteCount(int routeCount) {
+    _routeCount = routeCount;
+  }
+
+  public void setBudget(String stage, long bytesPerPrediction) {
+    _budgets.put(stage, bytesPerPrediction);
+  }
+
+  /**
+   * The agreed budgets, with some headroom over the measured allocation so
+   * that JIT and JDK differences don't fail the check. Lower them when a
+   * change reduces allocation, so the gain can't quietly regress.
+   */
+  public void setDefaultBudgets() {
+    setBudget("mapToGtfs", 200);
+    setBudget("tripUpdates", 240);
+    setBudget("publish", 560);
+  }
+
+  /**
+   * 
+   * @return true if every stage is within its budget
+   * @throws Exception
+   */
+  public boolean run() throws Exception {
+    java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (!(threads instanceof ThreadMXBean)) {
+      throw new IllegalStateException(
+          "thread allocation counters are not supported by this JVM");
+    }
+    _threads = (ThreadMXBean) threads;
+    _threads.setThreadAllocatedMemoryEnabled(true);
+
+    SyntheticAgency agency = new SyntheticAgency(_routeCount, 40, 120, 0);
+    File gtfsDirectory = File.createTempFile("synthetic-gtfs-", "");
+    gtfsDirectory.delete();
+    agency.writeGtfs(gtfsDirectory);
+
+    Set<Module> modules = new HashSet<Module>();
+    NextBusToGtfsRealtimeModule.addModuleAndDependencies(modules);
+    Injector injector = Guice.createInjector(modules);
+
+    NextBusApiService apiService = injector.getInstance(NextBusApiService.class);
+    apiService.setAgencyId(AGENCY_ID);
+
+    NextBusToGtfsService matchingService = injector.getInstance(NextBusToGtfsService.class);
+    matchingService.setGtfsPath(gtfsDirectory);
+    matchingService.setGtfsTripMatching(true);
+    matchingService.setGtfsReloadInterval(0);
+
+    NextBusToGtfsRealtimeService realtimeService = injector.getInstance(NextBusToGtfsRealtimeService.class);
+
+    MockNextBusServer server = new MockNextBusServer(agency);
+    server.start();
+    System.setProperty("nextbus.url", server.getBaseUrl());
+
+    Map<String, List<NBPredictions>> fixtures = new LinkedHashMap<String, List<NBPredictions>>();
+    try {
+      List<NBRoute> routes = agency.getRouteConfigurations();
+      matchingService.matchToGtfs(routes);
+      for (NBRoute route : routes) {
+        fixtures.put(route.getTag(), apiService.downloadPredictions(
+            route.getTag(), getStopTags(route)));
+      }
+    } finally {
+      server.stop();
+      injector.getInstance(ScheduledExecutorService.class).shutdownNow();
+    }
+
+    TripUpdateFactory tripUpdateFactory = new TripUpdateFactory();
+    for (int i = 0; i < _warmupIterations; ++i) {
+      runIteration(fixtures, matchingService, tripUpdateFactory,
+          realtimeService);
+    }
+    _allocatedBytes.clear();
+    _predictionCount = 0;
+    for (int i = 0; i < _measurementIterations; ++i) {
+      runIteration(fixtures, matchingService, tripUpdateFactory,
+          realtimeService);
+    }
+
+    return printResults();
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  private void runIteration(Map<String, List<NBPredictions>> fixtures,
+      NextBusToGtfsService matchingService,
+      TripUpdateFactory tripUpdateFactory,
+      NextBusToGtfsRealtimeService realtimeService) {
+    for (Map.Entry<String, List<NBPredictions>> entry : fixtures.entrySet()) {
+      List<FlatPrediction> predictions = flattenPredictions(entry.getValue());
+      _predictionCount += predictions.size();
+
+      long t0 = getAllocatedBytes();
+      matchingService.mapToGtfsIfApplicable(predictions);
+      long t1 = getAllocatedBytes();
+      GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+      tripUpdateFactory.addTripUpdates(predictions, update);
+      long t2 = getAllocatedBytes();
+      realtimeService.publishPredictions(entry.getKey(), entry.getValue());
+      long t3 = getAllocatedBytes();
+
+      addAllocatedBytes("mapToGtfs", t1 - t0);
+      addAllocatedBytes("tripUpdates", t2 - t1);
+      addAllocatedBytes("publish", t3 - t2);
+    }
+  }
+
+  private long getAllocatedBytes() {
+    return _threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  private void addAllocatedBytes(String stage, long bytes) {
+    Long total = _allocatedBytes.get(stage);
+    _allocatedBytes.put(stage, total == null ? bytes : total + bytes);
+  }
+
+  private boolean printResults() {
+    boolean withinBudget = true;
+    System.out.println(String.format(Locale.US, "%-12s %12s %12s  %s",
+        "stage", "bytes/pred", "budget", "result"));
+    for (Map.Entry<String, Long> entry : _allocatedBytes.entrySet()) {
+      String stage = entry.getKey();
+      long bytesPerPrediction = entry.getValue()
+          / Math.max(1, _predictionCount);
+      Long budget = _budgets.get(stage);
+      boolean ok = budget == null || bytesPerPrediction <= budget;
+      withinBudget &= ok;
+      System.out.println(String.format(Locale.US, "%-12s %12d %12s  %s",
+          stage, bytesPerPrediction, budget == null ? "-" : budget,
+          ok ? "ok" : "OVER BUDGET"));
+    }
+    System.out.println("predictions per iteration: "
+        + (_predictionCount / _measurementIterations));
+    return withinBudget;
+  }
+
+  private static List<String> getStopTags(NBRoute route) {
+    Set<String> stopTags = new HashSet<String>();
+    for (NBDirection direction : route.getDirections()) {
+      for (NBStop stop : direction.getStops()) {
+        stopTags.add(stop.getTag());
+      }
+    }
+    return new ArrayList<String>(stopTags);
+  }
+
+  /**
+   * The same flattening as
+   * {@link NextBusToGtfsRealtimeService#publishPredictions}, done here outside
+   * of the measured stages.
+   */
+  private static List<FlatPrediction> flattenPredictions(
+      List<NBPredictions> allPredictions) {
+    List<FlatPrediction> flattened = new ArrayList<FlatPrediction>();
+    for (NBPredictions predictions : allPredictions) {
+      for (NBDirection direction : predictions.getDirections()) {
+        for (NBPrediction prediction : direction.getPredictions()) {
+          FlatPrediction flat = new FlatPrediction();
+          flat.setBlock(prediction.getBlock());
+          flat.setDirTag(prediction.getDirTag());
+          flat.setEpochTime(prediction.getEpochTime());
+          flat.setRouteTag(predictions.getRouteTag());
+          flat.setStopTag(predictions.getStopTag());
+          flat.setTripTag(prediction.getTripTag());
+          flat.setVehicle(prediction.getVehicle());
+          flattened.add(flat);
+        }
+      }
+    }
+    return flattened;
+  }
+}
@@ -0,0 +1,197 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.nextbus.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.onebusaway.gtfs.model.Route;
+import org.onebusaway.gtfs.model.Stop;
+import org.onebusaway.gtfs_realtime.nextbus.model.GtfsMatchingData;
+import org.onebusaway.gtfs_realtime.nextbus.model.RouteDirectionStopKey;
+import org.onebusaway.gtfs_realtime.nextbus.model.StopTimeMappings;
+import org.onebusaway.gtfs_realtime.nextbus.model.api.NBRoute;
+import org.onebusaway.gtfs_realtime.nextbus.model.api.NBStop;
+import org.onebusaway.gtfs_realtime.nextbus.services.GtfsMatchingDataReader;
+import org.onebusaway.gtfs_realtime.nextbus.services.NextBusApiService;
+import org.onebusaway.gtfs_realtime.nextbus.services.NextBusToGtfsRouteMatching;
+import org.onebusaway.gtfs_realtime.nextbus.services.NextBusToGtfsService;
+import org.onebusaway.gtfs_realtime.nextbus.services.NextBusToGtfsStopMatching;
+import org.onebusaway.gtfs_realtime.nextbus.services.NextBusToGtfsTripMatching;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures each phase of GTFS matching, and the whole of
+ * {@link NextBusToGtfsService#matchToGtfs(List)}, against a
+ * {@link SyntheticAgency}. The inputs to each phase are computed once in setup,
+ * so each benchmark only measures its own phase. Vary the agency with
+ * {@code -p routes=...,stopsPerRoute=...,tripsPerDay=...,ambiguity=...} to find
+ * where the cost starts growing faster than the agency.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class GtfsMatchingBenchmark {
+
+  @Param({"10", "50", "200"})
+  public int routes;
+
+  @Param({"40"})
+  public int stopsPerRoute;
+
+  @Param({"120"})
+  public int tripsPerDay;
+
+  @Param({"0", "2"})
+  public int ambiguity;
+
+  private File _gtfsDirectory;
+
+  private List<NBRoute> _routeConfigurations;
+
+  private NextBusToGtfsStopMatching _stopMatching;
+
+  private NextBusToGtfsRouteMatching _routeMatching;
+
+  private NextBusToGtfsTripMatching _tripMatching;
+
+  private NextBusToGtfsService _matchingService;
+
+  private ExecutorService _executor;
+
+  private GtfsMatchingData _gtfs;
+
+  private Map<NBStop, List<Stop>> _potentialStopMatches;
+
+  private Map<NBRoute, Route> _routeMatches;
+
+  private Map<RouteDirectionStopKey, String> _stopIdMappings;
+
+  @Setup
+  public void setup() throws IOException {
+    SyntheticAgency agency = new SyntheticAgency(routes, stopsPerRoute,
+        tripsPerDay, ambiguity);
+    _gtfsDirectory = File.createTempFile("synthetic-gtfs-", "");
+    _gtfsDirectory.delete();
+    agency.writeGtfs(_gtfsDirectory);
+    _routeConfigurations = agency.getRouteConfigurations();
+
+    _stopMatching = new NextBusToGtfsStopMatching();
+    _routeMatching = new NextBusToGtfsRouteMatching();
+    _tripMatching = new NextBusToGtfsTripMatching();
+    _tripMatching.setNextBusApiService(new SyntheticNextBusApiService(agency));
+
+    _matchingService = new NextBusToGtfsService();
+    _matchingService.setStopMatching(_stopMatching);
+    _matchingService.setRouteMatching(_routeMatching);
+    _matchingService.setTripMatching(_tripMatching);
+    _matchingService.setGtfsPath(_gtfsDirectory);
+    _matchingService.setGtfsTripMatching(true);
+
+    _executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+
+    _gtfs = readGtfs();
+    _potentialStopMatches = _stopMatching.getPotentialStopMatches(
+        _routeConfigurations, _gtfs.getDao().getAllStops());
+    _routeMatches = _routeMatching.getRouteMatches(_routeConfigurations,
+        _gtfs, _potentialStopMatches);
+    _stopIdMappings = _stopMatching.getStopMatches(_routeMatches,
+        _potentialStopMatches, _gtfs, _executor);
+  }
+
+  @TearDown
+  public void tearDown() {
+    _executor.shutdownNow();
+    File[] files = _gtfsDirectory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    _gtfsDirectory.delete();
+  }
+
+  @Benchmark
+  public GtfsMatchingData readGtfs() throws IOException {
+    return new GtfsMatchingDataReader().read(_gtfsDirectory);
+  }
+
+  @Benchmark
+  public Map<NBStop, List<Stop>> potentialStopMatches() {
+    return _stopMatching.getPotentialStopMatches(_routeConfigurations,
+        _gtfs.getDao().getAllStops());
+  }
+
+  @Benchmark
+  public Map<NBRoute, Route> routeMatches() {
+    return _routeMatching.getRouteMatches(_routeConfigurations, _gtfs,
+        _potentialStopMatches);
+  }
+
+  @Benchmark
+  public Map<RouteDirectionStopKey, String> stopMatches() {
+    return _stopMatching.getStopMatches(_routeMatches, _potentialStopMatches,
+        _gtfs, _executor);
+  }
+
+  @Benchmark
+  public StopTimeMappings tripMatches() {
+    return _tripMatching.getTripMatches(_routeMatches, _stopIdMappings, _gtfs,
+        _executor);
+  }
+
+  @Benchmark
+  public void matchToGtfs() {
+    _matchingService.matchToGtfs(_routeConfigurations);
+  }
+
+  /**
+   * Serves schedules straight from the synthetic agency, so that trip matching
+   * is measured without the cost of parsing schedule XML.
+   */
+  private static class SyntheticNextBusApiService extends NextBusApiService {
+
+    private final SyntheticAgency _agency;
+
+    public SyntheticNextBusApiService(SyntheticAgency agency) {
+      _agency = agency;
+    }
+
+    @Override
+    public List<NBRoute> downloadRouteScheduleList(String routeTag) {
+      return _agency.getSchedules(routeTag);
+    }
+  }
+}
@@ -0,0 +1,586 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.nextbus.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import org.onebusaway.gtfs_realtime.nextbus.benchmarks.SyntheticAgency.ScheduledTrip;
+import org.onebusaway.gtfs_realtime.nextbus.model.api.NBDirection;
+import org.onebusaway.gtfs_realtime.nextbus.model.api.NBRoute;
+import org.onebusaway.gtfs_realtime.nextbus.model.api.NBStop;
+import org.onebusaway.gtfs_realtime.nextbus.model.api.NBStopTime;
+import org.onebusaway.gtfs_realtime.nextbus.model.api.NBTrip;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local stand-in for the NextBus publicXMLFeed, serving the routeList,
+ * routeConfig, schedule, predictionsForMultiStops and vehicleLocations commands
+ * for a {@link SyntheticAgency}. Predictions and vehicle locations come from a
+ * simulated fleet that runs the agency's weekday schedule, with each vehicle
+ * drifting early and late over time.
+ * 
+ * The simulated clock starts at {@link #setSimulatedStartTime(int)} and then
+ * advances in real time, so there's service to report no matter when the
+ * server is run. Point the application at the server with the
+ * {@code nextbus.url} system property.
+ * 
+ * Latency, bandwidth and error rate can be set to approximate the real API
+ * under load.
+ */
+public class MockNextBusServer {
+
+  private static final Logger _log = LoggerFactory.getLogger(MockNextBusServer.class);
+
+  private static final String COPYRIGHT = "All data copyright Synthetic Transit 2013.";
+
+  /**
+   * How far ahead, in seconds, we predict arrivals
+   */
+  private static final int PREDICTION_WINDOW = 30 * 60;
+
+  private static final int MAX_PREDICTIONS_PER_DIRECTION = 5;
+
+  private final SyntheticAgency _agency;
+
+  private final Map<String, NBRoute> _routesByTag = new HashMap<String, NBRoute>();
+
+  private final Map<String, NBStop> _stopsByTag = new HashMap<String, NBStop>();
+
+  private final Map<String, List<ScheduledTrip>> _tripsByRouteTag = new HashMap<String, List<ScheduledTrip>>();
+
+  private int _port = 0;
+
+  private int _threadCount = 8;
+
+  /**
+   * Fixed delay, in milliseconds, added before every response
+   */
+  private int _latency = 0;
+
+  /**
+   * Additional random delay, in milliseconds, of up to this much
+   */
+  private int _latencyJitter = 0;
+
+  /**
+   * Maximum bytes per second written for a single response, or zero for no
+   * limit
+   */
+  private long _bandwidth = 0;
+
+  /**
+   * Fraction of predictions and vehicle location requests that fail, split
+   * evenly between HTTP errors and NextBus error documents. The route list,
+   * route config and schedule requests made at startup never fail, since the
+   * application doesn't retry those.
+   */
+  private double _errorRate = 0;
+
+  /**
+   * Simulated time of day, in seconds since midnight, when the server starts
+   */
+  private int _simulatedStartTime = 8 * 60 * 60;
+
+  private HttpServer _server;
+
+  private ExecutorService _executor;
+
+  private long _startTime;
+
+  private final AtomicLong _requestCount = new AtomicLong();
+
+  private final AtomicLong _errorCount = new AtomicLong();
+
+  private final AtomicLong _bytesSent = new AtomicLong();
+
+  /**
+   * Time when predictions were last served for each route
+   */
+  private final Map<String, Long> _lastPredictionTimeByRouteTag = new ConcurrentHashMap<String, Long>();
+
+  public MockNextBusServer(SyntheticAgency agency) {
+    _agency = agency;
+    for (NBRoute route : agency.getRouteConfigurations()) {
+      _routesByTag.put(route.getTag(), route);
+      for (NBStop stop : route.getStops()) {
+        _stopsByTag.put(stop.getTag(), stop);
+      }
+      _tripsByRouteTag.put(route.getTag(),
+          agency.getWeekdayTrips(route.getTag()));
+    }
+  }
+
+  public void setPort(int port) {
+    _port = port;
+  }
+
+  public void setThreadCount(int threadCount) {
+    _threadCount = threadCount;
+  }
+
+  public void setLatency(int latency, int latencyJitter) {
+    _latency = latency;
+    _latencyJitter = latencyJitter;
+  }
+
+  public void setBandwidth(long bytesPerSecond) {
+    _bandwidth = bytesPerSecond;
+  }
+
+  public void setErrorRate(double errorRate) {
+    _errorRate = errorRate;
+  }
+
+  public void setSimulatedStartTime(int secondsSinceMidnight) {
+    _simulatedStartTime = secondsSinceMidnight;
+  }
+
+  public void start() throws IOException {
+    _startTime = System.currentTimeMillis();
+    _executor = Executors.newFixedThreadPool(_threadCount);
+    _server = HttpServer.create(new InetSocketAddress("localhost", _port), 0);
+    _server.createContext("/service/publicXMLFeed", new FeedHandler());
+    _server.setExecutor(_executor);
+    _server.start();
+    _log.info("mock NextBus server listening at " + getBaseUrl());
+  }
+
+  public void stop() {
+    if (_server != null) {
+      _server.stop(0);
+      _server = null;
+    }
+    if (_executor != null) {
+      _executor.shutdownNow();
+      _executor = null;
+    }
+  }
+
+  /**
+   * 
+   * @return the value to use for the {@code nextbus.url} system property
+   */
+  public String getBaseUrl() {
+    return "http://localhost:" + _server.getAddress().getPort();
+  }
+
+  public long getRequestCount() {
+    return _requestCount.get();
+  }
+
+  public long getErrorCount() {
+    return _errorCount.get();
+  }
+
+  public long getBytesSent() {
+    return _bytesSent.get();
+  }
+
+  /**
+   * 
+   * @return the time when predictions were last served without an injected
+   *         error, keyed by route tag
+   */
+  public Map<String, Long> getLastPredictionTimeByRouteTag() {
+    return _lastPredictionTimeByRouteTag;
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  private int getSimulatedTime() {
+    return _simulatedStartTime
+        + (int) ((System.currentTimeMillis() - _startTime) / 1000);
+  }
+
+  private String handleCommand(Map<String, List<String>> params) {
+    String command = getParam(params, "command");
+    if ("routeList".equals(command)) {
+      return getRouteList();
+    } else if ("routeConfig".equals(command)) {
+      return getRouteConfig(getParam(params, "r"));
+    } else if ("schedule".equals(command)) {
+      return getSchedule(getParam(params, "r"));
+    } else if ("predictionsForMultiStops".equals(command)) {
+      List<String> stops = params.get("stops");
+      return getPredictions(stops != null ? stops : new ArrayList<String>());
+    } else if ("vehicleLocations".equals(command)) {
+      return getVehicleLocations(getParam(params, "r"));
+    }
+    return getError("Command \"" + command + "\" is not valid.", false);
+  }
+
+  private String getRouteList() {
+    StringBuilder b = startBody();
+    for (NBRoute route : _agency.getRouteConfigurations()) {
+      b.append("<route tag=\"").append(route.getTag()).append("\" title=\"");
+      b.append(route.getTitle()).append("\"/>\n");
+    }
+    return endBody(b);
+  }
+
+  private String getRouteConfig(String routeTag) {
+    NBRoute route = _routesByTag.get(routeTag);
+    if (route == null) {
+      return getError("Could not get route \"" + routeTag + "\".", false);
+    }
+    StringBuilder b = startBody();
+    b.append("<route tag=\"").append(route.getTag()).append("\" title=\"");
+    b.append(route.getTitle()).append("\" color=\"003399\"");
+    b.append(" oppositeColor=\"ffffff\">\n");
+    for (NBStop stop : route.getStops()) {
+      b.append("<stop tag=\"").append(stop.getTag()).append("\" title=\"");
+      b.append(stop.getTitle());
+      b.append("\" lat=\"").append(format(stop.getLat()));
+      b.append("\" lon=\"").append(format(stop.getLon())).append("\"/>\n");
+    }
+    for (NBDirection direction : route.getDirections()) {
+      b.append("<direction tag=\"").append(direction.getTag());
+      b.append("\" title=\"").append(direction.getTitle());
+      b.append("\" name=\"").append(direction.getName());
+      b.append("\" useForUI=\"true\">\n");
+      for (NBStop stop : direction.getStops()) {
+        b.append("<stop tag=\"").append(stop.getTag()).append("\"/>\n");
+      }
+      b.append("</direction>\n");
+    }
+    b.append("</route>\n");
+    return endBody(b);
+  }
+
+  private String getSchedule(String routeTag) {
+    if (!_routesByTag.containsKey(routeTag)) {
+      return getError("Could not get route \"" + routeTag + "\".", false);
+    }
+    StringBuilder b = startBody();
+    for (NBRoute schedule : _agency.getSchedules(routeTag)) {
+      b.append("<route tag=\"").append(schedule.getTag()).append("\" title=\"");
+      b.append(schedule.getTitle()).append("\" scheduleClass=\"");
+      b.append(schedule.getScheduleClass()).append("\" serviceClass=\"");
+      b.append(schedule.getServiceClass()).append("\" direction=\"");
+      b.append(schedule.getDirection()).append("\">\n");
+      for (NBTrip trip : schedule.getTrips()) {
+        b.append("<tr blockID=\"").append(trip.getBlockID()).append("\">\n");
+        for (NBStopTime stopTime : trip.getStopTimes()) {
+          b.append("<stop tag=\"").append(stopTime.getTag());
+          b.append("\" epochTime=\"").append(stopTime.getEpochTime());
+          b.append("\">").append(formatTime(stopTime.getEpochTime() / 1000));
+          b.append("</stop>\n");
+        }
+        b.append("</tr>\n");
+      }
+      b.append("</route>\n");
+    }
+    return endBody(b);
+  }
+
+  /**
+   * 
+   * @param stops values of the form {@code routeTag|stopTag}
+   */
+  private String getPredictions(List<String> stops) {
+    int now = getSimulatedTime();
+    long epochNow = System.currentTimeMillis();
+    StringBuilder b = startBody();
+    for (String value : stops) {
+      int index = value.indexOf('|');
+      if (index == -1) {
+        continue;
+      }
+      String routeTag = value.substring(0, index);
+      String stopTag = value.substring(index + 1);
+      NBRoute route = _routesByTag.get(routeTag);
+      NBStop stop = _stopsByTag.get(stopTag);
+      if (route == null || stop == null) {
+        continue;
+      }
+      _lastPredictionTimeByRouteTag.put(routeTag, epochNow);
+      b.append("<predictions agencyTitle=\"Synthetic Transit\" routeTitle=\"");
+      b.append(route.getTitle()).append("\" routeTag=\"").append(routeTag);
+      b.append("\" stopTitle=\"").append(stop.getTitle());
+      b.append("\" stopTag=\"").append(stopTag).append("\">\n");
+      for (NBDirection direction : route.getDirections()) {
+        appendPredictionsForDirection(b, routeTag, direction, stopTag, now,
+            epochNow);
+      }
+      b.append("</predictions>\n");
+    }
+    return endBody(b);
+  }
+
+  private void appendPredictionsForDirection(StringBuilder b, String routeTag,
+      NBDirection direction, String stopTag, int now, long epochNow) {
+    int count = 0;
+    for (ScheduledTrip trip : _tripsByRouteTag.get(routeTag)) {
+      if (!trip.getDirectionTag().equals(direction.getTag())) {
+        continue;
+      }
+      String[] stopTags = trip.getStopTags();
+      int delay = getDelay(trip.getBlockId(), now);
+      for (int i = 0; i < stopTags.length; ++i) {
+        if (!stopTags[i].equals(stopTag)) {
+          continue;
+        }
+        int seconds = trip.getTimes()[i] + delay - now;
+        if (seconds < 0 || seconds > PREDICTION_WINDOW) {
+          continue;
+        }
+        if (count == 0) {
+          b.append("<direction title=\"").append(direction.getTitle()).append(
+              "\">\n");
+        }
+        b.append("<prediction epochTime=\"").append(epochNow + seconds * 1000L);
+        b.append("\" seconds=\"").append(seconds);
+        b.append("\" minutes=\"").append(seconds / 60);
+        b.append("\" isDeparture=\"").append(i == 0);
+        b.append("\" dirTag=\"").append(trip.getDirectionTag());
+        b.append("\" vehicle=\"").append(getVehicleId(trip.getBlockId()));
+        b.append("\" block=\"").append(trip.getBlockId());
+        b.append("\" tripTag=\"").append(trip.getTripTag()).append("\"/>\n");
+        count++;
+      }
+      if (count == MAX_PREDICTIONS_PER_DIRECTION) {
+        break;
+      }
+    }
+    if (count > 0) {
+      b.append("</direction>\n");
+    }
+  }
+
+  private String getVehicleLocations(String routeTag) {
+    List<ScheduledTrip> trips = _tripsByRouteTag.get(routeTag);
+    if (trips == null) {
+      return getError("Could not get route \"" + routeTag + "\".", false);
+    }
+    int now = getSimulatedTime();
+    StringBuilder b = startBody();
+    for (ScheduledTrip trip : trips) {
+      int[] times = trip.getTimes();
+      int effectiveTime = now - getDelay(trip.getBlockId(), now);
+      if (effectiveTime < times[0] || effectiveTime > times[times.length - 1]) {
+        continue;
+      }
+      int i = 0;
+      while (i < times.length - 2 && times[i + 1] <= effectiveTime) {
+        i++;
+      }
+      NBStop from = _stopsByTag.get(trip.getStopTags()[i]);
+      NBStop to = _stopsByTag.get(trip.getStopTags()[i + 1]);
+      double ratio = (effectiveTime - times[i])
+          / (double) Math.max(1, times[i + 1] - times[i]);
+      double lat = from.getLat() + (to.getLat() - from.getLat()) * ratio;
+      double lon = from.getLon() + (to.getLon() - from.getLon()) * ratio;
+      int heading = (int) ((Math.toDegrees(Math.atan2(to.getLon()
+          - from.getLon(), to.getLat() - from.getLat())) + 360) % 360);
+      b.append("<vehicle id=\"").append(getVehicleId(trip.getBlockId()));
+      b.append("\" routeTag=\"").append(routeTag);
+      b.append("\" dirTag=\"").append(trip.getDirectionTag());
+      b.append("\" lat=\"").append(format(lat));
+      b.append("\" lon=\"").append(format(lon));
+      b.append("\" secsSinceReport=\"").append((now * 7 + i) % 60);
+      b.append("\" predictable=\"true\" heading=\"").append(heading);
+      b.append("\" speedKmHr=\"20\"/>\n");
+    }
+    b.append("<lastTime time=\"").append(System.currentTimeMillis()).append(
+        "\"/>\n");
+    return endBody(b);
+  }
+
+  /**
+   * Each vehicle drifts between a couple of minutes early and a few minutes
+   * late over the course of an hour or so.
+   * 
+   * @param blockId
+   * @param now
+   * @return the schedule deviation of the vehicle on the block, in seconds
+   */
+  private int getDelay(String blockId, int now) {
+    int phase = blockId.hashCode() & 0xffff;
+    return (int) (60 + 180 * Math.sin(now / 900.0 + phase));
+  }
+
+  private String getVehicleId(String blockId) {
+    return Integer.toString(1000 + ((blockId.hashCode() & 0x7fffffff) % 9000));
+  }
+
+  private StringBuilder startBody() {
+    StringBuilder b = new StringBuilder();
+    b.append("<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n");
+    b.append("<body copyright=\"").append(COPYRIGHT).append("\">\n");
+    return b;
+  }
+
+  private String endBody(StringBuilder b) {
+    b.append("</body>\n");
+    return b.toString();
+  }
+
+  private String getError(String message, boolean shouldRetry) {
+    StringBuilder b = startBody();
+    b.append("<Error shouldRetry=\"").append(shouldRetry).append("\">\n");
+    b.append(message).append("\n</Error>\n");
+    return endBody(b);
+  }
+
+  private static String getParam(Map<String, List<String>> params,
+      String name) {
+    List<String> values = params.get(name);
+    return values == null || values.isEmpty() ? null : values.get(0);
+  }
+
+  private static boolean isRealtimeCommand(String command) {
+    return "predictionsForMultiStops".equals(command)
+        || "vehicleLocations".equals(command);
+  }
+
+  private static Map<String, List<String>> parseQuery(String query)
+      throws UnsupportedEncodingException {
+    Map<String, List<String>> params = new HashMap<String, List<String>>();
+    if (query == null) {
+      return params;
+    }
+    for (String pair : query.split("&")) {
+      int index = pair.indexOf('=');
+      if (index == -1) {
+        continue;
+      }
+      String name = URLDecoder.decode(pair.substring(0, index), "UTF-8");
+      String value = URLDecoder.decode(pair.substring(index + 1), "UTF-8");
+      List<String> values = params.get(name);
+      if (values == null) {
+        values = new ArrayList<String>();
+        params.put(name, values);
+      }
+      values.add(value);
+    }
+    return params;
+  }
+
+  private static String format(double value) {
+    return String.format(Locale.US, "%.7f", value);
+  }
+
+  private static String formatTime(int time) {
+    return String.format(Locale.US, "%02d:%02d:%02d", time / 3600,
+        (time / 60) % 60, time % 60);
+  }
+
+  private class FeedHandler implements HttpHandler {
+
+    private final ThreadLocal<Random> _random = new ThreadLocal<Random>() {
+      @Override
+      protected Random initialValue() {
+        return new Random();
+      }
+    };
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      try {
+        _requestCount.incrementAndGet();
+        Random random = _random.get();
+        sleep(_latency
+            + (_latencyJitter > 0 ? random.nextInt(_latencyJitter) : 0));
+
+        Map<String, List<String>> params = parseQuery(exchange.getRequestURI().getRawQuery());
+        String body;
+        if (_errorRate > 0 && isRealtimeCommand(getParam(params, "command"))
+            && random.nextDouble() < _errorRate) {
+          _errorCount.incrementAndGet();
+          if (random.nextBoolean()) {
+            exchange.sendResponseHeaders(503, -1);
+            return;
+          }
+          body = getError("Simulated error, please retry.", true);
+        } else {
+          body = handleCommand(params);
+        }
+
+        byte[] content = body.getBytes("UTF-8");
+        String acceptEncoding = exchange.getRequestHeaders().getFirst(
+            "Accept-Encoding");
+        if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+          ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+          GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+          gzip.write(content);
+          gzip.close();
+          content = bytes.toByteArray();
+          exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        exchange.getResponseHeaders().set("Content-Type",
+            "text/xml; charset=utf-8");
+        exchange.sendResponseHeaders(200, content.length);
+        writeThrottled(exchange.getResponseBody(), content);
+        _bytesSent.addAndGet(content.length);
+      } catch (Exception ex) {
+        _log.warn("error handling request " + exchange.getRequestURI(), ex);
+      } finally {
+        exchange.close();
+      }
+    }
+
+    private void writeThrottled(OutputStream out, byte[] content)
+        throws IOException {
+      if (_bandwidth <= 0) {
+        out.write(content);
+        return;
+      }
+      int chunkSize = 8 * 1024;
+      long start = System.currentTimeMillis();
+      for (int offset = 0; offset < content.length; offset += chunkSize) {
+        int length = Math.min(chunkSize, content.length - offset);
+        out.write(content, offset, length);
+        out.flush();
+        long expected = (offset + length) * 1000L / _bandwidth;
+        sleep(expected - (System.currentTimeMillis() - start));
+      }
+    }
+
+    private void sleep(long millis) {
+      if (millis <= 0) {
+        return;
+      }
+      try {
+        Thread.sleep(millis);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
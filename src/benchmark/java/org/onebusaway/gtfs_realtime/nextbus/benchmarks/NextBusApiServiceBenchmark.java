@@ -0,0 +1,131 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.nextbus.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.onebusaway.gtfs_realtime.nextbus.benchmarks.NextBusXmlFixtures.Size;
+import org.onebusaway.gtfs_realtime.nextbus.model.api.NBPredictions;
+import org.onebusaway.gtfs_realtime.nextbus.model.api.NBRoute;
+import org.onebusaway.gtfs_realtime.nextbus.model.api.NBVehicle;
+import org.onebusaway.gtfs_realtime.nextbus.services.DownloaderService;
+import org.onebusaway.gtfs_realtime.nextbus.services.NextBusApiService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures parsing each NextBus command's response through
+ * {@link NextBusApiService}, from the response bytes to the model objects.
+ * Downloads are served from {@link NextBusXmlFixtures} and the route cache is
+ * disabled, so only the Digester path is measured.
+ * 
+ * Throughput and the latency distribution are reported by default; add
+ * {@code -prof gc} for the allocation rate and bytes per parse.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NextBusApiServiceBenchmark {
+
+  @Param({"SMALL", "MEDIUM", "LARGE"})
+  public Size size;
+
+  private NextBusApiService _service;
+
+  private FixtureDownloaderService _downloader;
+
+  private byte[] _routeConfig;
+
+  private byte[] _schedule;
+
+  private byte[] _predictions;
+
+  private byte[] _vehicleLocations;
+
+  private List<String> _stopTags;
+
+  @Setup
+  public void setup() {
+    _routeConfig = NextBusXmlFixtures.routeConfig(size);
+    _schedule = NextBusXmlFixtures.schedule(size);
+    _predictions = NextBusXmlFixtures.predictionsForMultiStops(size);
+    _vehicleLocations = NextBusXmlFixtures.vehicleLocations(size);
+    _stopTags = Arrays.asList("5000");
+
+    _downloader = new FixtureDownloaderService();
+    _service = new NextBusApiService();
+    _service.setAgencyId("sf-muni");
+    _service.setDownloader(_downloader);
+  }
+
+  @Benchmark
+  public List<NBRoute> routeConfig() throws IOException {
+    _downloader.setResponse(_routeConfig);
+    return _service.downloadRouteConfigList("N");
+  }
+
+  @Benchmark
+  public List<NBRoute> schedule() throws IOException {
+    _downloader.setResponse(_schedule);
+    return _service.downloadRouteScheduleList("N");
+  }
+
+  @Benchmark
+  public List<NBPredictions> predictionsForMultiStops() throws IOException {
+    _downloader.setResponse(_predictions);
+    return _service.downloadPredictions("N", _stopTags);
+  }
+
+  @Benchmark
+  public List<NBVehicle> vehicleLocations() throws IOException {
+    _downloader.setResponse(_vehicleLocations);
+    return _service.downloadVehicleLocations("N", 0);
+  }
+
+  /**
+   * Serves a fixed response for every url, without throttling.
+   */
+  private static class FixtureDownloaderService extends DownloaderService {
+
+    private byte[] _response;
+
+    public void setResponse(byte[] response) {
+      _response = response;
+    }
+
+    @Override
+    public synchronized InputStream openUrl(String uri) throws IOException {
+      return new ByteArrayInputStream(_response);
+    }
+  }
+}
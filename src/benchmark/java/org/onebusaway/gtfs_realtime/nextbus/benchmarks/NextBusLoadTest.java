@@ -0,0 +1,401 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.nextbus.benchmarks;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.onebusaway.gtfs_realtime.nextbus.NextBusToGtfsRealtimeModule;
+import org.onebusaway.gtfs_realtime.nextbus.services.NextBusApiService;
+import org.onebusaway.gtfs_realtime.nextbus.services.NextBusToGtfsRealtimeService;
+import org.onebusaway.gtfs_realtime.nextbus.services.NextBusToGtfsService;
+import org.onebusaway.guice.jsr250.LifecycleService;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+
+/**
+ * Runs the full application, wired up the same way as
+ * {@link org.onebusaway.gtfs_realtime.nextbus.NextBusToGtfsRealtimeMain},
+ * against a {@link MockNextBusServer} for each of a series of configurations,
+ * and reports cycle time, feed freshness, CPU and heap for each.
+ * 
+ * Feed freshness is the age of the most recent predictions the mock server
+ * served without an injected error for each route, sampled once a second. CPU
+ * is for the whole process, so it includes the mock server.
+ * 
+ * Usage: {@code NextBusLoadTest [secondsPerConfiguration]
+ * [secondsBetweenCycles]}
+ */
+public class NextBusLoadTest {
+
+  private static final String AGENCY_ID = "synthetic";
+
+  private int _duration = 120;
+
+  private int _minimumTimeBetweenRequests = 10;
+
+  private List<LoadTestConfiguration> _configurations = new ArrayList<LoadTestConfiguration>();
+
+  public static void main(String[] args) throws Exception {
+    NextBusLoadTest test = new NextBusLoadTest();
+    if (args.length > 0) {
+      test.setDuration(Integer.parseInt(args[0]));
+    }
+    if (args.length > 1) {
+      test.setMinimumTimeBetweenRequests(Integer.parseInt(args[1]));
+    }
+    test.addDefaultConfigurations();
+    test.run();
+  }
+
+  /**
+   * 
+   * @param duration how long, in seconds, to run each configuration
+   */
+  public void setDuration(int duration) {
+    _duration = duration;
+  }
+
+  public void setMinimumTimeBetweenRequests(int minimumTimeBetweenRequests) {
+    _minimumTimeBetweenRequests = minimumTimeBetweenRequests;
+  }
+
+  public void addConfiguration(LoadTestConfiguration configuration) {
+    _configurations.add(configuration);
+  }
+
+  public void addDefaultConfigurations() {
+    addConfiguration(new LoadTestConfiguration("small", 10, 50, 0, 0));
+    addConfiguration(new LoadTestConfiguration("medium", 50, 50, 0, 0));
+    addConfiguration(new LoadTestConfiguration("large", 200, 50, 0, 0));
+    addConfiguration(new LoadTestConfiguration("large-slow", 200, 500,
+        256 * 1024, 0));
+    addConfiguration(new LoadTestConfiguration("large-lossy", 200, 50, 0,
+        0.05));
+  }
+
+  public void run() throws Exception {
+    List<LoadTestResult> results = new ArrayList<LoadTestResult>();
+    for (LoadTestConfiguration configuration : _configurations) {
+      System.err.println("running configuration " + configuration.getName());
+      results.add(runConfiguration(configuration));
+    }
+    printResults(results);
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  private LoadTestResult runConfiguration(LoadTestConfiguration configuration)
+      throws Exception {
+
+    SyntheticAgency agency = new SyntheticAgency(
+        configuration.getRouteCount(), 40, 120, 0);
+    File gtfsDirectory = File.createTempFile("synthetic-gtfs-", "");
+    gtfsDirectory.delete();
+    agency.writeGtfs(gtfsDirectory);
+
+    MockNextBusServer server = new MockNextBusServer(agency);
+    server.setLatency(configuration.getLatency(), configuration.getLatency());
+    server.setBandwidth(configuration.getBandwidth());
+    server.setErrorRate(configuration.getErrorRate());
+    server.start();
+    System.setProperty("nextbus.url", server.getBaseUrl());
+
+    Set<Module> modules = new HashSet<Module>();
+    NextBusToGtfsRealtimeModule.addModuleAndDependencies(modules);
+    Injector injector = Guice.createInjector(modules);
+
+    NextBusApiService apiService = injector.getInstance(NextBusApiService.class);
+    apiService.setAgencyId(AGENCY_ID);
+
+    NextBusToGtfsService matchingService = injector.getInstance(NextBusToGtfsService.class);
+    matchingService.setGtfsPath(gtfsDirectory);
+    matchingService.setGtfsTripMatching(true);
+    matchingService.setGtfsReloadInterval(0);
+
+    NextBusToGtfsRealtimeService realtimeService = injector.getInstance(NextBusToGtfsRealtimeService.class);
+    realtimeService.setEnableTripUpdates(true);
+    realtimeService.setEnableVehiclePositions(true);
+    realtimeService.setMinimumTimeBetweenRequests(_minimumTimeBetweenRequests);
+
+    LifecycleService lifecycleService = injector.getInstance(LifecycleService.class);
+
+    OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    int processors = Runtime.getRuntime().availableProcessors();
+
+    LoadTestResult result = new LoadTestResult(configuration);
+    try {
+      long startupStart = System.currentTimeMillis();
+      lifecycleService.start();
+      result.setStartupTime(System.currentTimeMillis() - startupStart);
+
+      long wallStart = System.nanoTime();
+      long cpuStart = getProcessCpuTime(os);
+      long end = System.currentTimeMillis() + _duration * 1000L;
+      int lastCycle = realtimeService.getCycleCount();
+
+      while (System.currentTimeMillis() < end) {
+        Thread.sleep(1000);
+        long now = System.currentTimeMillis();
+        int cycle = realtimeService.getCycleCount();
+        if (cycle != lastCycle) {
+          result.addCycleTime(realtimeService.getLastCycleDuration());
+          lastCycle = cycle;
+        }
+        Map<String, Long> updateTimes = server.getLastPredictionTimeByRouteTag();
+        for (Long updateTime : updateTimes.values()) {
+          result.addFreshness(now - updateTime);
+        }
+        result.setUpdatedRouteCount(updateTimes.size());
+        result.noteHeapUsed(memory.getHeapMemoryUsage().getUsed());
+      }
+
+      long wall = System.nanoTime() - wallStart;
+      long cpu = getProcessCpuTime(os) - cpuStart;
+      if (cpu >= 0) {
+        result.setCpuUtilization((double) cpu / wall / processors);
+      }
+    } finally {
+      lifecycleService.stop();
+      injector.getInstance(ScheduledExecutorService.class).shutdownNow();
+      server.stop();
+      result.setRequestCount(server.getRequestCount());
+      result.setBytesSent(server.getBytesSent());
+    }
+
+    System.gc();
+    result.setHeapRetained(memory.getHeapMemoryUsage().getUsed());
+    return result;
+  }
+
+  /**
+   * 
+   * @param os
+   * @return the CPU time used by the process, in nanoseconds, or -1 if the JVM
+   *         doesn't tell us
+   */
+  private static long getProcessCpuTime(OperatingSystemMXBean os) {
+    if (os instanceof com.sun.management.OperatingSystemMXBean) {
+      return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+    }
+    return -1;
+  }
+
+  private static void printResults(List<LoadTestResult> results) {
+    String header = String.format(Locale.US,
+        "%-12s %9s %8s %7s %9s %9s %9s %9s %9s %6s %8s %8s %8s %8s",
+        "config", "routes", "startup", "cycles", "cycle50", "cycle95",
+        "fresh50", "fresh95", "freshMax", "cpu", "heapMax", "heapLive",
+        "reqs", "sent");
+    System.out.println(header);
+    for (LoadTestResult result : results) {
+      LoadTestConfiguration configuration = result.getConfiguration();
+      System.out.println(String.format(Locale.US,
+          "%-12s %9s %7.1fs %7d %8.1fs %8.1fs %8.1fs %8.1fs %8.1fs %5.1f%% %7dM %7dM %8d %7dM",
+          configuration.getName(), result.getUpdatedRouteCount() + "/"
+              + configuration.getRouteCount(),
+          result.getStartupTime() / 1000.0, result.getCycleTimes().size(),
+          percentile(result.getCycleTimes(), 0.5) / 1000.0,
+          percentile(result.getCycleTimes(), 0.95) / 1000.0,
+          percentile(result.getFreshness(), 0.5) / 1000.0,
+          percentile(result.getFreshness(), 0.95) / 1000.0,
+          percentile(result.getFreshness(), 1.0) / 1000.0,
+          result.getCpuUtilization() * 100, result.getHeapMax() >> 20,
+          result.getHeapRetained() >> 20, result.getRequestCount(),
+          result.getBytesSent() >> 20));
+    }
+  }
+
+  private static long percentile(List<Long> values, double p) {
+    if (values.isEmpty()) {
+      return 0;
+    }
+    List<Long> sorted = new ArrayList<Long>(values);
+    Collections.sort(sorted);
+    int index = (int) Math.ceil(p * sorted.size()) - 1;
+    return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1)));
+  }
+
+  public static class LoadTestConfiguration {
+
+    private final String _name;
+
+    private final int _routeCount;
+
+    private final int _latency;
+
+    private final long _bandwidth;
+
+    private final double _errorRate;
+
+    /**
+     * 
+     * @param name
+     * @param routeCount the number of routes in the synthetic agency
+     * @param latency typical server latency, in milliseconds. Actual latency
+     *          varies between this and twice this.
+     * @param bandwidth per-response bandwidth limit, in bytes per second, or
+     *          zero for no limit
+     * @param errorRate the fraction of requests that fail
+     */
+    public LoadTestConfiguration(String name, int routeCount, int latency,
+        long bandwidth, double errorRate) {
+      _name = name;
+      _routeCount = routeCount;
+      _latency = latency;
+      _bandwidth = bandwidth;
+      _errorRate = errorRate;
+    }
+
+    public String getName() {
+      return _name;
+    }
+
+    public int getRouteCount() {
+      return _routeCount;
+    }
+
+    public int getLatency() {
+      return _latency;
+    }
+
+    public long getBandwidth() {
+      return _bandwidth;
+    }
+
+    public double getErrorRate() {
+      return _errorRate;
+    }
+  }
+
+  private static class LoadTestResult {
+
+    private final LoadTestConfiguration _configuration;
+
+    private final List<Long> _cycleTimes = new ArrayList<Long>();
+
+    private final List<Long> _freshness = new ArrayList<Long>();
+
+    private long _startupTime;
+
+    private int _updatedRouteCount;
+
+    private double _cpuUtilization;
+
+    private long _heapMax;
+
+    private long _heapRetained;
+
+    private long _requestCount;
+
+    private long _bytesSent;
+
+    public LoadTestResult(LoadTestConfiguration configuration) {
+      _configuration = configuration;
+    }
+
+    public LoadTestConfiguration getConfiguration() {
+      return _configuration;
+    }
+
+    public List<Long> getCycleTimes() {
+      return _cycleTimes;
+    }
+
+    public void addCycleTime(long cycleTime) {
+      _cycleTimes.add(cycleTime);
+    }
+
+    public List<Long> getFreshness() {
+      return _freshness;
+    }
+
+    public void addFreshness(long freshness) {
+      _freshness.add(freshness);
+    }
+
+    public long getStartupTime() {
+      return _startupTime;
+    }
+
+    public void setStartupTime(long startupTime) {
+      _startupTime = startupTime;
+    }
+
+    public int getUpdatedRouteCount() {
+      return _updatedRouteCount;
+    }
+
+    public void setUpdatedRouteCount(int updatedRouteCount) {
+      _updatedRouteCount = updatedRouteCount;
+    }
+
+    public double getCpuUtilization() {
+      return _cpuUtilization;
+    }
+
+    public void setCpuUtilization(double cpuUtilization) {
+      _cpuUtilization = cpuUtilization;
+    }
+
+    public long getHeapMax() {
+      return _heapMax;
+    }
+
+    public void noteHeapUsed(long heapUsed) {
+      _heapMax = Math.max(_heapMax, heapUsed);
+    }
+
+    public long getHeapRetained() {
+      return _heapRetained;
+    }
+
+    public void setHeapRetained(long heapRetained) {
+      _heapRetained = heapRetained;
+    }
+
+    public long getRequestCount() {
+      return _requestCount;
+    }
+
+    public void setRequestCount(long requestCount) {
+      _requestCount = requestCount;
+    }
+
+    public long getBytesSent() {
+      return _bytesSent;
+    }
+
+    public void setBytesSent(long bytesSent) {
+      _bytesSent = bytesSent;
+    }
+  }
+}
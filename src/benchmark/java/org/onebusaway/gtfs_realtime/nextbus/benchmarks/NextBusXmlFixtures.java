@@ -0,0 +1,219 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.nextbus.benchmarks;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Generates NextBus publicXMLFeed responses with the same element and
+ * attribute layout as the live API, so that the parsing benchmarks exercise
+ * every Digester rule along with the elements we don't map (paths, headers,
+ * messages). Output is deterministic for a given size.
+ */
+public class NextBusXmlFixtures {
+
+  public enum Size {
+    SMALL(20, 20, 5, 10), MEDIUM(80, 120, 20, 60), LARGE(200, 400, 150, 500);
+
+    /**
+     * Stops along a route configuration or schedule
+     */
+    final int stops;
+
+    /**
+     * Trips in each direction of a schedule
+     */
+    final int trips;
+
+    /**
+     * Stops in a predictionsForMultiStops request
+     */
+    final int predictionStops;
+
+    /**
+     * Vehicles in a vehicleLocations response
+     */
+    final int vehicles;
+
+    Size(int stops, int trips, int predictionStops, int vehicles) {
+      this.stops = stops;
+      this.trips = trips;
+      this.predictionStops = predictionStops;
+      this.vehicles = vehicles;
+    }
+  }
+
+  private static final String COPYRIGHT = "All data copyright Example Transit 2013.";
+
+  private static final long NOW = 1356998400000L;
+
+  public static byte[] routeConfig(Size size) {
+    Random random = new Random(size.ordinal());
+    StringBuilder b = new StringBuilder();
+    b.append("<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n");
+    b.append("<body copyright=\"").append(COPYRIGHT).append("\">\n");
+    b.append("<route tag=\"N\" title=\"N-Judah\" color=\"003399\" oppositeColor=\"ffffff\"");
+    b.append(" latMin=\"37.7601\" latMax=\"37.7932\" lonMin=\"-122.5092\" lonMax=\"-122.3886\">\n");
+    for (int i = 0; i < size.stops; ++i) {
+      b.append("<stop tag=\"").append(stopTag(i)).append("\" title=\"Judah St &amp; ");
+      b.append(i + 1).append("th Ave\" lat=\"").append(lat(random));
+      b.append("\" lon=\"").append(lon(random)).append("\" stopId=\"");
+      b.append(10000 + i).append("\"/>\n");
+    }
+    appendDirection(b, "N__OB1", "Outbound to Ocean Beach", "Outbound",
+        size.stops, false);
+    appendDirection(b, "N__IB1", "Inbound to Caltrain", "Inbound", size.stops,
+        true);
+    for (int p = 0; p < Math.max(1, size.stops / 10); ++p) {
+      b.append("<path>\n");
+      for (int i = 0; i < 10; ++i) {
+        b.append("<point lat=\"").append(lat(random)).append("\" lon=\"").append(
+            lon(random)).append("\"/>\n");
+      }
+      b.append("</path>\n");
+    }
+    b.append("</route>\n</body>\n");
+    return bytes(b);
+  }
+
+  public static byte[] schedule(Size size) {
+    StringBuilder b = new StringBuilder();
+    b.append("<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n");
+    b.append("<body copyright=\"").append(COPYRIGHT).append("\">\n");
+    String[] directions = {"Outbound", "Inbound"};
+    for (String direction : directions) {
+      b.append("<route tag=\"N\" title=\"N-Judah\" scheduleClass=\"2013T_FALL\"");
+      b.append(" serviceClass=\"wkd\" direction=\"").append(direction).append(
+          "\">\n");
+      b.append("<header>\n");
+      for (int i = 0; i < size.stops; i += 4) {
+        b.append("<stop tag=\"").append(stopTag(i)).append("\">Judah St &amp; ");
+        b.append(i + 1).append("th Ave</stop>\n");
+      }
+      b.append("</header>\n");
+      for (int t = 0; t < size.trips; ++t) {
+        int startTime = 5 * 60 * 60 + t * 5 * 60;
+        b.append("<tr blockID=\"").append(9700 + t % 30).append("\">\n");
+        for (int i = 0; i < size.stops; i += 4) {
+          int time = startTime + i * 60;
+          b.append("<stop tag=\"").append(stopTag(i)).append("\" epochTime=\"");
+          b.append(time * 1000L).append("\">").append(formatTime(time)).append(
+              "</stop>\n");
+        }
+        b.append("</tr>\n");
+      }
+      b.append("</route>\n");
+    }
+    b.append("</body>\n");
+    return bytes(b);
+  }
+
+  public static byte[] predictionsForMultiStops(Size size) {
+    Random random = new Random(size.ordinal());
+    StringBuilder b = new StringBuilder();
+    b.append("<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n");
+    b.append("<body copyright=\"").append(COPYRIGHT).append("\">\n");
+    for (int i = 0; i < size.predictionStops; ++i) {
+      b.append("<predictions agencyTitle=\"Example Transit\" routeTitle=\"N-Judah\"");
+      b.append(" routeTag=\"N\" stopTitle=\"Judah St &amp; ").append(i + 1);
+      b.append("th Ave\" stopTag=\"").append(stopTag(i)).append("\">\n");
+      b.append("<direction title=\"Outbound to Ocean Beach\">\n");
+      for (int p = 0; p < 3; ++p) {
+        int seconds = p * 600 + random.nextInt(600);
+        int vehicle = 1400 + (i + p * 7) % 60;
+        b.append("<prediction epochTime=\"").append(NOW + seconds * 1000L);
+        b.append("\" seconds=\"").append(seconds).append("\" minutes=\"");
+        b.append(seconds / 60).append("\" isDeparture=\"false\"");
+        if (p == 2) {
+          b.append(" affectedByLayover=\"true\"");
+        }
+        b.append(" dirTag=\"N__OB1\" vehicle=\"").append(vehicle);
+        b.append("\" block=\"").append(9700 + vehicle % 30);
+        b.append("\" tripTag=\"").append(5290000 + vehicle * 10 + p).append(
+            "\" />\n");
+      }
+      b.append("</direction>\n");
+      b.append("<message text=\"Service on this route is provided by buses after 9 PM.\" priority=\"Low\"/>\n");
+      b.append("</predictions>\n");
+    }
+    b.append("</body>\n");
+    return bytes(b);
+  }
+
+  public static byte[] vehicleLocations(Size size) {
+    Random random = new Random(size.ordinal());
+    StringBuilder b = new StringBuilder();
+    b.append("<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n");
+    b.append("<body copyright=\"").append(COPYRIGHT).append("\">\n");
+    for (int i = 0; i < size.vehicles; ++i) {
+      b.append("<vehicle id=\"").append(1400 + i).append("\" routeTag=\"N\"");
+      b.append(" dirTag=\"").append(i % 2 == 0 ? "N__OB1" : "N__IB1");
+      b.append("\" lat=\"").append(lat(random)).append("\" lon=\"").append(
+          lon(random));
+      b.append("\" secsSinceReport=\"").append(random.nextInt(60));
+      b.append("\" predictable=\"true\" heading=\"").append(random.nextInt(360));
+      b.append("\" speedKmHr=\"").append(random.nextInt(50)).append("\"/>\n");
+    }
+    b.append("<lastTime time=\"").append(NOW).append("\"/>\n");
+    b.append("</body>\n");
+    return bytes(b);
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  private static void appendDirection(StringBuilder b, String tag,
+      String title, String name, int stops, boolean reverse) {
+    b.append("<direction tag=\"").append(tag).append("\" title=\"").append(
+        title);
+    b.append("\" name=\"").append(name).append("\" useForUI=\"true\">\n");
+    for (int i = 0; i < stops; ++i) {
+      int index = reverse ? stops - 1 - i : i;
+      b.append("<stop tag=\"").append(stopTag(index)).append("\" />\n");
+    }
+    b.append("</direction>\n");
+  }
+
+  private static String stopTag(int index) {
+    return Integer.toString(5000 + index);
+  }
+
+  private static String lat(Random random) {
+    return String.format(Locale.US, "%.7f",
+        37.76 + random.nextDouble() * 0.03);
+  }
+
+  private static String lon(Random random) {
+    return String.format(Locale.US, "%.7f",
+        -122.51 + random.nextDouble() * 0.12);
+  }
+
+  private static String formatTime(int time) {
+    return String.format(Locale.US, "%02d:%02d:%02d", time / 3600,
+        (time / 60) % 60, time % 60);
+  }
+
+  private static byte[] bytes(StringBuilder b) {
+    try {
+      return b.toString().getBytes("UTF-8");
+    } catch (UnsupportedEncodingException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+}
@@ -0,0 +1,310 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.nextbus.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.onebusaway.gtfs_realtime.nextbus.NextBusToGtfsRealtimeModule;
+import org.onebusaway.gtfs_realtime.nextbus.model.StartupPhase;
+import org.onebusaway.gtfs_realtime.nextbus.model.api.NBRoute;
+import org.onebusaway.gtfs_realtime.nextbus.services.DownloaderService;
+import org.onebusaway.gtfs_realtime.nextbus.services.NextBusApiService;
+import org.onebusaway.gtfs_realtime.nextbus.services.NextBusToGtfsService;
+import org.onebusaway.gtfs_realtime.nextbus.services.RouteStopCoverageService;
+import org.onebusaway.gtfs_realtime.nextbus.services.StartupProfiler;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+
+/**
+ * Measures startup, from the route configuration download through GTFS
+ * matching, entirely offline. The NextBus responses for a
+ * {@link SyntheticAgency} are recorded once from a {@link MockNextBusServer}
+ * into the API cache, then each run starts a fresh JVM that is served from the
+ * cache alone, so results are reproducible and don't depend on the network.
+ * 
+ * Each run is either cold, with no matching snapshot, or warm, reusing the
+ * snapshot saved by an earlier start. The per-phase wall time, process CPU
+ * time and peak heap come from {@link StartupProfiler}, and the median of each
+ * is reported.
+ * 
+ * Usage: {@code StartupBenchmark [runs] [routes]}
+ */
+public class StartupBenchmark {
+
+  private static final String AGENCY_ID = "synthetic";
+
+  private static final String RUN_ARG = "--run";
+
+  private static final String PHASE_PREFIX = "PHASE\t";
+
+  private int _runs = 5;
+
+  private int _routeCount = 100;
+
+  /**
+   * Phase measurements by mode ("cold" or "warm"), then by phase name, in the
+   * order they were first seen
+   */
+  private final Map<String, Map<String, List<long[]>>> _results = new LinkedHashMap<String, Map<String, List<long[]>>>();
+
+  public static void main(String[] args) throws Exception {
+    if (args.length > 0 && args[0].equals(RUN_ARG)) {
+      runStartup(new File(args[1]), new File(args[2]), new File(args[3]));
+      System.exit(0);
+    }
+    StartupBenchmark benchmark = new StartupBenchmark();
+    if (args.length > 0) {
+      benchmark.setRuns(Integer.parseInt(args[0]));
+    }
+    if (args.length > 1) {
+      benchmark.setRouteCount(Integer.parseInt(args[1]));
+    }
+    benchmark.run();
+  }
+
+  public void setRuns(int runs) {
+    _runs = runs;
+  }
+
+  public void setRouteCount(int routeCount) {
+    _routeCount = routeCount;
+  }
+
+  public void run() throws Exception {
+    File workDirectory = File.createTempFile("startup-benchmark-", "");
+    workDirectory.delete();
+    File gtfsDirectory = new File(workDirectory, "gtfs");
+    File apiCacheDirectory = new File(workDirectory, "api-cache");
+    File warmDirectory = new File(workDirectory, "warm");
+    apiCacheDirectory.mkdirs();
+    warmDirectory.mkdirs();
+
+    SyntheticAgency agency = new SyntheticAgency(_routeCount, 40, 120, 0);
+    agency.writeGtfs(gtfsDirectory);
+    String baseUrl = recordFixtures(agency, apiCacheDirectory);
+
+    /**
+     * An unmeasured start to save the snapshot that warm starts reuse
+     */
+    System.err.println("saving matching snapshot");
+    launchStartup(baseUrl, gtfsDirectory, apiCacheDirectory, warmDirectory);
+
+    for (int i = 0; i < _runs; ++i) {
+      System.err.println("run " + (i + 1) + "/" + _runs);
+      File coldDirectory = new File(workDirectory, "cold-" + i);
+      coldDirectory.mkdirs();
+      addResults("cold", launchStartup(baseUrl, gtfsDirectory,
+          apiCacheDirectory, coldDirectory));
+      addResults("warm", launchStartup(baseUrl, gtfsDirectory,
+          apiCacheDirectory, warmDirectory));
+    }
+    printResults();
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  /**
+   * Downloads every cacheable response that startup needs from a mock server,
+   * filling the API cache.
+   * 
+   * @return the base url the responses were recorded under, which is part of
+   *         each cache key
+   */
+  private String recordFixtures(SyntheticAgency agency, File apiCacheDirectory)
+      throws IOException {
+    System.err.println("recording fixtures");
+    MockNextBusServer server = new MockNextBusServer(agency);
+    server.start();
+    try {
+      System.setProperty("nextbus.url", server.getBaseUrl());
+      NextBusApiService apiService = new NextBusApiService();
+      apiService.setAgencyId(AGENCY_ID);
+      apiService.setDownloader(new DownloaderService());
+      apiService.setCacheDirectory(apiCacheDirectory);
+      for (NBRoute route : apiService.downloadRouteList()) {
+        apiService.downloadRouteConfigList(route.getTag());
+        apiService.downloadRouteScheduleList(route.getTag());
+      }
+      return server.getBaseUrl();
+    } finally {
+      server.stop();
+    }
+  }
+
+  /**
+   * Runs a single startup in a new JVM.
+   * 
+   * @return the phases reported by the JVM, with the total last
+   */
+  private List<StartupPhase> launchStartup(String baseUrl, File gtfsDirectory,
+      File apiCacheDirectory, File matchingCacheDirectory) throws IOException,
+      InterruptedException {
+    String java = new File(new File(System.getProperty("java.home"), "bin"),
+        "java").getPath();
+    ProcessBuilder builder = new ProcessBuilder(java, "-cp",
+        System.getProperty("java.class.path"), "-Dnextbus.url=" + baseUrl,
+        getClass().getName(), RUN_ARG, gtfsDirectory.getPath(),
+        apiCacheDirectory.getPath(), matchingCacheDirectory.getPath());
+    builder.redirectErrorStream(true);
+    Process process = builder.start();
+
+    List<StartupPhase> phases = new ArrayList<StartupPhase>();
+    List<String> output = new ArrayList<String>();
+    InputStream in = process.getInputStream();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(in,
+        "UTF-8"));
+    try {
+      String line = null;
+      while ((line = reader.readLine()) != null) {
+        if (line.startsWith(PHASE_PREFIX)) {
+          String[] tokens = line.split("\t");
+          phases.add(new StartupPhase(tokens[1], Long.parseLong(tokens[2]),
+              Long.parseLong(tokens[3]), Long.parseLong(tokens[4])));
+        } else {
+          output.add(line);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    int exitCode = process.waitFor();
+    if (exitCode != 0 || phases.isEmpty()) {
+      for (String line : output) {
+        System.err.println(line);
+      }
+      throw new IllegalStateException("startup run failed: exitCode="
+          + exitCode);
+    }
+    return phases;
+  }
+
+  /**
+   * The startup path of the application, with the NextBus API served from the
+   * cache only. Prints each phase for the parent process to collect.
+   */
+  private static void runStartup(File gtfsDirectory, File apiCacheDirectory,
+      File matchingCacheDirectory) throws Exception {
+    Set<Module> modules = new HashSet<Module>();
+    NextBusToGtfsRealtimeModule.addModuleAndDependencies(modules);
+    Injector injector = Guice.createInjector(modules);
+
+    StartupProfiler profiler = injector.getInstance(StartupProfiler.class);
+    profiler.start();
+
+    NextBusApiService apiService = injector.getInstance(NextBusApiService.class);
+    apiService.setAgencyId(AGENCY_ID);
+    apiService.setCacheDirectory(apiCacheDirectory);
+    apiService.setDownloader(new OfflineDownloaderService());
+
+    NextBusToGtfsService matchingService = injector.getInstance(NextBusToGtfsService.class);
+    matchingService.setGtfsPath(gtfsDirectory);
+    matchingService.setGtfsTripMatching(true);
+    matchingService.setGtfsReloadInterval(0);
+    matchingService.setCacheDirectory(matchingCacheDirectory);
+
+    RouteStopCoverageService coverageService = injector.getInstance(RouteStopCoverageService.class);
+    try {
+      coverageService.start();
+      profiler.finish();
+    } finally {
+      coverageService.stop();
+      injector.getInstance(ScheduledExecutorService.class).shutdownNow();
+    }
+
+    for (StartupPhase phase : profiler.getPhases()) {
+      printPhase(phase);
+    }
+    printPhase(new StartupPhase("total", profiler.getTotalWallTime(),
+        profiler.getTotalCpuTime(), -1));
+  }
+
+  private static void printPhase(StartupPhase phase) {
+    System.out.println(PHASE_PREFIX + phase.getName() + "\t"
+        + phase.getWallTime() + "\t" + phase.getCpuTime() + "\t"
+        + phase.getPeakHeap());
+  }
+
+  private void addResults(String mode, List<StartupPhase> phases) {
+    Map<String, List<long[]>> resultsByPhase = _results.get(mode);
+    if (resultsByPhase == null) {
+      resultsByPhase = new LinkedHashMap<String, List<long[]>>();
+      _results.put(mode, resultsByPhase);
+    }
+    for (StartupPhase phase : phases) {
+      List<long[]> results = resultsByPhase.get(phase.getName());
+      if (results == null) {
+        results = new ArrayList<long[]>();
+        resultsByPhase.put(phase.getName(), results);
+      }
+      results.add(new long[] {
+          phase.getWallTime(), phase.getCpuTime(), phase.getPeakHeap()});
+    }
+  }
+
+  private void printResults() {
+    System.out.println(String.format(Locale.US, "%-6s %-22s %9s %9s %9s",
+        "mode", "phase", "wall", "cpu", "peakHeap"));
+    for (Map.Entry<String, Map<String, List<long[]>>> modeEntry : _results.entrySet()) {
+      for (Map.Entry<String, List<long[]>> entry : modeEntry.getValue().entrySet()) {
+        List<long[]> results = entry.getValue();
+        long peakHeap = median(results, 2);
+        System.out.println(String.format(Locale.US,
+            "%-6s %-22s %8.3fs %8.3fs %9s", modeEntry.getKey(),
+            entry.getKey(), median(results, 0) / 1000.0,
+            median(results, 1) / 1000.0, peakHeap < 0 ? "-" : (peakHeap >> 20)
+                + "M"));
+      }
+    }
+  }
+
+  private static long median(List<long[]> results, int index) {
+    List<Long> values = new ArrayList<Long>();
+    for (long[] result : results) {
+      values.add(result[index]);
+    }
+    Collections.sort(values);
+    return values.get(values.size() / 2);
+  }
+
+  /**
+   * Fails every request, so that a startup run can only be served from the
+   * API cache.
+   */
+  private static class OfflineDownloaderService extends DownloaderService {
+
+    @Override
+    public synchronized InputStream openUrl(String uri) throws IOException {
+      throw new IOException("fixture missing from the api cache: " + uri);
+    }
+  }
+}
@@ -0,0 +1,473 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.nextbus.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import org.onebusaway.gtfs_realtime.nextbus.model.api.NBDirection;
+import org.onebusaway.gtfs_realtime.nextbus.model.api.NBRoute;
+import org.onebusaway.gtfs_realtime.nextbus.model.api.NBStop;
+import org.onebusaway.gtfs_realtime.nextbus.model.api.NBStopTime;
+import org.onebusaway.gtfs_realtime.nextbus.model.api.NBTrip;
+
+/**
+ * Generates a synthetic but plausible agency as both a GTFS feed and the
+ * matching NextBus route configurations and schedules.
+ * 
+ * Routes radiate out from a common downtown point, so stops near the center
+ * are close to the stops of other routes. Each route runs an outbound and an
+ * inbound direction, chained into blocks, on a weekday and a Saturday
+ * service. NextBus stops are placed a few meters off their GTFS counterparts,
+ * as they are in practice.
+ * 
+ * Ambiguity adds that many decoy GTFS stops within the stop matching radius of
+ * every stop. The decoys are served by alternate-pattern trips of the same
+ * route, so they show up as real candidates in stop and route matching rather
+ * than being pruned right away.
+ */
+public class SyntheticAgency {
+
+  private static final String AGENCY_ID = "1";
+
+  private static final double CENTER_LAT = 47.6097;
+
+  private static final double CENTER_LON = -122.3331;
+
+  private static final double METERS_PER_DEGREE_LAT = 111320;
+
+  /**
+   * Spacing between consecutive stops along a route, in meters.
+   */
+  private static final double STOP_SPACING = 300;
+
+  /**
+   * Travel time between consecutive stops, in seconds.
+   */
+  private static final int SECONDS_BETWEEN_STOPS = 90;
+
+  /**
+   * Layover at the end of each trip before the next trip in the block, in
+   * seconds.
+   */
+  private static final int LAYOVER = 10 * 60;
+
+  private static final int FIRST_TRIP_START = 5 * 60 * 60;
+
+  private static final int LAST_TRIP_START = 23 * 60 * 60;
+
+  private static final String[] DIRECTION_SUFFIXES = {"_OB", "_IB"};
+
+  private final int _routeCount;
+
+  private final int _stopsPerRoute;
+
+  private final int _tripsPerDay;
+
+  private final int _ambiguity;
+
+  private final Random _random = new Random(42);
+
+  /**
+   * GTFS stop coordinates, indexed by route, stop along the route and then
+   * pattern, where pattern 0 is the primary stop and the rest are decoys.
+   */
+  private double[][][] _lats;
+
+  private double[][][] _lons;
+
+  private List<NBRoute> _routeConfigurations;
+
+  private final Map<String, List<NBRoute>> _schedulesByRouteTag = new HashMap<String, List<NBRoute>>();
+
+  /**
+   * 
+   * @param routeCount the number of routes
+   * @param stopsPerRoute the number of stops along each route
+   * @param tripsPerDay the number of weekday trips per route, split across both
+   *          directions. Saturday service runs half as many.
+   * @param ambiguity the number of decoy GTFS stops near every stop
+   */
+  public SyntheticAgency(int routeCount, int stopsPerRoute, int tripsPerDay,
+      int ambiguity) {
+    _routeCount = routeCount;
+    _stopsPerRoute = stopsPerRoute;
+    _tripsPerDay = tripsPerDay;
+    _ambiguity = ambiguity;
+    layOutStops();
+  }
+
+  /**
+   * Writes the GTFS feed for the agency as a directory of text files.
+   * 
+   * @param directory
+   * @throws IOException
+   */
+  public void writeGtfs(File directory) throws IOException {
+    directory.mkdirs();
+
+    PrintWriter out = openWriter(directory, "agency.txt");
+    out.println("agency_id,agency_name,agency_url,agency_timezone");
+    out.println(AGENCY_ID
+        + ",Synthetic Transit,http://example.com/,America/Los_Angeles");
+    out.close();
+
+    out = openWriter(directory, "calendar.txt");
+    out.println("service_id,monday,tuesday,wednesday,thursday,friday,saturday,sunday,start_date,end_date");
+    out.println("WKDY,1,1,1,1,1,0,0,20130101,20131231");
+    out.println("SAT,0,0,0,0,0,1,0,20130101,20131231");
+    out.close();
+
+    out = openWriter(directory, "routes.txt");
+    out.println("route_id,agency_id,route_short_name,route_long_name,route_type");
+    for (int r = 0; r < _routeCount; ++r) {
+      out.println(getRouteId(r) + "," + AGENCY_ID + "," + (r + 1) + ",Route "
+          + (r + 1) + ",3");
+    }
+    out.close();
+
+    out = openWriter(directory, "stops.txt");
+    out.println("stop_id,stop_name,stop_lat,stop_lon");
+    for (int r = 0; r < _routeCount; ++r) {
+      for (int s = 0; s < _stopsPerRoute; ++s) {
+        for (int p = 0; p <= _ambiguity; ++p) {
+          out.println(getGtfsStopId(r, s, p) + ",Stop " + r + "-" + s + "-" + p
+              + "," + format(_lats[r][s][p]) + "," + format(_lons[r][s][p]));
+        }
+      }
+    }
+    out.close();
+
+    PrintWriter trips = openWriter(directory, "trips.txt");
+    trips.println("route_id,service_id,trip_id,direction_id,block_id");
+    PrintWriter stopTimes = openWriter(directory, "stop_times.txt");
+    stopTimes.println("trip_id,arrival_time,departure_time,stop_id,stop_sequence");
+    for (int r = 0; r < _routeCount; ++r) {
+      writeTrips(r, "WKDY", _tripsPerDay, trips, stopTimes);
+      writeTrips(r, "SAT", _tripsPerDay / 2, trips, stopTimes);
+    }
+    trips.close();
+    stopTimes.close();
+  }
+
+  /**
+   * 
+   * @return the NextBus route configurations for the agency, as they would be
+   *         returned by the routeConfig command
+   */
+  public List<NBRoute> getRouteConfigurations() {
+    if (_routeConfigurations == null) {
+      _routeConfigurations = createRouteConfigurations();
+    }
+    return _routeConfigurations;
+  }
+
+  /**
+   * 
+   * @param routeTag
+   * @return the NextBus schedules for the route, as they would be returned by
+   *         the schedule command
+   */
+  public synchronized List<NBRoute> getSchedules(String routeTag) {
+    List<NBRoute> schedules = _schedulesByRouteTag.get(routeTag);
+    if (schedules == null) {
+      int r = Integer.parseInt(routeTag.substring(1));
+      schedules = new ArrayList<NBRoute>();
+      addSchedules(r, "mtwth", _tripsPerDay, schedules);
+      addSchedules(r, "sat", _tripsPerDay / 2, schedules);
+      _schedulesByRouteTag.put(routeTag, schedules);
+    }
+    return schedules;
+  }
+
+  /**
+   * 
+   * @param routeTag
+   * @return the weekday trips of the route, with a scheduled time at every
+   *         stop rather than just the timepoints listed in the NextBus
+   *         schedule
+   */
+  public List<ScheduledTrip> getWeekdayTrips(String routeTag) {
+    int r = Integer.parseInt(routeTag.substring(1));
+    int[] startTimes = getTripStartTimes(_tripsPerDay);
+    List<ScheduledTrip> trips = new ArrayList<ScheduledTrip>();
+    for (int t = 0; t < _tripsPerDay; ++t) {
+      int d = t % 2;
+      String[] stopTags = new String[_stopsPerRoute];
+      int[] times = new int[_stopsPerRoute];
+      for (int i = 0; i < _stopsPerRoute; ++i) {
+        stopTags[i] = getNextBusStopTag(r, getStopIndex(i, d));
+        times[i] = startTimes[t] + i * SECONDS_BETWEEN_STOPS;
+      }
+      trips.add(new ScheduledTrip(getRouteId(r) + "_WKDY_" + t,
+          getDirectionTag(r, d), getBlockId(r, "WKDY", t, _tripsPerDay),
+          stopTags, times));
+    }
+    return trips;
+  }
+
+  public static class ScheduledTrip {
+
+    private final String _tripTag;
+
+    private final String _directionTag;
+
+    private final String _blockId;
+
+    private final String[] _stopTags;
+
+    private final int[] _times;
+
+    public ScheduledTrip(String tripTag, String directionTag, String blockId,
+        String[] stopTags, int[] times) {
+      _tripTag = tripTag;
+      _directionTag = directionTag;
+      _blockId = blockId;
+      _stopTags = stopTags;
+      _times = times;
+    }
+
+    public String getTripTag() {
+      return _tripTag;
+    }
+
+    public String getDirectionTag() {
+      return _directionTag;
+    }
+
+    public String getBlockId() {
+      return _blockId;
+    }
+
+    /**
+     * 
+     * @return the tags of the stops along the trip, in order
+     */
+    public String[] getStopTags() {
+      return _stopTags;
+    }
+
+    /**
+     * 
+     * @return the scheduled time at each stop, in seconds since midnight
+     */
+    public int[] getTimes() {
+      return _times;
+    }
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  private List<NBRoute> createRouteConfigurations() {
+    List<NBRoute> routes = new ArrayList<NBRoute>();
+    for (int r = 0; r < _routeCount; ++r) {
+      NBRoute route = new NBRoute();
+      route.setTag(getRouteTag(r));
+      route.setTitle("Route " + (r + 1));
+      List<NBStop> stops = new ArrayList<NBStop>();
+      for (int s = 0; s < _stopsPerRoute; ++s) {
+        NBStop stop = new NBStop();
+        stop.setTag(getNextBusStopTag(r, s));
+        stop.setTitle("Stop " + r + "-" + s);
+        stop.setLat(_lats[r][s][0] + jitter(10) / METERS_PER_DEGREE_LAT);
+        stop.setLon(_lons[r][s][0] + jitter(10)
+            / getMetersPerDegreeLon(_lats[r][s][0]));
+        route.addStop(stop);
+        stops.add(stop);
+      }
+      for (int d = 0; d < 2; ++d) {
+        NBDirection direction = new NBDirection();
+        direction.setTag(getDirectionTag(r, d));
+        direction.setTitle(d == 0 ? "Outbound" : "Inbound");
+        direction.setName(direction.getTitle());
+        direction.setUseForUI(true);
+        for (int i = 0; i < _stopsPerRoute; ++i) {
+          direction.addStop(stops.get(getStopIndex(i, d)));
+        }
+        route.addDirection(direction);
+      }
+      routes.add(route);
+    }
+    return routes;
+  }
+
+  private void layOutStops() {
+    int patterns = _ambiguity + 1;
+    _lats = new double[_routeCount][_stopsPerRoute][patterns];
+    _lons = new double[_routeCount][_stopsPerRoute][patterns];
+    double goldenAngle = Math.PI * (3 - Math.sqrt(5));
+    for (int r = 0; r < _routeCount; ++r) {
+      double heading = r * goldenAngle;
+      double dx = Math.cos(heading);
+      double dy = Math.sin(heading);
+      /**
+       * Stagger where routes start so they don't all share the same first stop
+       */
+      double start = 100 + (r % 5) * 60;
+      for (int s = 0; s < _stopsPerRoute; ++s) {
+        double distance = start + s * STOP_SPACING + jitter(30);
+        for (int p = 0; p < patterns; ++p) {
+          /**
+           * Decoys sit 15 to 45 meters to either side of the primary stop
+           */
+          double offset = p == 0 ? 0 : (p % 2 == 0 ? -1 : 1)
+              * (15 + 30 * _random.nextDouble());
+          double x = distance * dx - offset * dy;
+          double y = distance * dy + offset * dx;
+          double lat = CENTER_LAT + y / METERS_PER_DEGREE_LAT;
+          _lats[r][s][p] = lat;
+          _lons[r][s][p] = CENTER_LON + x / getMetersPerDegreeLon(lat);
+        }
+      }
+    }
+  }
+
+  private void writeTrips(int r, String serviceId, int tripCount,
+      PrintWriter trips, PrintWriter stopTimes) {
+    int[] startTimes = getTripStartTimes(tripCount);
+    for (int t = 0; t < tripCount; ++t) {
+      int d = t % 2;
+      int pattern = getPattern(t);
+      String tripId = getRouteId(r) + "_" + serviceId + "_" + t;
+      trips.println(getRouteId(r) + "," + serviceId + "," + tripId + "," + d
+          + "," + getBlockId(r, serviceId, t, tripCount));
+      for (int i = 0; i < _stopsPerRoute; ++i) {
+        int s = getStopIndex(i, d);
+        String time = formatTime(startTimes[t] + i * SECONDS_BETWEEN_STOPS);
+        stopTimes.println(tripId + "," + time + "," + time + ","
+            + getGtfsStopId(r, s, pattern) + "," + i);
+      }
+    }
+  }
+
+  private void addSchedules(int r, String serviceClass, int tripCount,
+      List<NBRoute> schedules) {
+    int[] startTimes = getTripStartTimes(tripCount);
+    String serviceId = serviceClass.equals("sat") ? "SAT" : "WKDY";
+    for (int d = 0; d < 2; ++d) {
+      NBRoute schedule = new NBRoute();
+      schedule.setTag(getRouteTag(r));
+      schedule.setTitle("Route " + (r + 1));
+      schedule.setScheduleClass("2013");
+      schedule.setServiceClass(serviceClass);
+      schedule.setDirection(getDirectionTag(r, d));
+      for (int t = d; t < tripCount; t += 2) {
+        NBTrip trip = new NBTrip();
+        trip.setBlockID(getBlockId(r, serviceId, t, tripCount));
+        /**
+         * NextBus schedules only list timepoints, every fourth stop here
+         */
+        for (int i = 0; i < _stopsPerRoute; i += 4) {
+          NBStopTime stopTime = new NBStopTime();
+          stopTime.setTag(getNextBusStopTag(r, getStopIndex(i, d)));
+          stopTime.setEpochTime((startTimes[t] + i * SECONDS_BETWEEN_STOPS) * 1000);
+          trip.addStopTime(stopTime);
+        }
+        schedule.addTrip(trip);
+      }
+      schedules.add(schedule);
+    }
+  }
+
+  private int[] getTripStartTimes(int tripCount) {
+    int[] startTimes = new int[tripCount];
+    for (int t = 0; t < tripCount; ++t) {
+      startTimes[t] = FIRST_TRIP_START + (int) ((long) t
+          * (LAST_TRIP_START - FIRST_TRIP_START) / Math.max(1, tripCount));
+    }
+    return startTimes;
+  }
+
+  /**
+   * Blocks alternate outbound and inbound trips. We use as many blocks as it
+   * takes for a vehicle to finish a trip and its layover before its next trip
+   * starts.
+   */
+  private String getBlockId(int r, String serviceId, int t, int tripCount) {
+    int headway = (LAST_TRIP_START - FIRST_TRIP_START) / Math.max(1, tripCount);
+    int cycle = _stopsPerRoute * SECONDS_BETWEEN_STOPS + LAYOVER;
+    int blockCount = Math.max(1, (cycle + headway - 1) / Math.max(1, headway));
+    return getRouteId(r) + "_" + serviceId + "_B" + (t % blockCount);
+  }
+
+  /**
+   * With ambiguity, every few trips follow one of the alternate patterns.
+   */
+  private int getPattern(int t) {
+    if (_ambiguity == 0 || t % 4 != 3) {
+      return 0;
+    }
+    return 1 + (t / 4) % _ambiguity;
+  }
+
+  private int getStopIndex(int i, int d) {
+    return d == 0 ? i : _stopsPerRoute - 1 - i;
+  }
+
+  private String getRouteId(int r) {
+    return "R" + r;
+  }
+
+  private String getRouteTag(int r) {
+    return "n" + r;
+  }
+
+  private String getDirectionTag(int r, int d) {
+    return getRouteTag(r) + DIRECTION_SUFFIXES[d];
+  }
+
+  private String getGtfsStopId(int r, int s, int p) {
+    return "S" + r + "_" + s + (p == 0 ? "" : "_" + p);
+  }
+
+  private String getNextBusStopTag(int r, int s) {
+    return Integer.toString(10000 + r * 1000 + s);
+  }
+
+  private double jitter(double meters) {
+    return (_random.nextDouble() * 2 - 1) * meters;
+  }
+
+  private static double getMetersPerDegreeLon(double lat) {
+    return METERS_PER_DEGREE_LAT * Math.cos(Math.toRadians(lat));
+  }
+
+  private static String format(double value) {
+    return String.format(Locale.US, "%.6f", value);
+  }
+
+  private static String formatTime(int time) {
+    return String.format(Locale.US, "%02d:%02d:%02d", time / 3600,
+        (time / 60) % 60, time % 60);
+  }
+
+  private static PrintWriter openWriter(File directory, String name)
+      throws IOException {
+    return new PrintWriter(new OutputStreamWriter(new FileOutputStream(
+        new File(directory, name)), "UTF-8"));
+  }
+}
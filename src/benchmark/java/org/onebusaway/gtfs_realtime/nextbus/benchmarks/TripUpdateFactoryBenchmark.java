@@ -0,0 +1,154 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.nextbus.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.onebusaway.collections.FactoryMap;
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeIncrementalUpdate;
+import org.onebusaway.gtfs_realtime.nextbus.model.FlatPrediction;
+import org.onebusaway.gtfs_realtime.nextbus.services.TripUpdateFactory;
+import org.onebusaway.gtfs_realtime.nextbus.services.TripUpdateId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.TripDescriptor;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeEvent;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeUpdate;
+import com.google.transit.realtime.GtfsRealtime.VehicleDescriptor;
+
+/**
+ * Compares building trip updates with {@link TripUpdateFactory} against the
+ * previous approach of grouping predictions into a {@link FactoryMap} and
+ * building fresh messages for every prediction. Run with {@code -prof gc} to
+ * see the bytes allocated per operation, where one operation is one batch of
+ * {@link #predictionCount} predictions.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TripUpdateFactoryBenchmark {
+
+  @Param({"10000"})
+  public int predictionCount;
+
+  /**
+   * The number of predictions per vehicle, roughly the number of stops we get
+   * predictions for along a trip.
+   */
+  @Param({"20"})
+  public int predictionsPerVehicle;
+
+  private List<FlatPrediction> _predictions;
+
+  private TripUpdateFactory _factory;
+
+  @Setup
+  public void setup() {
+    Random random = new Random(42);
+    int vehicleCount = Math.max(1, predictionCount / predictionsPerVehicle);
+    _predictions = new ArrayList<FlatPrediction>(predictionCount);
+    long now = 1356998400000L;
+    for (int i = 0; i < predictionCount; ++i) {
+      int vehicle = random.nextInt(vehicleCount);
+      FlatPrediction prediction = new FlatPrediction();
+      prediction.setVehicle("vehicle-" + vehicle);
+      prediction.setBlock("block-" + vehicle);
+      prediction.setRouteTag("route-" + (vehicle % 50));
+      prediction.setDirTag("dir-" + (vehicle % 2));
+      prediction.setStopTag("stop-" + random.nextInt(2000));
+      prediction.setTripTag("trip-" + vehicle + "-" + random.nextInt(2));
+      prediction.setEpochTime(now + random.nextInt(60 * 60) * 1000L);
+      _predictions.add(prediction);
+    }
+    _factory = new TripUpdateFactory();
+  }
+
+  @Benchmark
+  public GtfsRealtimeIncrementalUpdate tripUpdateFactory() {
+    GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+    _factory.addTripUpdates(_predictions, update);
+    return update;
+  }
+
+  @Benchmark
+  public GtfsRealtimeIncrementalUpdate factoryMapBaseline() {
+    Map<TripUpdateId, List<FlatPrediction>> predictionsById = new FactoryMap<TripUpdateId, List<FlatPrediction>>(
+        new ArrayList<FlatPrediction>());
+    for (FlatPrediction prediction : _predictions) {
+      String vehicleId = prediction.getVehicle();
+      if (vehicleId == null) {
+        continue;
+      }
+      TripUpdateId id = new TripUpdateId(vehicleId, prediction.getTripTag());
+      predictionsById.get(id).add(prediction);
+    }
+
+    GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
+    for (Map.Entry<TripUpdateId, List<FlatPrediction>> entry : predictionsById.entrySet()) {
+      TripUpdateId id = entry.getKey();
+      List<FlatPrediction> predictions = entry.getValue();
+      Collections.sort(predictions);
+      FlatPrediction first = predictions.get(0);
+
+      TripUpdate.Builder tripUpdate = TripUpdate.newBuilder();
+      TripDescriptor.Builder tripDescriptor = TripDescriptor.newBuilder();
+      if (first.getRouteTag() != null) {
+        tripDescriptor.setRouteId(first.getRouteTag());
+      }
+      if (id.getTripId() != null) {
+        tripDescriptor.setTripId(id.getTripId());
+      }
+      tripUpdate.setTrip(tripDescriptor);
+      VehicleDescriptor.Builder vehicle = VehicleDescriptor.newBuilder();
+      vehicle.setId(id.getVehicleId());
+      tripUpdate.setVehicle(vehicle);
+
+      for (FlatPrediction prediction : predictions) {
+        StopTimeUpdate.Builder stopTimeUpdate = StopTimeUpdate.newBuilder();
+        stopTimeUpdate.setStopId(prediction.getStopTag());
+        StopTimeEvent.Builder stopTimeEvent = StopTimeEvent.newBuilder();
+        stopTimeEvent.setTime(prediction.getEpochTime() / 1000);
+        stopTimeUpdate.setDeparture(stopTimeEvent);
+        tripUpdate.addStopTimeUpdate(stopTimeUpdate);
+      }
+      FeedEntity.Builder feedEntity = FeedEntity.newBuilder();
+      feedEntity.setId(id.getFeedEntityId());
+      feedEntity.setTripUpdate(tripUpdate);
+      update.addUpdatedEntity(feedEntity.build());
+    }
+    return update;
+  }
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.nextbus.jfr;
+
+import org.onebusaway.gtfs_realtime.nextbus.services.PipelineStage;
+import org.onebusaway.gtfs_realtime.nextbus.services.PipelineTracer;
+
+/**
+ * Reports each stage of the processing pipeline as a flight recorder event.
+ * When no recording has the event enabled, {@link #begin(PipelineStage)}
+ * returns null and the stage costs no more than an unused allocation.
+ */
+public class JfrPipelineTracer extends PipelineTracer {
+
+  @Override
+  public Object begin(PipelineStage stage) {
+    PipelineStageEvent event = createEvent(stage);
+    if (!event.isEnabled()) {
+      return null;
+    }
+    event.begin();
+    return event;
+  }
+
+  @Override
+  public void end(Object token, String routeTag, long bytes, int count) {
+    if (token == null) {
+      return;
+    }
+    PipelineStageEvent event = (PipelineStageEvent) token;
+    event.end();
+    if (event.shouldCommit()) {
+      event.routeTag = routeTag;
+      event.bytes = bytes;
+      event.count = count;
+      event.commit();
+    }
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  private static PipelineStageEvent createEvent(PipelineStage stage) {
+    switch (stage) {
+      case DOWNLOAD:
+        return new DownloadEvent();
+      case PARSE:
+        return new ParseEvent();
+      case MAP_TO_GTFS:
+        return new MapToGtfsEvent();
+      case PROCESS_PREDICTIONS:
+        return new ProcessPredictionsEvent();
+      case GTFS_READ:
+        return new GtfsReadEvent();
+      case POTENTIAL_STOP_MATCHING:
+        return new PotentialStopMatchingEvent();
+      case ROUTE_MATCHING:
+        return new RouteMatchingEvent();
+      case STOP_MATCHING:
+        return new StopMatchingEvent();
+      case TRIP_MATCHING:
+        return new TripMatchingEvent();
+      default:
+        throw new IllegalStateException("unknown pipeline stage: " + stage);
+    }
+  }
+}
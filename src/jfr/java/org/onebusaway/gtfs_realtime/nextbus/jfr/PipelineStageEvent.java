@@ -0,0 +1,46 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.nextbus.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.StackTrace;
+
+/**
+ * Base class for the flight recorder events emitted for each stage of the
+ * processing pipeline. Each stage gets its own event type, so thresholds can be
+ * set per stage in a recording's settings.
+ */
+@Category({"OneBusAway", "NextBus"})
+@StackTrace(false)
+public abstract class PipelineStageEvent extends Event {
+
+  @Label("Route Tag")
+  @Description("The NextBus route tag the stage worked on")
+  String routeTag;
+
+  @Label("Bytes")
+  @Description("The number of bytes transferred, or -1 if unknown")
+  @DataAmount
+  long bytes;
+
+  @Label("Count")
+  @Description("The number of elements produced by the stage")
+  int count;
+}
@@ -33,9 +33,15 @@ import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeServlet;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeSource;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeGuiceBindingTypes.TripUpdates;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeGuiceBindingTypes.VehiclePositions;
+import org.onebusaway.gtfs_realtime.nextbus.services.DownloaderService;
+import org.onebusaway.gtfs_realtime.nextbus.services.HealthServlet;
+import org.onebusaway.gtfs_realtime.nextbus.services.MetricsServlet;
 import org.onebusaway.gtfs_realtime.nextbus.services.NextBusApiService;
 import org.onebusaway.gtfs_realtime.nextbus.services.NextBusToGtfsRealtimeService;
 import org.onebusaway.gtfs_realtime.nextbus.services.NextBusToGtfsService;
+import org.onebusaway.gtfs_realtime.nextbus.services.ReplayDownloaderService;
+import org.onebusaway.gtfs_realtime.nextbus.services.RouteStopCoverageService;
+import org.onebusaway.gtfs_realtime.nextbus.services.StartupProfiler;
 import org.onebusaway.guice.jsr250.LifecycleService;
 
 import com.google.inject.Guice;
@@ -60,15 +66,37 @@ public class NextBusToGtfsRealtimeMain {
 
   private static final String ARG_GTFS_TRIP_MATCHING = "gtfsTripMatching";
 
+  private static final String ARG_GTFS_RELOAD_INTERVAL = "gtfsReloadInterval";
+
+  private static final String ARG_ROTATING_STOP_COVERAGE = "rotatingStopCoverage";
+
+  private static final String ARG_ADAPTIVE_STOP_COVERAGE = "adaptiveStopCoverage";
+
+  private static final String ARG_METRICS_URL = "metricsUrl";
+
+  private static final String ARG_HEALTH_URL = "healthUrl";
+
+  private static final String ARG_CAPTURE_DIR = "captureDir";
+
+  private static final String ARG_REPLAY_DIR = "replayDir";
+
+  private static final String ARG_REPLAY_SPEED = "replaySpeed";
+
+  private static final String ARG_STARTUP_PROFILE = "startupProfile";
+
   public static void main(String[] args) throws Exception {
     NextBusToGtfsRealtimeMain m = new NextBusToGtfsRealtimeMain();
     m.run(args);
   }
 
+  private DownloaderService _downloaderService;
+
   private NextBusApiService _nextBusApiService;
 
   private NextBusToGtfsService _matchingService;
 
+  private RouteStopCoverageService _routeStopCoverageService;
+
   private GtfsRealtimeSource _tripUpdatesSource;
 
   private GtfsRealtimeSource _vehiclePositionsSource;
@@ -77,6 +105,13 @@ public class NextBusToGtfsRealtimeMain {
 
   private LifecycleService _lifecycleService;
 
+  private StartupProfiler _startupProfiler;
+
+  @Inject
+  public void setDownloaderService(DownloaderService downloaderService) {
+    _downloaderService = downloaderService;
+  }
+
   @Inject
   public void setNextBusApiService(NextBusApiService nextBusApiService) {
     _nextBusApiService = nextBusApiService;
@@ -87,6 +122,12 @@ public class NextBusToGtfsRealtimeMain {
     _matchingService = matchingService;
   }
 
+  @Inject
+  public void setRouteStopCoverageService(
+      RouteStopCoverageService routeStopCoverageService) {
+    _routeStopCoverageService = routeStopCoverageService;
+  }
+
   @Inject
   public void setTripUpdatesSource(@TripUpdates
   GtfsRealtimeSource tripUpdatesSource) {
@@ -110,6 +151,11 @@ public class NextBusToGtfsRealtimeMain {
     _lifecycleService = lifecycleService;
   }
 
+  @Inject
+  public void setStartupProfiler(StartupProfiler startupProfiler) {
+    _startupProfiler = startupProfiler;
+  }
+
   public void run(String[] args) throws Exception {
 
     if (args.length == 0 || CommandLineInterfaceLibrary.wantsHelp(args)) {
@@ -158,17 +204,61 @@ public class NextBusToGtfsRealtimeMain {
       _nextBusToGtfsRealtimeService.setEnableVehiclePositions(true);
     }
 
+    if (cli.hasOption(ARG_METRICS_URL)) {
+      MetricsServlet servlet = injector.getInstance(MetricsServlet.class);
+      servlet.setUrl(new URL(cli.getOptionValue(ARG_METRICS_URL)));
+    }
+    if (cli.hasOption(ARG_HEALTH_URL)) {
+      HealthServlet servlet = injector.getInstance(HealthServlet.class);
+      servlet.setUrl(new URL(cli.getOptionValue(ARG_HEALTH_URL)));
+    }
+
     if (cli.hasOption(ARG_CACHE_DIR)) {
       File cacheDir = new File(cli.getOptionValue(ARG_CACHE_DIR));
       cacheDir.mkdirs();
       _nextBusApiService.setCacheDirectory(cacheDir);
+      _matchingService.setCacheDirectory(cacheDir);
     }
     if (cli.hasOption(ARG_GTFS_PATH)) {
       _matchingService.setGtfsPath(new File(cli.getOptionValue(ARG_GTFS_PATH)));
     }
     _matchingService.setGtfsTripMatching(cli.hasOption(ARG_GTFS_TRIP_MATCHING));
+    if (cli.hasOption(ARG_GTFS_RELOAD_INTERVAL)) {
+      _matchingService.setGtfsReloadInterval(Integer.parseInt(cli.getOptionValue(ARG_GTFS_RELOAD_INTERVAL)));
+    }
+    _routeStopCoverageService.setRotatingStopCoverage(cli.hasOption(ARG_ROTATING_STOP_COVERAGE));
+    _routeStopCoverageService.setAdaptiveStopCoverage(cli.hasOption(ARG_ADAPTIVE_STOP_COVERAGE));
 
-    _lifecycleService.start();
+    if (cli.hasOption(ARG_CAPTURE_DIR)) {
+      _downloaderService.setCaptureDirectory(new File(
+          cli.getOptionValue(ARG_CAPTURE_DIR)));
+    }
+    if (cli.hasOption(ARG_REPLAY_DIR)) {
+      ReplayDownloaderService replay = new ReplayDownloaderService(new File(
+          cli.getOptionValue(ARG_REPLAY_DIR)));
+      if (cli.hasOption(ARG_REPLAY_SPEED)) {
+        double speed = Double.parseDouble(cli.getOptionValue(ARG_REPLAY_SPEED));
+        if (!(speed > 0)) {
+          System.err.println("--" + ARG_REPLAY_SPEED + " must be greater than 0");
+          printUsage();
+          System.exit(-1);
+        }
+        replay.setSpeed(speed);
+        int interval = _nextBusToGtfsRealtimeService.getMinimumTimeBetweenRequests();
+        _nextBusToGtfsRealtimeService.setMinimumTimeBetweenRequests(Math.max(
+            1, (int) Math.round(interval / speed)));
+      }
+      _nextBusApiService.setDownloader(replay);
+    }
+
+    if (cli.hasOption(ARG_STARTUP_PROFILE)) {
+      _startupProfiler.start();
+    }
+    try {
+      _lifecycleService.start();
+    } finally {
+      _startupProfiler.finish();
+    }
   }
 
   private void printUsage() {
@@ -185,9 +275,27 @@ public class NextBusToGtfsRealtimeMain {
     options.addOption(ARG_VEHICLE_POSITIONS_PATH, true,
         "vehicle positions path");
     options.addOption(ARG_VEHICLE_POSITIONS_URL, true, "vehicle positions url");
+    options.addOption(ARG_METRICS_URL, true,
+        "url to serve Prometheus metrics at");
+    options.addOption(ARG_HEALTH_URL, true,
+        "url to serve feed health at");
     options.addOption(ARG_CACHE_DIR, true, "route configuration cache path");
     options.addOption(ARG_GTFS_PATH, true, "gtfs path");
     options.addOption(ARG_GTFS_TRIP_MATCHING, false,
         "enable gtfs trip matching");
+    options.addOption(ARG_GTFS_RELOAD_INTERVAL, true,
+        "how often, in seconds, to check the gtfs path for changes (0 to disable)");
+    options.addOption(ARG_ROTATING_STOP_COVERAGE, false,
+        "enable rotating stop coverage");
+    options.addOption(ARG_ADAPTIVE_STOP_COVERAGE, false,
+        "enable adaptive stop coverage");
+    options.addOption(ARG_CAPTURE_DIR, true,
+        "capture all NextBus API responses to an archive in this directory");
+    options.addOption(ARG_REPLAY_DIR, true,
+        "replay NextBus API responses from a capture archive in this directory");
+    options.addOption(ARG_REPLAY_SPEED, true,
+        "replay speed, as a multiple of real time (default 1)");
+    options.addOption(ARG_STARTUP_PROFILE, false,
+        "log the wall time, CPU time and peak heap of each startup phase");
   }
 }
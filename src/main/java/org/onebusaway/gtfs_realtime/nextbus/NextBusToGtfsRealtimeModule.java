@@ -21,9 +21,13 @@ import java.util.concurrent.ScheduledExecutorService;
 
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeExporterModule;
 import org.onebusaway.gtfs_realtime.nextbus.services.DownloaderService;
+import org.onebusaway.gtfs_realtime.nextbus.services.FeedHealthService;
+import org.onebusaway.gtfs_realtime.nextbus.services.MetricsService;
 import org.onebusaway.gtfs_realtime.nextbus.services.NextBusToGtfsRealtimeService;
 import org.onebusaway.gtfs_realtime.nextbus.services.NextBusToGtfsService;
+import org.onebusaway.gtfs_realtime.nextbus.services.PipelineTracer;
 import org.onebusaway.gtfs_realtime.nextbus.services.RouteStopCoverageService;
+import org.onebusaway.gtfs_realtime.nextbus.services.StartupProfiler;
 import org.onebusaway.guice.jsr250.JSR250Module;
 
 import com.google.inject.AbstractModule;
@@ -40,6 +44,10 @@ public class NextBusToGtfsRealtimeModule extends AbstractModule {
   @Override
   protected void configure() {
     bind(DownloaderService.class);
+    bind(MetricsService.class);
+    bind(FeedHealthService.class);
+    bind(PipelineTracer.class).toInstance(PipelineTracer.load());
+    bind(StartupProfiler.class);
     bind(RouteStopCoverageService.class);
     bind(NextBusToGtfsRealtimeService.class);
     bind(NextBusToGtfsService.class);
@@ -0,0 +1,82 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.nextbus.model;
+
+import java.io.File;
+
+/**
+ * A single response in a download capture archive: where the response came
+ * from and when, plus where its raw body lives on disk, so that the body itself
+ * can be read back only when it's needed.
+ */
+public class CapturedDownload {
+
+  private final long timestamp;
+
+  private final String url;
+
+  private final String contentEncoding;
+
+  private final File segment;
+
+  private final long offset;
+
+  private final int length;
+
+  /**
+   * 
+   * @param timestamp when the request was made
+   * @param url
+   * @param contentEncoding the Content-Encoding of the response, or null if
+   *          none
+   * @param segment the archive segment file holding the response body
+   * @param offset the offset of the body within the segment
+   * @param length the length of the body, as sent over the wire
+   */
+  public CapturedDownload(long timestamp, String url, String contentEncoding,
+      File segment, long offset, int length) {
+    this.timestamp = timestamp;
+    this.url = url;
+    this.contentEncoding = contentEncoding;
+    this.segment = segment;
+    this.offset = offset;
+    this.length = length;
+  }
+
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  public String getUrl() {
+    return url;
+  }
+
+  public String getContentEncoding() {
+    return contentEncoding;
+  }
+
+  public File getSegment() {
+    return segment;
+  }
+
+  public long getOffset() {
+    return offset;
+  }
+
+  public int getLength() {
+    return length;
+  }
+}
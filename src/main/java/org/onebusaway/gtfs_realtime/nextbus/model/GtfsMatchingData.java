@@ -0,0 +1,142 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.nextbus.model;
+
+import java.util.List;
+import java.util.Map;
+
+import org.onebusaway.gtfs.model.Stop;
+import org.onebusaway.gtfs.model.Trip;
+import org.onebusaway.gtfs.services.GtfsRelationalDao;
+
+/**
+ * The subset of a GTFS feed we need for matching NextBus routes, stops, and
+ * blocks. Agencies, routes, stops, trips, and calendars are kept as GTFS
+ * entities in a {@link GtfsRelationalDao}, since there are relatively few of
+ * them. Stop times, which dominate the size of a feed, are instead stored as
+ * parallel primitive arrays, grouped by trip and sorted by stop sequence
+ * within each trip.
+ * 
+ * Instances are built by {@link GtfsMatchingDataBuilder} and treated as
+ * read-only after.
+ */
+public class GtfsMatchingData {
+
+  /**
+   * Value of an arrival or departure time that isn't specified in the feed
+   */
+  public static final int MISSING_VALUE = -999;
+
+  private final GtfsRelationalDao dao;
+
+  private final List<Trip> trips;
+
+  private final Map<Trip, Integer> tripIndices;
+
+  private final List<Stop> stops;
+
+  /**
+   * The stop times of trip i are in [tripStarts[i], tripStarts[i+1])
+   */
+  private final int[] tripStarts;
+
+  private final int[] stopIndices;
+
+  private final int[] arrivalTimes;
+
+  private final int[] departureTimes;
+
+  private final int[] stopSequences;
+
+  GtfsMatchingData(GtfsRelationalDao dao, List<Trip> trips,
+      Map<Trip, Integer> tripIndices, List<Stop> stops, int[] tripStarts,
+      int[] stopIndices, int[] arrivalTimes, int[] departureTimes,
+      int[] stopSequences) {
+    this.dao = dao;
+    this.trips = trips;
+    this.tripIndices = tripIndices;
+    this.stops = stops;
+    this.tripStarts = tripStarts;
+    this.stopIndices = stopIndices;
+    this.arrivalTimes = arrivalTimes;
+    this.departureTimes = departureTimes;
+    this.stopSequences = stopSequences;
+  }
+
+  /**
+   * @return the agencies, routes, stops, trips, and calendars of the feed
+   */
+  public GtfsRelationalDao getDao() {
+    return dao;
+  }
+
+  public int getTripCount() {
+    return trips.size();
+  }
+
+  public Trip getTrip(int tripIndex) {
+    return trips.get(tripIndex);
+  }
+
+  /**
+   * 
+   * @param trip
+   * @return the index of the trip, or -1 if it isn't part of this data
+   */
+  public int getTripIndex(Trip trip) {
+    Integer index = tripIndices.get(trip);
+    return index == null ? -1 : index;
+  }
+
+  /**
+   * @return the index of the first stop time of the trip
+   */
+  public int getStartOfTrip(int tripIndex) {
+    return tripStarts[tripIndex];
+  }
+
+  /**
+   * @return one past the index of the last stop time of the trip
+   */
+  public int getEndOfTrip(int tripIndex) {
+    return tripStarts[tripIndex + 1];
+  }
+
+  public int getStopTimeCount() {
+    return stopIndices.length;
+  }
+
+  public Stop getStop(int stopTimeIndex) {
+    return stops.get(stopIndices[stopTimeIndex]);
+  }
+
+  public int getArrivalTime(int stopTimeIndex) {
+    return arrivalTimes[stopTimeIndex];
+  }
+
+  public int getDepartureTime(int stopTimeIndex) {
+    return departureTimes[stopTimeIndex];
+  }
+
+  public int getStopSequence(int stopTimeIndex) {
+    return stopSequences[stopTimeIndex];
+  }
+
+  public boolean isArrivalAndDepartureTimeSet(int stopTimeIndex) {
+    return arrivalTimes[stopTimeIndex] != MISSING_VALUE
+        && departureTimes[stopTimeIndex] != MISSING_VALUE;
+  }
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.nextbus.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.onebusaway.gtfs.model.Stop;
+import org.onebusaway.gtfs.model.Trip;
+import org.onebusaway.gtfs.services.GtfsRelationalDao;
+
+/**
+ * Accumulates stops, trips, and stop times, in any order, and packs them into
+ * a {@link GtfsMatchingData}.
+ */
+public class GtfsMatchingDataBuilder {
+
+  private final List<Stop> stops = new ArrayList<Stop>();
+
+  private final List<Trip> trips = new ArrayList<Trip>();
+
+  private final Map<Trip, Integer> tripIndices = new HashMap<Trip, Integer>();
+
+  private int[] tripColumn = new int[1024];
+
+  private int[] stopColumn = new int[1024];
+
+  private int[] arrivalColumn = new int[1024];
+
+  private int[] departureColumn = new int[1024];
+
+  private int[] sequenceColumn = new int[1024];
+
+  private int stopTimeCount = 0;
+
+  /**
+   * @return the index of the added stop
+   */
+  public int addStop(Stop stop) {
+    stops.add(stop);
+    return stops.size() - 1;
+  }
+
+  /**
+   * @return the index of the added trip
+   */
+  public int addTrip(Trip trip) {
+    int index = trips.size();
+    trips.add(trip);
+    tripIndices.put(trip, index);
+    return index;
+  }
+
+  /**
+   * 
+   * @param tripIndex as returned by {@link #addTrip(Trip)}
+   * @param stopIndex as returned by {@link #addStop(Stop)}
+   * @param arrivalTime or {@link GtfsMatchingData#MISSING_VALUE}
+   * @param departureTime or {@link GtfsMatchingData#MISSING_VALUE}
+   * @param stopSequence
+   */
+  public void addStopTime(int tripIndex, int stopIndex, int arrivalTime,
+      int departureTime, int stopSequence) {
+    if (stopTimeCount == tripColumn.length) {
+      int capacity = stopTimeCount * 2;
+      tripColumn = Arrays.copyOf(tripColumn, capacity);
+      stopColumn = Arrays.copyOf(stopColumn, capacity);
+      arrivalColumn = Arrays.copyOf(arrivalColumn, capacity);
+      departureColumn = Arrays.copyOf(departureColumn, capacity);
+      sequenceColumn = Arrays.copyOf(sequenceColumn, capacity);
+    }
+    tripColumn[stopTimeCount] = tripIndex;
+    stopColumn[stopTimeCount] = stopIndex;
+    arrivalColumn[stopTimeCount] = arrivalTime;
+    departureColumn[stopTimeCount] = departureTime;
+    sequenceColumn[stopTimeCount] = stopSequence;
+    stopTimeCount++;
+  }
+
+  public GtfsMatchingData build(GtfsRelationalDao dao) {
+
+    /**
+     * Counting sort of the stop times by trip
+     */
+    int tripCount = trips.size();
+    int[] tripStarts = new int[tripCount + 1];
+    for (int i = 0; i < stopTimeCount; ++i) {
+      tripStarts[tripColumn[i] + 1]++;
+    }
+    for (int i = 0; i < tripCount; ++i) {
+      tripStarts[i + 1] += tripStarts[i];
+    }
+
+    int[] stopIndices = new int[stopTimeCount];
+    int[] arrivalTimes = new int[stopTimeCount];
+    int[] departureTimes = new int[stopTimeCount];
+    int[] stopSequences = new int[stopTimeCount];
+    int[] next = Arrays.copyOf(tripStarts, tripCount);
+    for (int i = 0; i < stopTimeCount; ++i) {
+      int position = next[tripColumn[i]]++;
+      stopIndices[position] = stopColumn[i];
+      arrivalTimes[position] = arrivalColumn[i];
+      departureTimes[position] = departureColumn[i];
+      stopSequences[position] = sequenceColumn[i];
+    }
+
+    /**
+     * Stop times are almost always listed in sequence order already, so an
+     * insertion sort of each trip is effectively linear
+     */
+    for (int trip = 0; trip < tripCount; ++trip) {
+      int from = tripStarts[trip];
+      int to = tripStarts[trip + 1];
+      for (int i = from + 1; i < to; ++i) {
+        int stopIndex = stopIndices[i];
+        int arrivalTime = arrivalTimes[i];
+        int departureTime = departureTimes[i];
+        int stopSequence = stopSequences[i];
+        int j = i - 1;
+        while (j >= from && stopSequences[j] > stopSequence) {
+          stopIndices[j + 1] = stopIndices[j];
+          arrivalTimes[j + 1] = arrivalTimes[j];
+          departureTimes[j + 1] = departureTimes[j];
+          stopSequences[j + 1] = stopSequences[j];
+          j--;
+        }
+        stopIndices[j + 1] = stopIndex;
+        arrivalTimes[j + 1] = arrivalTime;
+        departureTimes[j + 1] = departureTime;
+        stopSequences[j + 1] = stopSequence;
+      }
+    }
+
+    return new GtfsMatchingData(dao, trips, tripIndices, stops, tripStarts,
+        stopIndices, arrivalTimes, departureTimes, stopSequences);
+  }
+}
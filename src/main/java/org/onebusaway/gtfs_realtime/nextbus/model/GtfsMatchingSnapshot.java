@@ -0,0 +1,323 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.nextbus.model;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.onebusaway.gtfs_realtime.nextbus.model.StopTimeMappings.ServiceStopTimeIndices;
+
+/**
+ * The results of matching NextBus routes, stops, and blocks to GTFS, in a form
+ * that can be written to disk and read back on restart, so that we don't have
+ * to redo the matching when neither the GTFS nor the NextBus route configs
+ * have changed.
+ * 
+ * The file starts with a format version and a key, typically a fingerprint of
+ * the matching inputs, and {@link #read(File, String)} ignores files with a
+ * different version or key. The rest of the file is a flat binary encoding
+ * that is read back through a memory-mapped buffer.
+ */
+public class GtfsMatchingSnapshot {
+
+  private static final int MAGIC = 0x4E42474D;
+
+  private static final int VERSION = 1;
+
+  private final String timeZoneId;
+
+  private final Map<String, String> routeIdMappings;
+
+  private final Map<RouteDirectionStopKey, String> stopIdMappings;
+
+  private final StopTimeMappings stopTimeMappings;
+
+  /**
+   * 
+   * @param timeZoneId the GTFS agency time zone
+   * @param routeIdMappings
+   * @param stopIdMappings
+   * @param stopTimeMappings null if trip matching is disabled
+   */
+  public GtfsMatchingSnapshot(String timeZoneId,
+      Map<String, String> routeIdMappings,
+      Map<RouteDirectionStopKey, String> stopIdMappings,
+      StopTimeMappings stopTimeMappings) {
+    this.timeZoneId = timeZoneId;
+    this.routeIdMappings = routeIdMappings;
+    this.stopIdMappings = stopIdMappings;
+    this.stopTimeMappings = stopTimeMappings;
+  }
+
+  public String getTimeZoneId() {
+    return timeZoneId;
+  }
+
+  public Map<String, String> getRouteIdMappings() {
+    return routeIdMappings;
+  }
+
+  public Map<RouteDirectionStopKey, String> getStopIdMappings() {
+    return stopIdMappings;
+  }
+
+  public StopTimeMappings getStopTimeMappings() {
+    return stopTimeMappings;
+  }
+
+  /**
+   * Writes the snapshot to a temporary file that is then renamed into place,
+   * so a reader never sees a partially-written snapshot.
+   * 
+   * @param file
+   * @param key
+   * @throws IOException
+   */
+  public void write(File file, String key) throws IOException {
+    File tmp = new File(file.getPath() + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(tmp)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      writeString(out, key);
+      writeString(out, timeZoneId);
+
+      out.writeInt(routeIdMappings.size());
+      for (Map.Entry<String, String> entry : routeIdMappings.entrySet()) {
+        writeString(out, entry.getKey());
+        writeString(out, entry.getValue());
+      }
+
+      out.writeInt(stopIdMappings.size());
+      for (Map.Entry<RouteDirectionStopKey, String> entry : stopIdMappings.entrySet()) {
+        RouteDirectionStopKey stopKey = entry.getKey();
+        writeString(out, stopKey.getRouteTag());
+        writeString(out, stopKey.getDirectionTag());
+        writeString(out, stopKey.getStopTag());
+        writeString(out, entry.getValue());
+      }
+
+      out.writeBoolean(stopTimeMappings != null);
+      if (stopTimeMappings != null) {
+        writeStopTimeMappings(out, stopTimeMappings);
+      }
+    } finally {
+      out.close();
+    }
+    if (file.exists() && !file.delete()) {
+      throw new IOException("unable to replace snapshot " + file);
+    }
+    if (!tmp.renameTo(file)) {
+      throw new IOException("unable to rename snapshot " + tmp + " to "
+          + file);
+    }
+  }
+
+  /**
+   * 
+   * @param file
+   * @param key
+   * @return the snapshot, or null if the file doesn't exist or was written
+   *         with a different format version or key
+   * @throws IOException
+   */
+  public static GtfsMatchingSnapshot read(File file, String key)
+      throws IOException {
+    if (!file.exists()) {
+      return null;
+    }
+    FileInputStream in = new FileInputStream(file);
+    try {
+      FileChannel channel = in.getChannel();
+      ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+          channel.size());
+      if (buffer.remaining() < 8 || buffer.getInt() != MAGIC
+          || buffer.getInt() != VERSION || !key.equals(readString(buffer))) {
+        return null;
+      }
+      String timeZoneId = readString(buffer);
+
+      int routeCount = buffer.getInt();
+      Map<String, String> routeIdMappings = new HashMap<String, String>();
+      for (int i = 0; i < routeCount; ++i) {
+        routeIdMappings.put(readString(buffer), readString(buffer));
+      }
+
+      int stopCount = buffer.getInt();
+      Map<RouteDirectionStopKey, String> stopIdMappings = new HashMap<RouteDirectionStopKey, String>();
+      for (int i = 0; i < stopCount; ++i) {
+        RouteDirectionStopKey stopKey = new RouteDirectionStopKey(
+            readString(buffer), readString(buffer), readString(buffer));
+        stopIdMappings.put(stopKey, readString(buffer));
+      }
+
+      StopTimeMappings stopTimeMappings = null;
+      if (buffer.get() != 0) {
+        stopTimeMappings = readStopTimeMappings(buffer);
+      }
+
+      return new GtfsMatchingSnapshot(timeZoneId, routeIdMappings,
+          stopIdMappings, stopTimeMappings);
+    } finally {
+      in.close();
+    }
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  private static void writeStopTimeMappings(DataOutputStream out,
+      StopTimeMappings mappings) throws IOException {
+
+    writeIdTable(out, mappings.getStopIds());
+    writeIdTable(out, mappings.getTripIds());
+
+    ServiceIdActiveDates activeDates = mappings.getActiveDates();
+    out.writeInt(activeDates.size());
+    for (int i = 0; i < activeDates.size(); ++i) {
+      out.writeInt(activeDates.getFirstDay(i));
+      long[] words = getWords(activeDates.getActiveDays(i));
+      out.writeInt(words.length);
+      for (long word : words) {
+        out.writeLong(word);
+      }
+    }
+
+    Map<RouteBlockKey, List<ServiceStopTimeIndices>> indicesByBlock = mappings.getIndicesByBlock();
+    out.writeInt(indicesByBlock.size());
+    for (Map.Entry<RouteBlockKey, List<ServiceStopTimeIndices>> entry : indicesByBlock.entrySet()) {
+      RouteBlockKey blockKey = entry.getKey();
+      writeString(out, blockKey.getRoute());
+      writeString(out, blockKey.getBlock());
+      out.writeInt(entry.getValue().size());
+      for (ServiceStopTimeIndices serviceIndices : entry.getValue()) {
+        out.writeInt(serviceIndices.serviceIndex);
+        StopTimeIndices indices = serviceIndices.indices;
+        out.writeInt(indices.size());
+        for (int i = 0; i < indices.size(); ++i) {
+          out.writeInt(indices.getStopOrdinal(i));
+          out.writeInt(indices.getTime(i));
+          out.writeInt(indices.getTripOrdinal(i));
+        }
+      }
+    }
+  }
+
+  private static StopTimeMappings readStopTimeMappings(ByteBuffer buffer) {
+
+    ServiceIdActiveDates activeDates = new ServiceIdActiveDates();
+    StopTimeMappings mappings = new StopTimeMappings(activeDates);
+
+    readIdTable(buffer, mappings.getStopIds());
+    readIdTable(buffer, mappings.getTripIds());
+
+    int serviceCount = buffer.getInt();
+    for (int i = 0; i < serviceCount; ++i) {
+      int firstDay = buffer.getInt();
+      long[] words = new long[buffer.getInt()];
+      for (int j = 0; j < words.length; ++j) {
+        words[j] = buffer.getLong();
+      }
+      activeDates.addActiveDays(firstDay, getBitSet(words));
+    }
+
+    int blockCount = buffer.getInt();
+    for (int i = 0; i < blockCount; ++i) {
+      String route = readString(buffer);
+      String block = readString(buffer);
+      int entryCount = buffer.getInt();
+      for (int j = 0; j < entryCount; ++j) {
+        int serviceIndex = buffer.getInt();
+        int n = buffer.getInt();
+        int[] stopOrdinals = new int[n];
+        int[] times = new int[n];
+        int[] tripOrdinals = new int[n];
+        for (int k = 0; k < n; ++k) {
+          stopOrdinals[k] = buffer.getInt();
+          times[k] = buffer.getInt();
+          tripOrdinals[k] = buffer.getInt();
+        }
+        StopTimeIndices indices = StopTimeIndices.create(stopOrdinals, times,
+            tripOrdinals, mappings.getStopIds(), mappings.getTripIds());
+        mappings.putStopTimeIndices(route, block, serviceIndex, indices);
+      }
+    }
+
+    return mappings;
+  }
+
+  private static void writeIdTable(DataOutputStream out, IdTable table)
+      throws IOException {
+    out.writeInt(table.size());
+    for (int i = 0; i < table.size(); ++i) {
+      writeString(out, table.getId(i));
+    }
+  }
+
+  private static void readIdTable(ByteBuffer buffer, IdTable table) {
+    int n = buffer.getInt();
+    for (int i = 0; i < n; ++i) {
+      table.intern(readString(buffer));
+    }
+  }
+
+  private static long[] getWords(BitSet bits) {
+    long[] words = new long[(bits.length() + 63) / 64];
+    for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+      words[i / 64] |= 1L << (i % 64);
+    }
+    return words;
+  }
+
+  private static BitSet getBitSet(long[] words) {
+    BitSet bits = new BitSet(words.length * 64);
+    for (int i = 0; i < words.length * 64; ++i) {
+      if ((words[i / 64] & (1L << (i % 64))) != 0) {
+        bits.set(i);
+      }
+    }
+    return bits;
+  }
+
+  private static void writeString(DataOutputStream out, String value)
+      throws IOException {
+    byte[] bytes = value.getBytes("UTF-8");
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.getInt()];
+    buffer.get(bytes);
+    try {
+      return new String(bytes, "UTF-8");
+    } catch (IOException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.nextbus.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Interns string ids as dense integer ordinals, so that indices over GTFS
+ * entities can be stored as primitive arrays and compared by ordinal instead of
+ * by string.
+ */
+public class IdTable {
+
+  private final Map<String, Integer> ordinalsById = new HashMap<String, Integer>();
+
+  private final List<String> ids = new ArrayList<String>();
+
+  /**
+   * 
+   * @param id
+   * @return the ordinal for the specified id, assigning a new one if needed
+   */
+  public int intern(String id) {
+    Integer ordinal = ordinalsById.get(id);
+    if (ordinal == null) {
+      ordinal = ids.size();
+      ids.add(id);
+      ordinalsById.put(id, ordinal);
+    }
+    return ordinal;
+  }
+
+  /**
+   * 
+   * @param id
+   * @return the ordinal for the specified id, or -1 if it hasn't been interned
+   */
+  public int getOrdinal(String id) {
+    Integer ordinal = ordinalsById.get(id);
+    return ordinal == null ? -1 : ordinal;
+  }
+
+  public String getId(int ordinal) {
+    return ids.get(ordinal);
+  }
+
+  public int size() {
+    return ids.size();
+  }
+}
@@ -15,26 +15,27 @@
  */
 package org.onebusaway.gtfs_realtime.nextbus.model;
 
-import org.onebusaway.gtfs.model.calendar.ServiceDate;
-
-public class ServiceDateBlockKey {
+public class RouteBlockKey {
 
   private final String route;
 
   private final String block;
 
-  private final ServiceDate serviceDate;
-
-  public ServiceDateBlockKey(String route, String block, ServiceDate serviceDate) {
+  public RouteBlockKey(String route, String block) {
     if (route == null)
       throw new IllegalArgumentException();
     if (block == null)
       throw new IllegalArgumentException();
-    if (serviceDate == null)
-      throw new IllegalArgumentException();
     this.route = route;
     this.block = block;
-    this.serviceDate = serviceDate;
+  }
+
+  public String getRoute() {
+    return route;
+  }
+
+  public String getBlock() {
+    return block;
   }
 
   @Override
@@ -43,7 +44,6 @@ public class ServiceDateBlockKey {
     int result = 1;
     result = prime * result + route.hashCode();
     result = prime * result + block.hashCode();
-    result = prime * result + serviceDate.hashCode();
     return result;
   }
 
@@ -55,18 +55,16 @@ public class ServiceDateBlockKey {
       return false;
     if (getClass() != obj.getClass())
       return false;
-    ServiceDateBlockKey other = (ServiceDateBlockKey) obj;
+    RouteBlockKey other = (RouteBlockKey) obj;
     if (!route.equals(other.route))
       return false;
     if (!block.equals(other.block))
       return false;
-    if (!serviceDate.equals(other.serviceDate))
-      return false;
     return true;
   }
 
   @Override
   public String toString() {
-    return route + " " + block + " " + serviceDate;
+    return route + " " + block;
   }
 }
@@ -27,6 +27,18 @@ public class RouteDirectionStopKey {
     this.stopTag = stopTag;
   }
 
+  public String getRouteTag() {
+    return routeTag;
+  }
+
+  public String getDirectionTag() {
+    return directionTag;
+  }
+
+  public String getStopTag() {
+    return stopTag;
+  }
+
   @Override
   public int hashCode() {
     final int prime = 31;
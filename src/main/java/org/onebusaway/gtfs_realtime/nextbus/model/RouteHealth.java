@@ -0,0 +1,102 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.nextbus.model;
+
+/**
+ * What we know about how recently a route was successfully processed. Instances
+ * are immutable, and are replaced as a whole each time the route is processed.
+ */
+public class RouteHealth {
+
+  private final String routeTag;
+
+  private final long firstSeenTime;
+
+  private final long lastSuccessTime;
+
+  private final int predictionCount;
+
+  private final long lastErrorTime;
+
+  private final String lastError;
+
+  /**
+   * 
+   * @param routeTag
+   * @param firstSeenTime when the route first appeared in the route
+   *          configuration
+   * @param lastSuccessTime when the route was last processed successfully, or
+   *          zero if never
+   * @param predictionCount the number of predictions in the last successful
+   *          update
+   * @param lastErrorTime when processing the route last failed, or zero if
+   *          never
+   * @param lastError a description of the last failure, or null if none
+   */
+  public RouteHealth(String routeTag, long firstSeenTime, long lastSuccessTime,
+      int predictionCount, long lastErrorTime, String lastError) {
+    this.routeTag = routeTag;
+    this.firstSeenTime = firstSeenTime;
+    this.lastSuccessTime = lastSuccessTime;
+    this.predictionCount = predictionCount;
+    this.lastErrorTime = lastErrorTime;
+    this.lastError = lastError;
+  }
+
+  public String getRouteTag() {
+    return routeTag;
+  }
+
+  public long getFirstSeenTime() {
+    return firstSeenTime;
+  }
+
+  public long getLastSuccessTime() {
+    return lastSuccessTime;
+  }
+
+  public int getPredictionCount() {
+    return predictionCount;
+  }
+
+  public long getLastErrorTime() {
+    return lastErrorTime;
+  }
+
+  public String getLastError() {
+    return lastError;
+  }
+
+  /**
+   * 
+   * @param now
+   * @return the time, in milliseconds, since the route was last updated, or
+   *         since it first appeared if it has never been updated
+   */
+  public long getStaleness(long now) {
+    return now - (lastSuccessTime != 0 ? lastSuccessTime : firstSeenTime);
+  }
+
+  public RouteHealth withSuccess(long time, int predictionCount) {
+    return new RouteHealth(routeTag, firstSeenTime, time, predictionCount,
+        lastErrorTime, lastError);
+  }
+
+  public RouteHealth withError(long time, String error) {
+    return new RouteHealth(routeTag, firstSeenTime, lastSuccessTime,
+        predictionCount, time, error);
+  }
+}
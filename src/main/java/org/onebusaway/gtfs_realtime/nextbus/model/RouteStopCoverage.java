@@ -16,19 +16,41 @@
 package org.onebusaway.gtfs_realtime.nextbus.model;
 
 import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
+/**
+ * The set of stops we request real-time predictions for along a particular
+ * route. In addition to the fixed {@link #getStopTags()} selection, the
+ * coverage optionally carries a set of anchor stops that should be polled
+ * every cycle and a list of disjoint stop slices that can be polled
+ * round-robin, such that every stop along the route is covered within
+ * {@link #getStopTagSliceCount()} cycles.
+ */
 public class RouteStopCoverage implements Serializable {
 
-  private static final long serialVersionUID = 1L;
+  private static final long serialVersionUID = 2L;
 
   private final String routeTag;
 
   private final Set<String> stopTags;
 
+  private final Set<String> anchorStopTags;
+
+  private final List<Set<String>> stopTagSlices;
+
   public RouteStopCoverage(String routeTag, Set<String> stopTags) {
+    this(routeTag, stopTags, stopTags, Collections.<Set<String>> emptyList());
+  }
+
+  public RouteStopCoverage(String routeTag, Set<String> stopTags,
+      Set<String> anchorStopTags, List<Set<String>> stopTagSlices) {
     this.routeTag = routeTag;
     this.stopTags = stopTags;
+    this.anchorStopTags = anchorStopTags;
+    this.stopTagSlices = stopTagSlices;
   }
 
   public String getRouteTag() {
@@ -38,4 +60,32 @@ public class RouteStopCoverage implements Serializable {
   public Set<String> getStopTags() {
     return stopTags;
   }
+
+  public Set<String> getAnchorStopTags() {
+    return anchorStopTags;
+  }
+
+  public List<Set<String>> getStopTagSlices() {
+    return stopTagSlices;
+  }
+
+  public int getStopTagSliceCount() {
+    return stopTagSlices.size();
+  }
+
+  /**
+   * 
+   * @param cycle the index of the current processing cycle
+   * @return the anchor stops plus the stop slice scheduled for the specified
+   *         cycle, or the fixed stop selection if the coverage has no slices
+   */
+  public Set<String> getStopTagsForCycle(int cycle) {
+    if (stopTagSlices.isEmpty()) {
+      return stopTags;
+    }
+    Set<String> slice = stopTagSlices.get(cycle % stopTagSlices.size());
+    Set<String> tags = new HashSet<String>(anchorStopTags);
+    tags.addAll(slice);
+    return tags;
+  }
 }
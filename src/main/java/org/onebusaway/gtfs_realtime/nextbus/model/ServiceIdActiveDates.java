@@ -0,0 +1,102 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.nextbus.model;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
+
+/**
+ * A compact record of the dates each GTFS service id is active on. Each
+ * service id is assigned a small integer index and its active dates are stored
+ * as a bitmap of days relative to its first active date, so a year-long
+ * calendar costs about 50 bytes per service id.
+ */
+public class ServiceIdActiveDates {
+
+  private final List<Integer> firstDays = new ArrayList<Integer>();
+
+  private final List<BitSet> activeDays = new ArrayList<BitSet>();
+
+  /**
+   * 
+   * @param serviceDates the dates a service id is active on
+   * @return the index assigned to the service id
+   */
+  public int addServiceDates(Collection<ServiceDate> serviceDates) {
+    int firstDay = Integer.MAX_VALUE;
+    for (ServiceDate serviceDate : serviceDates) {
+      firstDay = Math.min(firstDay, getDayIndex(serviceDate));
+    }
+    BitSet days = new BitSet();
+    for (ServiceDate serviceDate : serviceDates) {
+      days.set(getDayIndex(serviceDate) - firstDay);
+    }
+    firstDays.add(firstDay);
+    activeDays.add(days);
+    return activeDays.size() - 1;
+  }
+
+  /**
+   * 
+   * @param firstDay the day index, as returned by
+   *          {@link #getDayIndex(ServiceDate)}, of the first active date
+   * @param days active days relative to firstDay
+   * @return the index assigned to the service id
+   */
+  int addActiveDays(int firstDay, BitSet days) {
+    firstDays.add(firstDay);
+    activeDays.add(days);
+    return activeDays.size() - 1;
+  }
+
+  int getFirstDay(int serviceIndex) {
+    return firstDays.get(serviceIndex);
+  }
+
+  BitSet getActiveDays(int serviceIndex) {
+    return activeDays.get(serviceIndex);
+  }
+
+  public boolean isActive(int serviceIndex, ServiceDate serviceDate) {
+    int day = getDayIndex(serviceDate) - firstDays.get(serviceIndex);
+    return day >= 0 && activeDays.get(serviceIndex).get(day);
+  }
+
+  public int size() {
+    return activeDays.size();
+  }
+
+  /**
+   * @param serviceDate
+   * @return the number of days between 1970-01-01 and the specified service
+   *         date, independent of time zone
+   */
+  public static int getDayIndex(ServiceDate serviceDate) {
+    int y = serviceDate.getYear();
+    int m = serviceDate.getMonth();
+    int d = serviceDate.getDay();
+    y -= m <= 2 ? 1 : 0;
+    int era = (y >= 0 ? y : y - 399) / 400;
+    int yoe = y - era * 400;
+    int doy = (153 * (m + (m > 2 ? -3 : 9)) + 2) / 5 + d - 1;
+    int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+    return era * 146097 + doe - 719468;
+  }
+}
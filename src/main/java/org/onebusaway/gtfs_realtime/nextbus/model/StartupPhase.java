@@ -0,0 +1,61 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.nextbus.model;
+
+/**
+ * The cost of one phase of startup, as recorded by the startup profiler.
+ */
+public class StartupPhase {
+
+  private final String name;
+
+  private final long wallTime;
+
+  private final long cpuTime;
+
+  private final long peakHeap;
+
+  /**
+   * 
+   * @param name
+   * @param wallTime elapsed time, in milliseconds
+   * @param cpuTime CPU time used by the whole process, in milliseconds, or -1
+   *          if the JVM doesn't tell us
+   * @param peakHeap peak heap usage during the phase, in bytes
+   */
+  public StartupPhase(String name, long wallTime, long cpuTime, long peakHeap) {
+    this.name = name;
+    this.wallTime = wallTime;
+    this.cpuTime = cpuTime;
+    this.peakHeap = peakHeap;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public long getWallTime() {
+    return wallTime;
+  }
+
+  public long getCpuTime() {
+    return cpuTime;
+  }
+
+  public long getPeakHeap() {
+    return peakHeap;
+  }
+}
@@ -15,59 +15,247 @@
  */
 package org.onebusaway.gtfs_realtime.nextbus.model;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-
-import org.onebusaway.collections.FactoryMap;
-import org.onebusaway.gtfs.model.StopTime;
+import java.util.Arrays;
+import java.util.Comparator;
 
+/**
+ * A compact, read-only index of the GTFS stop times scheduled for a block. The
+ * stop times are stored in time order as parallel arrays of interned stop
+ * ordinal, time, and trip ordinal, along with a per-stop {@link StopTimeIndex}
+ * keyed by stop ordinal. Nothing here references the GTFS entities the index
+ * was built from.
+ */
 public class StopTimeIndices {
 
-  private final List<StopTime> stopTimes;
+  private final IdTable stopIds;
+
+  private final IdTable tripIds;
+
+  private final int[] stopOrdinals;
+
+  private final int[] times;
+
+  private final int[] tripOrdinals;
 
-  private final Map<String, StopTimeIndex> indicesByStop;
+  /**
+   * The distinct stop ordinals in the block, sorted, parallel to
+   * {@link #indicesByStop}
+   */
+  private final int[] indexedStopOrdinals;
 
-  public static StopTimeIndices create(List<StopTime> stopTimes) {
-    Map<StopTime, Integer> stopTimeToPosition = new HashMap<StopTime, Integer>();
-    Map<String, List<StopTime>> stopTimesByStopId = new FactoryMap<String, List<StopTime>>(
-        new ArrayList<StopTime>());
-    for (int i = 0; i < stopTimes.size(); ++i) {
-      StopTime stopTime = stopTimes.get(i);
-      stopTimeToPosition.put(stopTime, i);
-      stopTimesByStopId.get(stopTime.getStop().getId().getId()).add(stopTime);
+  private final StopTimeIndex[] indicesByStop;
+
+  private final int minTime;
+
+  private final int maxTime;
+
+  /**
+   * 
+   * @param stopOrdinals interned stop ids of the block's stop times, in any
+   *          order
+   * @param times times of the block's stop times, in seconds since the start
+   *          of the service date
+   * @param stopSequences stop sequences of the block's stop times, used to
+   *          order stop times with the same time
+   * @param tripOrdinals interned trip ids of the block's stop times
+   * @param stopIds
+   * @param tripIds
+   * @return
+   */
+  public static StopTimeIndices create(int[] stopOrdinals, int[] times,
+      int[] stopSequences, int[] tripOrdinals, IdTable stopIds,
+      IdTable tripIds) {
+    int n = stopOrdinals.length;
+    Integer[] positions = new Integer[n];
+    for (int i = 0; i < n; ++i) {
+      positions[i] = i;
     }
-    Map<String, StopTimeIndex> indicesByStop = new HashMap<String, StopTimeIndex>();
-    for (Map.Entry<String, List<StopTime>> entry : stopTimesByStopId.entrySet()) {
-      String stopId = entry.getKey();
-      List<StopTime> stopTimesForStop = entry.getValue();
-      Collections.sort(stopTimesForStop);
-      int[] stopTimeArray = new int[stopTimesForStop.size()];
-      int[] indices = new int[stopTimesForStop.size()];
-      for (int i = 0; i < stopTimeArray.length; ++i) {
-        StopTime stopTime = stopTimesForStop.get(i);
-        stopTimeArray[i] = (stopTime.getArrivalTime() + stopTime.getDepartureTime()) / 2;
-        indices[i] = stopTimeToPosition.get(stopTime);
+    Arrays.sort(positions, new PositionComparator(times, stopSequences));
+    int[] sortedStopOrdinals = new int[n];
+    int[] sortedTimes = new int[n];
+    int[] sortedTripOrdinals = new int[n];
+    for (int i = 0; i < n; ++i) {
+      int position = positions[i];
+      sortedStopOrdinals[i] = stopOrdinals[position];
+      sortedTimes[i] = times[position];
+      sortedTripOrdinals[i] = tripOrdinals[position];
+    }
+    return create(sortedStopOrdinals, sortedTimes, sortedTripOrdinals,
+        stopIds, tripIds);
+  }
+
+  /**
+   * 
+   * @param stopOrdinals interned stop ids of the block's stop times, in time
+   *          order
+   * @param times times of the block's stop times, in seconds since the start
+   *          of the service date
+   * @param tripOrdinals interned trip ids of the block's stop times
+   * @param stopIds
+   * @param tripIds
+   * @return
+   */
+  public static StopTimeIndices create(int[] stopOrdinals, int[] times,
+      int[] tripOrdinals, IdTable stopIds, IdTable tripIds) {
+
+    int n = stopOrdinals.length;
+
+    /**
+     * Sort positions by (stop ordinal, time, position) so that the stop times
+     * for each stop form a contiguous, time-ordered run
+     */
+    long[] keys = new long[n];
+    for (int i = 0; i < n; ++i) {
+      keys[i] = ((long) stopOrdinals[i] << 32) | i;
+    }
+    Arrays.sort(keys);
+
+    int distinctStops = 0;
+    for (int i = 0; i < n; ++i) {
+      if (i == 0 || (int) (keys[i] >>> 32) != (int) (keys[i - 1] >>> 32)) {
+        distinctStops++;
+      }
+    }
+
+    int[] indexedStopOrdinals = new int[distinctStops];
+    StopTimeIndex[] indicesByStop = new StopTimeIndex[distinctStops];
+    int minTime = Integer.MAX_VALUE;
+    int maxTime = Integer.MIN_VALUE;
+
+    int from = 0;
+    int stopIndex = 0;
+    while (from < n) {
+      int stopOrdinal = (int) (keys[from] >>> 32);
+      int to = from;
+      while (to < n && (int) (keys[to] >>> 32) == stopOrdinal) {
+        to++;
+      }
+      int[] stopTimeArray = new int[to - from];
+      int[] indices = new int[to - from];
+      for (int i = from; i < to; ++i) {
+        int position = (int) keys[i];
+        stopTimeArray[i - from] = times[position];
+        indices[i - from] = position;
+        minTime = Math.min(minTime, times[position]);
+        maxTime = Math.max(maxTime, times[position]);
       }
-      indicesByStop.put(stopId, new StopTimeIndex(stopTimeArray, indices));
+      /**
+       * Positions are already in time order, since the stop times are
+       */
+      indexedStopOrdinals[stopIndex] = stopOrdinal;
+      indicesByStop[stopIndex] = new StopTimeIndex(stopTimeArray, indices);
+      stopIndex++;
+      from = to;
     }
-    return new StopTimeIndices(stopTimes, indicesByStop);
+
+    return new StopTimeIndices(stopIds, tripIds, stopOrdinals, times,
+        tripOrdinals, indexedStopOrdinals, indicesByStop, minTime, maxTime);
   }
 
-  private StopTimeIndices(List<StopTime> stopTimes,
-      Map<String, StopTimeIndex> indicesByStop) {
-    this.stopTimes = stopTimes;
+  private StopTimeIndices(IdTable stopIds, IdTable tripIds,
+      int[] stopOrdinals, int[] times, int[] tripOrdinals,
+      int[] indexedStopOrdinals, StopTimeIndex[] indicesByStop, int minTime,
+      int maxTime) {
+    this.stopIds = stopIds;
+    this.tripIds = tripIds;
+    this.stopOrdinals = stopOrdinals;
+    this.times = times;
+    this.tripOrdinals = tripOrdinals;
+    this.indexedStopOrdinals = indexedStopOrdinals;
     this.indicesByStop = indicesByStop;
+    this.minTime = minTime;
+    this.maxTime = maxTime;
   }
 
   public StopTimeIndex getIndexForStop(String stopId) {
-    return indicesByStop.get(stopId);
+    int stopOrdinal = stopIds.getOrdinal(stopId);
+    if (stopOrdinal < 0) {
+      return null;
+    }
+    int i = Arrays.binarySearch(indexedStopOrdinals, stopOrdinal);
+    return i < 0 ? null : indicesByStop[i];
+  }
+
+  /**
+   * @return the number of stop times in the block
+   */
+  public int size() {
+    return stopOrdinals.length;
+  }
+
+  public int getTime(int index) {
+    return times[index];
+  }
+
+  int getStopOrdinal(int index) {
+    return stopOrdinals[index];
+  }
+
+  int getTripOrdinal(int index) {
+    return tripOrdinals[index];
   }
 
-  public List<StopTime> getStopTimes() {
-    return stopTimes;
+  public String getStopId(int index) {
+    return stopIds.getId(stopOrdinals[index]);
+  }
+
+  public String getTripId(int index) {
+    return tripIds.getId(tripOrdinals[index]);
+  }
+
+  /**
+   * 
+   * @param fromIndex
+   * @param stopId
+   * @return the index of the first stop time at or after fromIndex that serves
+   *         the specified stop, or {@link #size()} if there is none
+   */
+  public int getNextIndexWithStopId(int fromIndex, String stopId) {
+    int stopOrdinal = stopIds.getOrdinal(stopId);
+    if (stopOrdinal < 0) {
+      return stopOrdinals.length;
+    }
+    int index = fromIndex;
+    while (index < stopOrdinals.length && stopOrdinals[index] != stopOrdinal) {
+      index++;
+    }
+    return index;
   }
 
+  /**
+   * @return the earliest stop time in the block, in seconds since the start
+   *         of the service date
+   */
+  public int getMinTime() {
+    return minTime;
+  }
+
+  /**
+   * @return the latest stop time in the block, in seconds since the start of
+   *         the service date
+   */
+  public int getMaxTime() {
+    return maxTime;
+  }
+
+  private static class PositionComparator implements Comparator<Integer> {
+
+    private final int[] times;
+
+    private final int[] stopSequences;
+
+    public PositionComparator(int[] times, int[] stopSequences) {
+      this.times = times;
+      this.stopSequences = stopSequences;
+    }
+
+    @Override
+    public int compare(Integer o1, Integer o2) {
+      int c = times[o1] - times[o2];
+      if (c != 0) {
+        return c;
+      }
+      return stopSequences[o1] - stopSequences[o2];
+    }
+  }
 }
@@ -0,0 +1,135 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.nextbus.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
+
+/**
+ * Maps a GTFS route id, NextBus block id, and service date to the GTFS stop
+ * times scheduled for that block. Rather than replicating the mapping for each
+ * date a service id is active, we store the stop times once per service id and
+ * resolve the service date through {@link ServiceIdActiveDates}, so the size of
+ * the index doesn't grow with the length of the GTFS calendar.
+ * 
+ * Instances are built once by trip matching and treated as read-only after.
+ */
+public class StopTimeMappings {
+
+  private final Map<RouteBlockKey, List<ServiceStopTimeIndices>> indicesByBlock = new HashMap<RouteBlockKey, List<ServiceStopTimeIndices>>();
+
+  private final ServiceIdActiveDates activeDates;
+
+  private final IdTable stopIds = new IdTable();
+
+  private final IdTable tripIds = new IdTable();
+
+  public StopTimeMappings() {
+    this(new ServiceIdActiveDates());
+  }
+
+  public StopTimeMappings(ServiceIdActiveDates activeDates) {
+    this.activeDates = activeDates;
+  }
+
+  public ServiceIdActiveDates getActiveDates() {
+    return activeDates;
+  }
+
+  /**
+   * @return the table used to intern GTFS stop ids for the indices in this
+   *         mapping
+   */
+  public IdTable getStopIds() {
+    return stopIds;
+  }
+
+  /**
+   * @return the table used to intern GTFS trip ids for the indices in this
+   *         mapping
+   */
+  public IdTable getTripIds() {
+    return tripIds;
+  }
+
+  /**
+   * 
+   * @param route
+   * @param block
+   * @param serviceIndex the index of the service id in {@link #getActiveDates()}
+   * @param indices
+   */
+  public void putStopTimeIndices(String route, String block, int serviceIndex,
+      StopTimeIndices indices) {
+    RouteBlockKey key = new RouteBlockKey(route, block);
+    List<ServiceStopTimeIndices> entries = indicesByBlock.get(key);
+    if (entries == null) {
+      entries = new ArrayList<ServiceStopTimeIndices>(1);
+      indicesByBlock.put(key, entries);
+    }
+    entries.add(new ServiceStopTimeIndices(serviceIndex, indices));
+  }
+
+  /**
+   * 
+   * @param route
+   * @param block
+   * @param serviceDate
+   * @return the stop times for the specified block on the specified service
+   *         date, or null if the block isn't active on that date. If more than
+   *         one service id of the block is active on the date, the one put
+   *         last wins.
+   */
+  public StopTimeIndices getStopTimeIndices(String route, String block,
+      ServiceDate serviceDate) {
+    List<ServiceStopTimeIndices> entries = indicesByBlock.get(new RouteBlockKey(
+        route, block));
+    if (entries == null) {
+      return null;
+    }
+    for (int i = entries.size() - 1; i >= 0; --i) {
+      ServiceStopTimeIndices entry = entries.get(i);
+      if (activeDates.isActive(entry.serviceIndex, serviceDate)) {
+        return entry.indices;
+      }
+    }
+    return null;
+  }
+
+  public int size() {
+    return indicesByBlock.size();
+  }
+
+  Map<RouteBlockKey, List<ServiceStopTimeIndices>> getIndicesByBlock() {
+    return indicesByBlock;
+  }
+
+  static class ServiceStopTimeIndices {
+
+    final int serviceIndex;
+
+    final StopTimeIndices indices;
+
+    public ServiceStopTimeIndices(int serviceIndex, StopTimeIndices indices) {
+      this.serviceIndex = serviceIndex;
+      this.indices = indices;
+    }
+  }
+}
@@ -0,0 +1,285 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.nextbus.services;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.inject.Singleton;
+
+import org.onebusaway.collections.Counter;
+import org.onebusaway.gtfs_realtime.nextbus.model.RouteStopCoverage;
+import org.onebusaway.gtfs_realtime.nextbus.model.api.NBDirection;
+import org.onebusaway.gtfs_realtime.nextbus.model.api.NBPrediction;
+import org.onebusaway.gtfs_realtime.nextbus.model.api.NBPredictions;
+
+/**
+ * Picks the stops we request predictions for each cycle based on what the
+ * predictions for those stops have actually told us in the past. For each stop,
+ * we keep a running average of (a) how much its predictions change from one
+ * poll to the next and (b) how many vehicles it reports that no other polled
+ * stop on the route reported. Stops that score high on either count are worth
+ * polling often, while stops that just repeat what their neighbors say are
+ * polled less often.
+ *
+ * To avoid starving a stop whose value we've under-estimated, each stop also
+ * accumulates an exploration bonus proportional to the number of cycles since
+ * it was last polled, and a stop that hasn't been polled in twice the number of
+ * rotating slices is always included.
+ *
+ * The number of non-anchor stops selected each cycle is the size of the largest
+ * rotating slice, so the request cost is the same as with rotating coverage.
+ */
+@Singleton
+public class AdaptiveStopSelection {
+
+  /**
+   * Weight given to the most recent observation in the running averages.
+   */
+  private double _smoothingFactor = 0.3;
+
+  /**
+   * Penalty, in seconds, for a vehicle that appears or disappears between two
+   * polls of the same stop.
+   */
+  private int _vehicleChangePenalty = 60;
+
+  /**
+   * Value of a vehicle reported by a stop and no other polled stop, in the same
+   * units (minutes of prediction change) as the change score.
+   */
+  private double _uniqueVehicleWeight = 2.0;
+
+  private ConcurrentMap<String, RouteStatistics> _statisticsByRouteTag = new ConcurrentHashMap<String, RouteStatistics>();
+
+  public void setSmoothingFactor(double smoothingFactor) {
+    _smoothingFactor = smoothingFactor;
+  }
+
+  public void setVehicleChangePenalty(int vehicleChangePenaltyInSeconds) {
+    _vehicleChangePenalty = vehicleChangePenaltyInSeconds;
+  }
+
+  public void setUniqueVehicleWeight(double uniqueVehicleWeight) {
+    _uniqueVehicleWeight = uniqueVehicleWeight;
+  }
+
+  /**
+   *
+   * @param coverage
+   * @param cycle the index of the current processing cycle
+   * @return the anchor stops of the coverage plus the highest-value non-anchor
+   *         stops for the current cycle
+   */
+  public Set<String> selectStopTags(RouteStopCoverage coverage, int cycle) {
+    List<Set<String>> slices = coverage.getStopTagSlices();
+    if (slices.isEmpty()) {
+      return coverage.getStopTags();
+    }
+    int budget = 0;
+    for (Set<String> slice : slices) {
+      budget = Math.max(budget, slice.size());
+    }
+    RouteStatistics statistics = getStatisticsForRoute(coverage.getRouteTag());
+    synchronized (statistics) {
+      final Map<String, Double> scores = new HashMap<String, Double>();
+      List<String> candidates = new ArrayList<String>();
+      for (Set<String> slice : slices) {
+        for (String stopTag : slice) {
+          scores.put(stopTag,
+              statistics.getScore(stopTag, cycle, slices.size()));
+          candidates.add(stopTag);
+        }
+      }
+      Collections.sort(candidates, new Comparator<String>() {
+        @Override
+        public int compare(String o1, String o2) {
+          int c = Double.compare(scores.get(o2), scores.get(o1));
+          return c != 0 ? c : o1.compareTo(o2);
+        }
+      });
+      Set<String> stopTags = new HashSet<String>(coverage.getAnchorStopTags());
+      for (int i = 0; i < Math.min(budget, candidates.size()); ++i) {
+        stopTags.add(candidates.get(i));
+      }
+      return stopTags;
+    }
+  }
+
+  /**
+   * Update the per-stop statistics with the predictions that were just
+   * downloaded for a route.
+   *
+   * @param routeTag
+   * @param predictions freshly-downloaded predictions, one entry per stop
+   * @param cycle the index of the current processing cycle
+   */
+  public void updateStopStatistics(String routeTag,
+      List<NBPredictions> predictions, int cycle) {
+    Map<String, Map<String, Long>> predictionsByStop = new HashMap<String, Map<String, Long>>();
+    Counter<String> stopCountsByVehicle = new Counter<String>();
+    for (NBPredictions stopPredictions : predictions) {
+      Map<String, Long> timesByVehicle = getEarliestPredictionsByVehicle(stopPredictions);
+      predictionsByStop.put(stopPredictions.getStopTag(), timesByVehicle);
+      for (String vehicle : timesByVehicle.keySet()) {
+        stopCountsByVehicle.increment(vehicle);
+      }
+    }
+
+    RouteStatistics statistics = getStatisticsForRoute(routeTag);
+    synchronized (statistics) {
+      for (Map.Entry<String, Map<String, Long>> entry : predictionsByStop.entrySet()) {
+        Map<String, Long> timesByVehicle = entry.getValue();
+        int uniqueVehicles = 0;
+        for (String vehicle : timesByVehicle.keySet()) {
+          if (stopCountsByVehicle.getCount(vehicle) == 1) {
+            uniqueVehicles++;
+          }
+        }
+        StopStatistics stop = statistics.getStopStatistics(entry.getKey());
+        stop.update(timesByVehicle, uniqueVehicles, cycle);
+      }
+    }
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  private RouteStatistics getStatisticsForRoute(String routeTag) {
+    RouteStatistics statistics = _statisticsByRouteTag.get(routeTag);
+    if (statistics == null) {
+      statistics = new RouteStatistics();
+      RouteStatistics existing = _statisticsByRouteTag.putIfAbsent(routeTag,
+          statistics);
+      if (existing != null) {
+        statistics = existing;
+      }
+    }
+    return statistics;
+  }
+
+  private static Map<String, Long> getEarliestPredictionsByVehicle(
+      NBPredictions stopPredictions) {
+    Map<String, Long> timesByVehicle = new HashMap<String, Long>();
+    for (NBDirection direction : stopPredictions.getDirections()) {
+      for (NBPrediction prediction : direction.getPredictions()) {
+        String vehicle = prediction.getVehicle();
+        if (vehicle == null) {
+          continue;
+        }
+        Long existing = timesByVehicle.get(vehicle);
+        if (existing == null || prediction.getEpochTime() < existing) {
+          timesByVehicle.put(vehicle, prediction.getEpochTime());
+        }
+      }
+    }
+    return timesByVehicle;
+  }
+
+  private class RouteStatistics {
+
+    private Map<String, StopStatistics> _stopStatistics = new HashMap<String, StopStatistics>();
+
+    public StopStatistics getStopStatistics(String stopTag) {
+      StopStatistics stop = _stopStatistics.get(stopTag);
+      if (stop == null) {
+        stop = new StopStatistics();
+        _stopStatistics.put(stopTag, stop);
+      }
+      return stop;
+    }
+
+    public double getScore(String stopTag, int cycle, int sliceCount) {
+      StopStatistics stop = _stopStatistics.get(stopTag);
+      if (stop == null) {
+        /**
+         * We know nothing about the stop yet, so it goes first
+         */
+        return Double.POSITIVE_INFINITY;
+      }
+      int age = cycle - stop.getLastPolledCycle();
+      if (age >= 2 * sliceCount) {
+        return Double.POSITIVE_INFINITY;
+      }
+      return stop.getValue() + ((double) age) / sliceCount;
+    }
+  }
+
+  private class StopStatistics {
+
+    private Map<String, Long> _lastTimesByVehicle = null;
+
+    private double _changeScore = 0;
+
+    private double _uniqueVehicleScore = 0;
+
+    private int _lastPolledCycle;
+
+    public int getLastPolledCycle() {
+      return _lastPolledCycle;
+    }
+
+    public double getValue() {
+      return _changeScore + _uniqueVehicleWeight * _uniqueVehicleScore;
+    }
+
+    public void update(Map<String, Long> timesByVehicle, int uniqueVehicles,
+        int cycle) {
+      if (_lastTimesByVehicle != null) {
+        double change = computeChangeInMinutes(_lastTimesByVehicle,
+            timesByVehicle);
+        _changeScore = smooth(_changeScore, change);
+        _uniqueVehicleScore = smooth(_uniqueVehicleScore, uniqueVehicles);
+      } else {
+        _uniqueVehicleScore = uniqueVehicles;
+      }
+      _lastTimesByVehicle = timesByVehicle;
+      _lastPolledCycle = cycle;
+    }
+
+    private double smooth(double average, double value) {
+      return _smoothingFactor * value + (1 - _smoothingFactor) * average;
+    }
+
+    private double computeChangeInMinutes(Map<String, Long> prev,
+        Map<String, Long> next) {
+      long seconds = 0;
+      for (Map.Entry<String, Long> entry : next.entrySet()) {
+        Long prevTime = prev.get(entry.getKey());
+        if (prevTime == null) {
+          seconds += _vehicleChangePenalty;
+        } else {
+          seconds += Math.abs(entry.getValue() - prevTime) / 1000;
+        }
+      }
+      for (String vehicle : prev.keySet()) {
+        if (!next.containsKey(vehicle)) {
+          seconds += _vehicleChangePenalty;
+        }
+      }
+      return seconds / 60.0;
+    }
+  }
+}
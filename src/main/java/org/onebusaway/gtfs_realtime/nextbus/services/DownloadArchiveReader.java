@@ -0,0 +1,164 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.nextbus.services;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.onebusaway.gtfs_realtime.nextbus.model.CapturedDownload;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads back an archive written by {@link DownloadArchiveWriter}. Opening an
+ * archive only indexes the records; response bodies are read from disk on
+ * demand with {@link #readContent(CapturedDownload)}.
+ */
+public class DownloadArchiveReader {
+
+  private static final Logger _log = LoggerFactory.getLogger(DownloadArchiveReader.class);
+
+  private final List<CapturedDownload> _downloads = new ArrayList<CapturedDownload>();
+
+  public DownloadArchiveReader(File directory) throws IOException {
+    File[] segments = directory.listFiles();
+    if (segments == null) {
+      throw new IOException("capture archive not found: " + directory);
+    }
+    Arrays.sort(segments);
+    for (File segment : segments) {
+      String name = segment.getName();
+      if (name.startsWith(DownloadArchiveWriter.SEGMENT_PREFIX)
+          && name.endsWith(DownloadArchiveWriter.SEGMENT_SUFFIX)) {
+        readSegment(segment);
+      }
+    }
+    _log.info("read capture archive " + directory + ": downloads="
+        + _downloads.size());
+  }
+
+  /**
+   * 
+   * @return every download in the archive, in the order they were captured
+   */
+  public List<CapturedDownload> getDownloads() {
+    return _downloads;
+  }
+
+  public byte[] readContent(CapturedDownload download) throws IOException {
+    byte[] content = new byte[download.getLength()];
+    RandomAccessFile in = new RandomAccessFile(download.getSegment(), "r");
+    try {
+      in.seek(download.getOffset());
+      in.readFully(content);
+    } finally {
+      in.close();
+    }
+    return content;
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  private void readSegment(File segment) throws IOException {
+    CountingInputStream counter = new CountingInputStream(
+        new BufferedInputStream(new FileInputStream(segment)));
+    DataInputStream in = new DataInputStream(counter);
+    try {
+      while (true) {
+        int magic;
+        try {
+          magic = in.readInt();
+        } catch (EOFException ex) {
+          break;
+        }
+        if (magic != DownloadArchiveWriter.RECORD_MAGIC) {
+          _log.warn("corrupt record in capture segment " + segment
+              + " at offset " + (counter.getCount() - 4));
+          break;
+        }
+        long timestamp = in.readLong();
+        String url = in.readUTF();
+        String contentEncoding = in.readUTF();
+        int length = in.readInt();
+        long offset = counter.getCount();
+        if (in.skipBytes(length) < length) {
+          throw new EOFException();
+        }
+        _downloads.add(new CapturedDownload(timestamp, url,
+            contentEncoding.isEmpty() ? null : contentEncoding, segment,
+            offset, length));
+      }
+    } catch (EOFException ex) {
+      /**
+       * The last record of a segment may be cut short if the process was
+       * killed mid-write
+       */
+      _log.warn("truncated record at end of capture segment " + segment);
+    } finally {
+      in.close();
+    }
+  }
+
+  private static class CountingInputStream extends FilterInputStream {
+
+    private long _count = 0;
+
+    public CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    public long getCount() {
+      return _count;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b != -1) {
+        _count++;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n > 0) {
+        _count += n;
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = super.skip(n);
+      _count += skipped;
+      return skipped;
+    }
+  }
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.nextbus.services;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Appends raw NextBus API responses to a capture archive, so that a day of
+ * upstream traffic can be replayed later with {@link ReplayDownloaderService}.
+ * 
+ * The archive is a directory of segment files, named for the time each segment
+ * was started. A segment is only ever appended to, and we start a new one once
+ * the current segment is big enough or old enough, so old segments can be
+ * compressed, shipped, or deleted while capture continues. Each record is:
+ * 
+ * <pre>
+ * int     magic
+ * long    request timestamp
+ * UTF     url
+ * UTF     content encoding, or an empty string for none
+ * int     body length
+ * byte[]  body, exactly as received
+ * </pre>
+ */
+public class DownloadArchiveWriter {
+
+  private static final Logger _log = LoggerFactory.getLogger(DownloadArchiveWriter.class);
+
+  static final int RECORD_MAGIC = 0x4E424452;
+
+  static final String SEGMENT_PREFIX = "capture-";
+
+  static final String SEGMENT_SUFFIX = ".seg";
+
+  private final File _directory;
+
+  /**
+   * Size, in bytes, at which we start a new segment
+   */
+  private long _maxSegmentSize = 64 * 1024 * 1024;
+
+  /**
+   * Age, in seconds, at which we start a new segment
+   */
+  private int _maxSegmentAge = 60 * 60;
+
+  private DataOutputStream _out;
+
+  private long _segmentStartTime;
+
+  public DownloadArchiveWriter(File directory) {
+    _directory = directory;
+  }
+
+  public void setMaxSegmentSize(long maxSegmentSize) {
+    _maxSegmentSize = maxSegmentSize;
+  }
+
+  public void setMaxSegmentAge(int maxSegmentAgeInSeconds) {
+    _maxSegmentAge = maxSegmentAgeInSeconds;
+  }
+
+  /**
+   * 
+   * @param timestamp when the request was made
+   * @param url
+   * @param contentEncoding the Content-Encoding of the response, or null if
+   *          none
+   * @param content the response body, as received
+   * @throws IOException
+   */
+  public synchronized void write(long timestamp, String url,
+      String contentEncoding, byte[] content) throws IOException {
+    if (_out == null || _out.size() >= _maxSegmentSize
+        || timestamp - _segmentStartTime >= _maxSegmentAge * 1000L) {
+      startSegment(timestamp);
+    }
+    _out.writeInt(RECORD_MAGIC);
+    _out.writeLong(timestamp);
+    _out.writeUTF(url);
+    _out.writeUTF(contentEncoding != null ? contentEncoding : "");
+    _out.writeInt(content.length);
+    _out.write(content);
+    _out.flush();
+  }
+
+  public synchronized void close() throws IOException {
+    if (_out != null) {
+      _out.close();
+      _out = null;
+    }
+  }
+
+  static String getSegmentName(long startTime) {
+    return String.format("%s%013d%s", SEGMENT_PREFIX, startTime,
+        SEGMENT_SUFFIX);
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  private void startSegment(long timestamp) throws IOException {
+    close();
+    _directory.mkdirs();
+    File segment = new File(_directory, getSegmentName(timestamp));
+    _log.info("starting capture segment " + segment);
+    _out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
+        segment, true)));
+    _segmentStartTime = timestamp;
+  }
+}
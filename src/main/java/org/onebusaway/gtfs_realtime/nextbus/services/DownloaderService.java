@@ -15,12 +15,16 @@
  */
 package org.onebusaway.gtfs_realtime.nextbus.services;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayDeque;
 import java.util.Deque;
 import java.util.zip.GZIPInputStream;
 
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
 import javax.inject.Singleton;
 
 import org.apache.http.Header;
@@ -29,6 +33,7 @@ import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -37,6 +42,9 @@ import org.slf4j.LoggerFactory;
  * on our downloading throughput to make sure we don't exceed the bandwidth
  * limit set for the API.
  * 
+ * When a capture directory is set, every response is also appended, exactly as
+ * received, to a {@link DownloadArchiveWriter} archive for later replay.
+ * 
  * @author bdferris
  */
 @Singleton
@@ -57,19 +65,74 @@ public class DownloaderService {
 
   private long _totalContentLength;
 
+  private DownloadArchiveWriter _captureWriter;
+
+  private MetricsService _metricsService = new MetricsService();
+
+  private PipelineTracer _tracer = new PipelineTracer();
+
+  private final LogRateLimiter _logLimiter = new LogRateLimiter();
+
+  @Inject
+  public void setMetricsService(MetricsService metricsService) {
+    _metricsService = metricsService;
+  }
+
+  @Inject
+  public void setPipelineTracer(PipelineTracer tracer) {
+    _tracer = tracer;
+  }
+
+  /**
+   * Capture every response to an archive in the specified directory.
+   * 
+   * @param captureDirectory
+   */
+  public void setCaptureDirectory(File captureDirectory) {
+    _captureWriter = new DownloadArchiveWriter(captureDirectory);
+  }
+
+  @PreDestroy
+  public void stop() throws IOException {
+    if (_captureWriter != null) {
+      _captureWriter.close();
+    }
+  }
+
+  /**
+   * The response is read in full before the lock is released, so that the
+   * single connection of the underlying client is free for the next caller
+   * even when the returned stream is parsed on another thread.
+   * 
+   * @param uri
+   * @return the response content, gunzipped if needed
+   * @throws IOException
+   */
   public synchronized InputStream openUrl(String uri) throws IOException {
 
     stallIfNeeded();
 
+    Object trace = _tracer.begin(PipelineStage.DOWNLOAD);
+    long timestamp = System.currentTimeMillis();
     HttpUriRequest request = new HttpGet(uri);
     request.addHeader("Accept-Encoding", "gzip");
     HttpResponse response = _client.execute(request);
     HttpEntity entity = response.getEntity();
+    byte[] content = EntityUtils.toByteArray(entity);
 
-    noteDownload(entity);
+    noteDownload(uri, content.length);
+    _tracer.end(trace, getRouteTag(uri), content.length, 0);
 
-    InputStream in = entity.getContent();
     Header contentEncoding = response.getFirstHeader("Content-Encoding");
+    if (_captureWriter != null) {
+      try {
+        _captureWriter.write(timestamp, uri, contentEncoding != null
+            ? contentEncoding.getValue() : null, content);
+      } catch (IOException ex) {
+        _log.warn("error capturing download " + uri, ex);
+      }
+    }
+    InputStream in = new ByteArrayInputStream(content);
     if (contentEncoding != null
         && contentEncoding.getValue().equalsIgnoreCase("gzip")) {
       in = new GZIPInputStream(in);
@@ -77,8 +140,61 @@ public class DownloaderService {
     return in;
   }
 
-  private void noteDownload(HttpEntity entity) {
-    long contentLength = entity.getContentLength();
+  /**
+   * 
+   * @param url
+   * @return the value of the NextBus API command parameter of the url, or null
+   *         if there is none
+   */
+  static String getCommand(String url) {
+    int index = url.indexOf("command=");
+    if (index == -1) {
+      return null;
+    }
+    index += "command=".length();
+    int end = url.indexOf('&', index);
+    return end == -1 ? url.substring(index) : url.substring(index, end);
+  }
+
+  /**
+   * 
+   * @param url
+   * @return the value of the NextBus API route parameter of the url, or the
+   *         route tag of the first stop of a multi-stop predictions request, or
+   *         null if there is neither
+   */
+  static String getRouteTag(String url) {
+    int index = url.indexOf("&r=");
+    if (index != -1) {
+      index += "&r=".length();
+    } else {
+      index = url.indexOf("&stops=");
+      if (index == -1) {
+        return null;
+      }
+      index += "&stops=".length();
+    }
+    int end = index;
+    while (end < url.length() && url.charAt(end) != '&'
+        && !url.startsWith("%7c", end)) {
+      end++;
+    }
+    return url.substring(index, end);
+  }
+
+  /**
+   * 
+   * @param uri
+   * @param contentLength the number of bytes received, which we count
+   *          ourselves since chunked responses have no Content-Length header
+   */
+  private void noteDownload(String uri, long contentLength) {
+    String command = getCommand(uri);
+    _metricsService.increment(MetricsService.DOWNLOADS, command);
+    if (contentLength > 0) {
+      _metricsService.add(MetricsService.DOWNLOAD_BYTES, command,
+          contentLength);
+    }
     _downloaded.add(new DownloadRecord(System.currentTimeMillis(),
         contentLength));
     _totalContentLength += contentLength;
@@ -107,7 +223,12 @@ public class DownloaderService {
 
     double toDownload = estimatedSize - _throttleSize;
     long delay = (long) ((_throttleSize / toDownload) * _throttleWindow * 1000);
-    _log.info("thottling: delay=" + delay);
+    if (_logLimiter.isLoggable("throttling")) {
+      _log.info("thottling: delay=" + delay
+          + _logLimiter.getSuppressedSuffix("throttling"));
+    }
+    _metricsService.increment(MetricsService.THROTTLE_EVENTS);
+    _metricsService.add(MetricsService.THROTTLE_DELAY, delay / 1000.0);
     try {
       Thread.sleep(delay);
     } catch (InterruptedException e) {
@@ -0,0 +1,161 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.nextbus.services;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.inject.Singleton;
+
+import org.onebusaway.gtfs_realtime.nextbus.model.RouteHealth;
+
+/**
+ * Keeps track of when each route was last processed successfully, and of its
+ * last failure, so that a route that keeps failing shows up as stale rather
+ * than only as a warning in the log.
+ * 
+ * The feed is considered healthy while some route has been updated within
+ * {@link #setMaxFeedAge(int)} seconds and the 95th percentile of route
+ * staleness is within {@link #setMaxRouteStaleness(int)} seconds.
+ */
+@Singleton
+public class FeedHealthService {
+
+  private final ConcurrentMap<String, RouteHealth> _healthByRouteTag = new ConcurrentHashMap<String, RouteHealth>();
+
+  private final long _startTime = System.currentTimeMillis();
+
+  private volatile long _lastSuccessTime = 0;
+
+  /**
+   * Time, in seconds
+   */
+  private int _maxFeedAge = 2 * 60;
+
+  /**
+   * Time, in seconds
+   */
+  private int _maxRouteStaleness = 10 * 60;
+
+  public void setMaxFeedAge(int maxFeedAgeInSeconds) {
+    _maxFeedAge = maxFeedAgeInSeconds;
+  }
+
+  public void setMaxRouteStaleness(int maxRouteStalenessInSeconds) {
+    _maxRouteStaleness = maxRouteStalenessInSeconds;
+  }
+
+  /**
+   * Starts tracking any routes we haven't seen before. Routes that have dropped
+   * out of the route configuration stop being tracked.
+   * 
+   * @param routeTags the routes in the current route configuration
+   */
+  public void noteRoutes(Collection<String> routeTags) {
+    long now = System.currentTimeMillis();
+    for (String routeTag : routeTags) {
+      if (!_healthByRouteTag.containsKey(routeTag)) {
+        _healthByRouteTag.putIfAbsent(routeTag, new RouteHealth(routeTag, now,
+            0, 0, 0, null));
+      }
+    }
+    if (_healthByRouteTag.size() > routeTags.size()) {
+      _healthByRouteTag.keySet().retainAll(routeTags);
+    }
+  }
+
+  public void noteSuccess(String routeTag, int predictionCount) {
+    long now = System.currentTimeMillis();
+    _healthByRouteTag.put(routeTag,
+        getRouteHealth(routeTag, now).withSuccess(now, predictionCount));
+    _lastSuccessTime = now;
+  }
+
+  public void noteError(String routeTag, Exception ex) {
+    long now = System.currentTimeMillis();
+    _healthByRouteTag.put(routeTag,
+        getRouteHealth(routeTag, now).withError(now, ex.toString()));
+  }
+
+  public List<RouteHealth> getRouteHealth() {
+    return new ArrayList<RouteHealth>(_healthByRouteTag.values());
+  }
+
+  /**
+   * 
+   * @param now
+   * @return the time, in milliseconds, since any route was last updated, or
+   *         since startup if none has been
+   */
+  public long getFeedAge(long now) {
+    long lastSuccessTime = _lastSuccessTime;
+    return now - (lastSuccessTime != 0 ? lastSuccessTime : _startTime);
+  }
+
+  /**
+   * 
+   * @param now
+   * @return the staleness of every route, in milliseconds, sorted
+   */
+  public long[] getSortedStaleness(long now) {
+    List<RouteHealth> routes = getRouteHealth();
+    long[] staleness = new long[routes.size()];
+    for (int i = 0; i < staleness.length; ++i) {
+      staleness[i] = routes.get(i).getStaleness(now);
+    }
+    Arrays.sort(staleness);
+    return staleness;
+  }
+
+  public boolean isHealthy(long now) {
+    if (getFeedAge(now) > _maxFeedAge * 1000L) {
+      return false;
+    }
+    long[] staleness = getSortedStaleness(now);
+    return getPercentile(staleness, 0.95) <= _maxRouteStaleness * 1000L;
+  }
+
+  /**
+   * 
+   * @param sorted
+   * @param p
+   * @return the nearest-rank percentile of the sorted values, or zero if there
+   *         are none
+   */
+  public static long getPercentile(long[] sorted, double p) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    int index = (int) Math.ceil(p * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  private RouteHealth getRouteHealth(String routeTag, long now) {
+    RouteHealth health = _healthByRouteTag.get(routeTag);
+    if (health == null) {
+      health = new RouteHealth(routeTag, now, 0, 0, 0, null);
+    }
+    return health;
+  }
+}
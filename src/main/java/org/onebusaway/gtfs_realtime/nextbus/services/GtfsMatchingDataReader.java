@@ -0,0 +1,574 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.nextbus.services;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.text.ParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.onebusaway.csv_entities.CSVLibrary;
+import org.onebusaway.gtfs.impl.GtfsRelationalDaoImpl;
+import org.onebusaway.gtfs.model.Agency;
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.Route;
+import org.onebusaway.gtfs.model.ServiceCalendar;
+import org.onebusaway.gtfs.model.ServiceCalendarDate;
+import org.onebusaway.gtfs.model.Stop;
+import org.onebusaway.gtfs.model.Trip;
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
+import org.onebusaway.gtfs_realtime.nextbus.model.GtfsMatchingData;
+import org.onebusaway.gtfs_realtime.nextbus.model.GtfsMatchingDataBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads just the parts of a GTFS feed, zip or directory, that we need for
+ * matching into a {@link GtfsMatchingData}. Only the columns we use are kept,
+ * and stop_times.txt, which is usually most of the feed, is parsed in chunks
+ * on a thread pool and packed into primitive arrays rather than
+ * {@link org.onebusaway.gtfs.model.StopTime} entities.
+ */
+public class GtfsMatchingDataReader {
+
+  private static final Logger _log = LoggerFactory.getLogger(GtfsMatchingDataReader.class);
+
+  private int _parallelism = Runtime.getRuntime().availableProcessors();
+
+  private int _chunkSize = 10000;
+
+  public void setParallelism(int parallelism) {
+    _parallelism = parallelism;
+  }
+
+  public GtfsMatchingData read(File path) throws IOException {
+    GtfsSource source = new GtfsSource(path);
+    try {
+      GtfsRelationalDaoImpl dao = new GtfsRelationalDaoImpl();
+      GtfsMatchingDataBuilder builder = new GtfsMatchingDataBuilder();
+
+      Map<String, Agency> agenciesById = readAgencies(source, dao);
+      Agency defaultAgency = agenciesById.values().iterator().next();
+      String defaultAgencyId = defaultAgency.getId();
+
+      Map<String, Route> routesById = readRoutes(source, dao, agenciesById,
+          defaultAgency);
+      Map<String, Integer> stopIndicesById = readStops(source, dao, builder,
+          defaultAgencyId);
+      Map<String, Integer> tripIndicesById = readTrips(source, dao, builder,
+          routesById, defaultAgencyId);
+      readCalendars(source, dao, defaultAgencyId);
+      readCalendarDates(source, dao, defaultAgencyId);
+      readStopTimes(source, builder, stopIndicesById, tripIndicesById);
+
+      return builder.build(dao);
+    } finally {
+      source.close();
+    }
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  /**
+   * 
+   * @param source
+   * @param dao
+   * @return the agencies keyed by id, in the order of agency.txt, so that the
+   *         first one is the default agency, as with {@code GtfsReader}
+   * @throws IOException
+   */
+  private Map<String, Agency> readAgencies(GtfsSource source,
+      GtfsRelationalDaoImpl dao) throws IOException {
+    Map<String, Agency> agenciesById = new LinkedHashMap<String, Agency>();
+    for (Row row : readTable(source, "agency.txt", true)) {
+      Agency agency = new Agency();
+      String id = row.get("agency_id");
+      agency.setId(id != null ? id : row.get("agency_name"));
+      agency.setName(row.get("agency_name"));
+      agency.setUrl(row.get("agency_url"));
+      agency.setTimezone(row.get("agency_timezone"));
+      dao.saveEntity(agency);
+      agenciesById.put(agency.getId(), agency);
+    }
+    if (agenciesById.isEmpty()) {
+      throw new IllegalStateException("no agencies in GTFS");
+    }
+    return agenciesById;
+  }
+
+  private Map<String, Route> readRoutes(GtfsSource source,
+      GtfsRelationalDaoImpl dao, Map<String, Agency> agenciesById,
+      Agency defaultAgency) throws IOException {
+    Map<String, Route> routesById = new HashMap<String, Route>();
+    for (Row row : readTable(source, "routes.txt", true)) {
+      Agency agency = defaultAgency;
+      String agencyId = row.get("agency_id");
+      if (agencyId != null && agenciesById.containsKey(agencyId)) {
+        agency = agenciesById.get(agencyId);
+      }
+      String id = row.get("route_id");
+      Route route = new Route();
+      route.setId(new AgencyAndId(agency.getId(), id));
+      route.setAgency(agency);
+      route.setShortName(row.get("route_short_name"));
+      route.setLongName(row.get("route_long_name"));
+      route.setType(row.getInt("route_type", 3));
+      dao.saveEntity(route);
+      routesById.put(id, route);
+    }
+    return routesById;
+  }
+
+  private Map<String, Integer> readStops(GtfsSource source,
+      GtfsRelationalDaoImpl dao, GtfsMatchingDataBuilder builder,
+      String defaultAgencyId) throws IOException {
+    Map<String, Integer> stopIndicesById = new HashMap<String, Integer>();
+    for (Row row : readTable(source, "stops.txt", true)) {
+      String id = row.get("stop_id");
+      Stop stop = new Stop();
+      stop.setId(new AgencyAndId(defaultAgencyId, id));
+      stop.setName(row.get("stop_name"));
+      stop.setLat(row.getDouble("stop_lat"));
+      stop.setLon(row.getDouble("stop_lon"));
+      stop.setLocationType(row.getInt("location_type", 0));
+      dao.saveEntity(stop);
+      stopIndicesById.put(id, builder.addStop(stop));
+    }
+    return stopIndicesById;
+  }
+
+  private Map<String, Integer> readTrips(GtfsSource source,
+      GtfsRelationalDaoImpl dao, GtfsMatchingDataBuilder builder,
+      Map<String, Route> routesById, String defaultAgencyId)
+      throws IOException {
+    Map<String, Integer> tripIndicesById = new HashMap<String, Integer>();
+    int tripsWithoutRoutes = 0;
+    for (Row row : readTable(source, "trips.txt", true)) {
+      Route route = routesById.get(row.get("route_id"));
+      if (route == null) {
+        tripsWithoutRoutes++;
+        continue;
+      }
+      String id = row.get("trip_id");
+      Trip trip = new Trip();
+      trip.setId(new AgencyAndId(defaultAgencyId, id));
+      trip.setRoute(route);
+      trip.setServiceId(new AgencyAndId(defaultAgencyId, row.get("service_id")));
+      trip.setBlockId(row.get("block_id"));
+      trip.setDirectionId(row.get("direction_id"));
+      dao.saveEntity(trip);
+      tripIndicesById.put(id, builder.addTrip(trip));
+    }
+    if (tripsWithoutRoutes > 0) {
+      _log.warn("trips with unknown route: " + tripsWithoutRoutes);
+    }
+    return tripIndicesById;
+  }
+
+  private void readCalendars(GtfsSource source, GtfsRelationalDaoImpl dao,
+      String defaultAgencyId) throws IOException {
+    int id = 0;
+    for (Row row : readTable(source, "calendar.txt", false)) {
+      ServiceCalendar calendar = new ServiceCalendar();
+      calendar.setId(id++);
+      calendar.setServiceId(new AgencyAndId(defaultAgencyId,
+          row.get("service_id")));
+      calendar.setMonday(row.getInt("monday", 0));
+      calendar.setTuesday(row.getInt("tuesday", 0));
+      calendar.setWednesday(row.getInt("wednesday", 0));
+      calendar.setThursday(row.getInt("thursday", 0));
+      calendar.setFriday(row.getInt("friday", 0));
+      calendar.setSaturday(row.getInt("saturday", 0));
+      calendar.setSunday(row.getInt("sunday", 0));
+      calendar.setStartDate(row.getServiceDate("start_date"));
+      calendar.setEndDate(row.getServiceDate("end_date"));
+      dao.saveEntity(calendar);
+    }
+  }
+
+  private void readCalendarDates(GtfsSource source, GtfsRelationalDaoImpl dao,
+      String defaultAgencyId) throws IOException {
+    int id = 0;
+    for (Row row : readTable(source, "calendar_dates.txt", false)) {
+      ServiceCalendarDate calendarDate = new ServiceCalendarDate();
+      calendarDate.setId(id++);
+      calendarDate.setServiceId(new AgencyAndId(defaultAgencyId,
+          row.get("service_id")));
+      calendarDate.setDate(row.getServiceDate("date"));
+      calendarDate.setExceptionType(row.getInt("exception_type", 0));
+      dao.saveEntity(calendarDate);
+    }
+  }
+
+  /**
+   * Lines are read on the calling thread and handed off in chunks to be
+   * parsed on a thread pool. Parsed chunks are appended to the builder in
+   * file order, with at most a couple of chunks per thread in flight so that
+   * memory use stays bounded regardless of the size of the file.
+   */
+  private void readStopTimes(GtfsSource source,
+      GtfsMatchingDataBuilder builder, Map<String, Integer> stopIndicesById,
+      Map<String, Integer> tripIndicesById) throws IOException {
+
+    BufferedReader reader = source.openReader("stop_times.txt");
+    if (reader == null) {
+      throw new IllegalStateException("missing stop_times.txt");
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(_parallelism);
+    Deque<Future<StopTimeChunk>> pending = new ArrayDeque<Future<StopTimeChunk>>();
+    StopTimeAppender appender = new StopTimeAppender(builder, stopIndicesById,
+        tripIndicesById);
+
+    try {
+      String headerLine = reader.readLine();
+      if (headerLine == null) {
+        return;
+      }
+      final Map<String, Integer> columns = getColumns(headerLine);
+
+      List<String> lines = new ArrayList<String>(_chunkSize);
+      String line = null;
+      while ((line = reader.readLine()) != null) {
+        if (line.length() == 0) {
+          continue;
+        }
+        lines.add(line);
+        if (lines.size() == _chunkSize) {
+          pending.add(executor.submit(new StopTimeChunkParser(columns, lines)));
+          lines = new ArrayList<String>(_chunkSize);
+          if (pending.size() >= 2 * _parallelism) {
+            appender.append(getChunk(pending.removeFirst()));
+          }
+        }
+      }
+      if (!lines.isEmpty()) {
+        pending.add(executor.submit(new StopTimeChunkParser(columns, lines)));
+      }
+      while (!pending.isEmpty()) {
+        appender.append(getChunk(pending.removeFirst()));
+      }
+    } finally {
+      executor.shutdownNow();
+      reader.close();
+    }
+
+    appender.logSkippedStopTimes();
+  }
+
+  private StopTimeChunk getChunk(Future<StopTimeChunk> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(ex);
+    } catch (ExecutionException ex) {
+      throw new IllegalStateException("error parsing stop_times.txt",
+          ex.getCause());
+    }
+  }
+
+  private List<Row> readTable(GtfsSource source, String name,
+      boolean required) throws IOException {
+    List<Row> rows = new ArrayList<Row>();
+    BufferedReader reader = source.openReader(name);
+    if (reader == null) {
+      if (required) {
+        throw new IllegalStateException("missing " + name);
+      }
+      return rows;
+    }
+    try {
+      String headerLine = reader.readLine();
+      if (headerLine == null) {
+        return rows;
+      }
+      Map<String, Integer> columns = getColumns(headerLine);
+      String line = null;
+      while ((line = reader.readLine()) != null) {
+        if (line.length() > 0) {
+          rows.add(new Row(columns, parseLine(line)));
+        }
+      }
+      return rows;
+    } finally {
+      reader.close();
+    }
+  }
+
+  private static Map<String, Integer> getColumns(String headerLine) {
+    /**
+     * Strip the byte order mark that some feeds start with
+     */
+    if (headerLine.length() > 0 && headerLine.charAt(0) == '\uFEFF') {
+      headerLine = headerLine.substring(1);
+    }
+    List<String> names = parseLine(headerLine);
+    Map<String, Integer> columns = new HashMap<String, Integer>();
+    for (int i = 0; i < names.size(); ++i) {
+      columns.put(names.get(i).trim(), i);
+    }
+    return columns;
+  }
+
+  private static List<String> parseLine(String line) {
+    if (line.indexOf('"') != -1) {
+      return CSVLibrary.parse(line);
+    }
+    List<String> values = new ArrayList<String>();
+    int from = 0;
+    while (true) {
+      int to = line.indexOf(',', from);
+      if (to == -1) {
+        values.add(line.substring(from));
+        return values;
+      }
+      values.add(line.substring(from, to));
+      from = to + 1;
+    }
+  }
+
+  private static String getValue(List<String> values, Integer column) {
+    if (column == null || column >= values.size()) {
+      return null;
+    }
+    String value = values.get(column).trim();
+    return value.length() == 0 ? null : value;
+  }
+
+  /**
+   * 
+   * @param value a GTFS time, in HH:MM:SS or H:MM:SS form
+   * @return the time in seconds since the start of the service day, or
+   *         {@link GtfsMatchingData#MISSING_VALUE} if the value is empty
+   */
+  private static int parseTime(String value) {
+    if (value == null) {
+      return GtfsMatchingData.MISSING_VALUE;
+    }
+    int first = value.indexOf(':');
+    int second = value.indexOf(':', first + 1);
+    if (first == -1 || second == -1) {
+      throw new IllegalStateException("invalid time: " + value);
+    }
+    int hours = Integer.parseInt(value.substring(0, first));
+    int minutes = Integer.parseInt(value.substring(first + 1, second));
+    int seconds = Integer.parseInt(value.substring(second + 1));
+    return (hours * 60 + minutes) * 60 + seconds;
+  }
+
+  private static class Row {
+
+    private final Map<String, Integer> columns;
+
+    private final List<String> values;
+
+    public Row(Map<String, Integer> columns, List<String> values) {
+      this.columns = columns;
+      this.values = values;
+    }
+
+    public String get(String column) {
+      return getValue(values, columns.get(column));
+    }
+
+    public int getInt(String column, int defaultValue) {
+      String value = get(column);
+      return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    public double getDouble(String column) {
+      String value = get(column);
+      if (value == null) {
+        throw new IllegalStateException("missing value for " + column);
+      }
+      return Double.parseDouble(value);
+    }
+
+    public ServiceDate getServiceDate(String column) {
+      String value = get(column);
+      try {
+        return value == null ? null : ServiceDate.parseString(value);
+      } catch (ParseException ex) {
+        throw new IllegalStateException("invalid date: " + value, ex);
+      }
+    }
+  }
+
+  private static class StopTimeChunk {
+
+    private final int size;
+
+    private final String[] tripIds;
+
+    private final String[] stopIds;
+
+    private final int[] arrivalTimes;
+
+    private final int[] departureTimes;
+
+    private final int[] stopSequences;
+
+    public StopTimeChunk(int size) {
+      this.size = size;
+      this.tripIds = new String[size];
+      this.stopIds = new String[size];
+      this.arrivalTimes = new int[size];
+      this.departureTimes = new int[size];
+      this.stopSequences = new int[size];
+    }
+  }
+
+  private static class StopTimeChunkParser implements Callable<StopTimeChunk> {
+
+    private final Integer tripIdColumn;
+
+    private final Integer stopIdColumn;
+
+    private final Integer arrivalTimeColumn;
+
+    private final Integer departureTimeColumn;
+
+    private final Integer stopSequenceColumn;
+
+    private final List<String> lines;
+
+    public StopTimeChunkParser(Map<String, Integer> columns, List<String> lines) {
+      this.tripIdColumn = columns.get("trip_id");
+      this.stopIdColumn = columns.get("stop_id");
+      this.arrivalTimeColumn = columns.get("arrival_time");
+      this.departureTimeColumn = columns.get("departure_time");
+      this.stopSequenceColumn = columns.get("stop_sequence");
+      this.lines = lines;
+    }
+
+    @Override
+    public StopTimeChunk call() {
+      StopTimeChunk chunk = new StopTimeChunk(lines.size());
+      for (int i = 0; i < lines.size(); ++i) {
+        List<String> values = parseLine(lines.get(i));
+        chunk.tripIds[i] = getValue(values, tripIdColumn);
+        chunk.stopIds[i] = getValue(values, stopIdColumn);
+        chunk.arrivalTimes[i] = parseTime(getValue(values, arrivalTimeColumn));
+        chunk.departureTimes[i] = parseTime(getValue(values,
+            departureTimeColumn));
+        String stopSequence = getValue(values, stopSequenceColumn);
+        chunk.stopSequences[i] = stopSequence == null ? 0
+            : Integer.parseInt(stopSequence);
+      }
+      return chunk;
+    }
+  }
+
+  private static class StopTimeAppender {
+
+    private final GtfsMatchingDataBuilder builder;
+
+    private final Map<String, Integer> stopIndicesById;
+
+    private final Map<String, Integer> tripIndicesById;
+
+    private int skipped = 0;
+
+    public StopTimeAppender(GtfsMatchingDataBuilder builder,
+        Map<String, Integer> stopIndicesById,
+        Map<String, Integer> tripIndicesById) {
+      this.builder = builder;
+      this.stopIndicesById = stopIndicesById;
+      this.tripIndicesById = tripIndicesById;
+    }
+
+    public void append(StopTimeChunk chunk) {
+      for (int i = 0; i < chunk.size; ++i) {
+        Integer tripIndex = tripIndicesById.get(chunk.tripIds[i]);
+        Integer stopIndex = stopIndicesById.get(chunk.stopIds[i]);
+        if (tripIndex == null || stopIndex == null) {
+          skipped++;
+          continue;
+        }
+        builder.addStopTime(tripIndex, stopIndex, chunk.arrivalTimes[i],
+            chunk.departureTimes[i], chunk.stopSequences[i]);
+      }
+    }
+
+    public void logSkippedStopTimes() {
+      if (skipped > 0) {
+        _log.warn("stop times with unknown trip or stop: " + skipped);
+      }
+    }
+  }
+
+  /**
+   * A GTFS feed, either as a zip file or a directory of txt files.
+   */
+  private static class GtfsSource {
+
+    private final File path;
+
+    private final ZipFile zipFile;
+
+    public GtfsSource(File path) throws IOException {
+      this.path = path;
+      this.zipFile = path.isDirectory() ? null : new ZipFile(path);
+    }
+
+    /**
+     * @return a reader for the named file, or null if the feed doesn't have it
+     */
+    public BufferedReader openReader(String name) throws IOException {
+      InputStream in = null;
+      if (zipFile != null) {
+        ZipEntry entry = zipFile.getEntry(name);
+        if (entry == null) {
+          return null;
+        }
+        in = zipFile.getInputStream(entry);
+      } else {
+        File file = new File(path, name);
+        if (!file.exists()) {
+          return null;
+        }
+        in = new FileInputStream(file);
+      }
+      return new BufferedReader(new InputStreamReader(in, "UTF-8"));
+    }
+
+    public void close() throws IOException {
+      if (zipFile != null) {
+        zipFile.close();
+      }
+    }
+  }
+}
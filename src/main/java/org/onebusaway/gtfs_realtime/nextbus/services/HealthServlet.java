@@ -0,0 +1,143 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.nextbus.services;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+import javax.inject.Inject;
+import javax.servlet.Servlet;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.onebusaway.gtfs_realtime.nextbus.model.RouteHealth;
+import org.onebusaway.guice.jetty_exporter.ServletSource;
+
+/**
+ * Reports feed health as JSON, with a 200 status when
+ * {@link FeedHealthService#isHealthy(long)} and a 503 otherwise, so a load
+ * balancer can act on the status alone. Ages are in seconds. Add
+ * {@code ?routes=true} for a per-route breakdown, stalest first.
+ */
+public class HealthServlet extends HttpServlet implements ServletSource {
+
+  private static final long serialVersionUID = 1L;
+
+  private FeedHealthService _feedHealthService;
+
+  private URL _url;
+
+  @Inject
+  public void setFeedHealthService(FeedHealthService feedHealthService) {
+    _feedHealthService = feedHealthService;
+  }
+
+  public void setUrl(URL url) {
+    _url = url;
+  }
+
+  @Override
+  public URL getUrl() {
+    return _url;
+  }
+
+  @Override
+  public Servlet getServlet() {
+    return this;
+  }
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+      throws ServletException, IOException {
+    final long now = System.currentTimeMillis();
+    boolean healthy = _feedHealthService.isHealthy(now);
+    long[] staleness = _feedHealthService.getSortedStaleness(now);
+
+    resp.setStatus(healthy ? HttpServletResponse.SC_OK
+        : HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    resp.setContentType("application/json; charset=utf-8");
+    resp.setHeader("Cache-Control", "no-cache");
+    PrintWriter out = resp.getWriter();
+    out.print("{\"status\":\"" + (healthy ? "ok" : "degraded") + "\"");
+    out.print(",\"feedAge\":" + seconds(_feedHealthService.getFeedAge(now)));
+    out.print(",\"routeCount\":" + staleness.length);
+    out.print(",\"staleness\":{\"p50\":"
+        + seconds(FeedHealthService.getPercentile(staleness, 0.5)));
+    out.print(",\"p95\":"
+        + seconds(FeedHealthService.getPercentile(staleness, 0.95)));
+    out.print(",\"max\":"
+        + seconds(FeedHealthService.getPercentile(staleness, 1.0)) + "}");
+
+    if ("true".equals(req.getParameter("routes"))) {
+      List<RouteHealth> routes = _feedHealthService.getRouteHealth();
+      Collections.sort(routes, new Comparator<RouteHealth>() {
+        @Override
+        public int compare(RouteHealth o1, RouteHealth o2) {
+          return Long.signum(o2.getStaleness(now) - o1.getStaleness(now));
+        }
+      });
+      out.print(",\"routes\":[");
+      for (int i = 0; i < routes.size(); ++i) {
+        RouteHealth route = routes.get(i);
+        if (i > 0) {
+          out.print(",");
+        }
+        out.print("{\"routeTag\":" + quote(route.getRouteTag()));
+        out.print(",\"staleness\":" + seconds(route.getStaleness(now)));
+        out.print(",\"lastSuccessTime\":" + route.getLastSuccessTime());
+        out.print(",\"predictionCount\":" + route.getPredictionCount());
+        if (route.getLastError() != null) {
+          out.print(",\"lastErrorTime\":" + route.getLastErrorTime());
+          out.print(",\"lastError\":" + quote(route.getLastError()));
+        }
+        out.print("}");
+      }
+      out.print("]");
+    }
+    out.println("}");
+    out.flush();
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  private static String seconds(long millis) {
+    return String.format(Locale.US, "%.1f", millis / 1000.0);
+  }
+
+  private static String quote(String value) {
+    StringBuilder b = new StringBuilder("\"");
+    for (int i = 0; i < value.length(); ++i) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        b.append('\\').append(c);
+      } else if (c < 0x20) {
+        b.append(String.format("\\u%04x", (int) c));
+      } else {
+        b.append(c);
+      }
+    }
+    return b.append('"').toString();
+  }
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.nextbus.services;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Limits how often a given type of log message is written. Within each
+ * interval, the first {@code burst} messages of a type are logged, and after
+ * that only one in {@code sampleEvery}. Callers check
+ * {@link #isLoggable(String)} before building the message, so a suppressed
+ * message costs nothing, and append {@link #getSuppressedSuffix(String)} so
+ * the log still says how much was left out.
+ */
+class LogRateLimiter {
+
+  private final int _burst;
+
+  private final int _sampleEvery;
+
+  private final long _interval;
+
+  private final ConcurrentMap<String, MessageType> _messageTypes = new ConcurrentHashMap<String, MessageType>();
+
+  /**
+   * Ten messages of each type a minute, then one in a hundred
+   */
+  public LogRateLimiter() {
+    this(10, 100, 60 * 1000);
+  }
+
+  /**
+   * 
+   * @param burst the number of messages of each type logged per interval
+   *          before sampling kicks in
+   * @param sampleEvery log one in this many messages past the burst
+   * @param interval time, in milliseconds
+   */
+  public LogRateLimiter(int burst, int sampleEvery, long interval) {
+    _burst = burst;
+    _sampleEvery = sampleEvery;
+    _interval = interval;
+  }
+
+  /**
+   * Counts a message of the specified type.
+   * 
+   * @param messageType
+   * @return true if the message should be logged
+   */
+  public boolean isLoggable(String messageType) {
+    return getMessageType(messageType).isLoggable(System.currentTimeMillis());
+  }
+
+  /**
+   * 
+   * @param messageType
+   * @return a note on how many messages of the specified type were suppressed
+   *         since the last one was logged, or an empty string if none were
+   */
+  public String getSuppressedSuffix(String messageType) {
+    int suppressed = getMessageType(messageType).getAndResetSuppressed();
+    if (suppressed == 0) {
+      return "";
+    }
+    return " (" + suppressed + " similar messages suppressed)";
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  private MessageType getMessageType(String name) {
+    MessageType messageType = _messageTypes.get(name);
+    if (messageType == null) {
+      messageType = new MessageType();
+      MessageType existing = _messageTypes.putIfAbsent(name, messageType);
+      if (existing != null) {
+        messageType = existing;
+      }
+    }
+    return messageType;
+  }
+
+  private class MessageType {
+
+    private long _intervalStart = 0;
+
+    private int _count = 0;
+
+    private int _suppressed = 0;
+
+    public synchronized boolean isLoggable(long now) {
+      if (now - _intervalStart >= _interval) {
+        _intervalStart = now;
+        _count = 0;
+      }
+      _count++;
+      if (_count <= _burst || (_count - _burst) % _sampleEvery == 0) {
+        return true;
+      }
+      _suppressed++;
+      return false;
+    }
+
+    public synchronized int getAndResetSuppressed() {
+      int suppressed = _suppressed;
+      _suppressed = 0;
+      return suppressed;
+    }
+  }
+}
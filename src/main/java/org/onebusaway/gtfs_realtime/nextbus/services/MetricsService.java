@@ -0,0 +1,440 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.nextbus.services;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Singleton;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A small registry of operational metrics, shared by all the services. Every
+ * metric is declared up front, below, with its type and help text, so this
+ * class doubles as the list of what we measure.
+ * 
+ * Metrics are published as attributes of a single JMX MBean, named
+ * {@value #OBJECT_NAME}, and in the Prometheus text format through
+ * {@link MetricsServlet}. Durations are in seconds and sizes in bytes, per
+ * Prometheus conventions.
+ * 
+ * Services that are constructed outside of Guice get a private, unpublished
+ * instance, so they can record metrics unconditionally.
+ */
+@Singleton
+public class MetricsService {
+
+  private static final Logger _log = LoggerFactory.getLogger(MetricsService.class);
+
+  public static final String OBJECT_NAME = "org.onebusaway.gtfs_realtime.nextbus:type=Metrics";
+
+  public static final String DOWNLOADS = "nextbus_downloads_total";
+
+  public static final String DOWNLOAD_BYTES = "nextbus_download_bytes_total";
+
+  public static final String THROTTLE_EVENTS = "nextbus_throttle_events_total";
+
+  public static final String THROTTLE_DELAY = "nextbus_throttle_delay_seconds_total";
+
+  public static final String PARSE_TIME = "nextbus_parse_seconds";
+
+  public static final String PARSE_ERRORS = "nextbus_parse_errors_total";
+
+  public static final String ROUTES = "nextbus_routes";
+
+  public static final String ROUTE_STOPS = "nextbus_route_stops";
+
+  public static final String COVERED_STOPS = "nextbus_covered_stops";
+
+  public static final String COVERAGE_REFRESH_TIME = "nextbus_coverage_refresh_seconds";
+
+  public static final String GTFS_MATCHED_ROUTES = "gtfs_matched_routes";
+
+  public static final String GTFS_UNMATCHED_ROUTES = "gtfs_unmatched_routes";
+
+  public static final String GTFS_MATCHED_STOPS = "gtfs_matched_stops";
+
+  public static final String GTFS_UNMATCHED_STOPS = "gtfs_unmatched_stops";
+
+  public static final String GTFS_MATCHING_TIME = "gtfs_matching_seconds";
+
+  public static final String GTFS_PREDICTIONS = "gtfs_mapped_predictions_total";
+
+  public static final String CYCLES = "realtime_cycles_total";
+
+  public static final String CYCLE_TIME = "realtime_cycle_seconds";
+
+  public static final String LAST_CYCLE_TIME = "realtime_last_cycle_seconds";
+
+  public static final String ROUTE_ERRORS = "realtime_route_errors_total";
+
+  public static final String ENTITIES_PUBLISHED = "realtime_entities_published_total";
+
+  private static final String COUNTER = "counter";
+
+  private static final String GAUGE = "gauge";
+
+  private static final String SUMMARY = "summary";
+
+  private final Map<String, Family> _families = new LinkedHashMap<String, Family>();
+
+  private ObjectName _objectName;
+
+  public MetricsService() {
+    declare(DOWNLOADS, COUNTER, "command", "NextBus API requests");
+    declare(DOWNLOAD_BYTES, COUNTER, "command",
+        "NextBus API response bytes, as sent over the wire");
+    declare(THROTTLE_EVENTS, COUNTER, null,
+        "requests delayed to stay under the NextBus API bandwidth limit");
+    declare(THROTTLE_DELAY, COUNTER, null,
+        "time spent waiting to stay under the NextBus API bandwidth limit");
+    declare(PARSE_TIME, SUMMARY, "command",
+        "time spent reading and parsing NextBus API response bodies");
+    declare(PARSE_ERRORS, COUNTER, "command",
+        "NextBus API responses that could not be parsed");
+    declare(ROUTES, GAUGE, null, "routes in the current route configuration");
+    declare(ROUTE_STOPS, GAUGE, null,
+        "stops, counted once per route, in the current route configuration");
+    declare(COVERED_STOPS, GAUGE, null,
+        "stops, counted once per route, selected for prediction requests");
+    declare(COVERAGE_REFRESH_TIME, GAUGE, null,
+        "time taken by the last route configuration refresh, including GTFS matching");
+    declare(GTFS_MATCHED_ROUTES, GAUGE, null, "routes matched to a GTFS route");
+    declare(GTFS_UNMATCHED_ROUTES, GAUGE, null,
+        "routes not matched to a GTFS route");
+    declare(GTFS_MATCHED_STOPS, GAUGE, null,
+        "route, direction and stop combinations matched to a GTFS stop");
+    declare(GTFS_UNMATCHED_STOPS, GAUGE, null,
+        "route, direction and stop combinations not matched to a GTFS stop");
+    declare(GTFS_MATCHING_TIME, GAUGE, null,
+        "time taken by the last GTFS matching rebuild");
+    declare(GTFS_PREDICTIONS, COUNTER, "result",
+        "predictions mapped to GTFS, by whether their stop was matched");
+    declare(CYCLES, COUNTER, null, "processing cycles completed");
+    declare(CYCLE_TIME, SUMMARY, null,
+        "time taken by processing cycles, not counting the sleep between them");
+    declare(LAST_CYCLE_TIME, GAUGE, null,
+        "time taken by the most recent processing cycle");
+    declare(ROUTE_ERRORS, COUNTER, null, "routes that failed to process");
+    declare(ENTITIES_PUBLISHED, COUNTER, "feed",
+        "entities published to the GTFS-realtime feeds");
+  }
+
+  @PostConstruct
+  public void start() {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    try {
+      ObjectName objectName = new ObjectName(OBJECT_NAME);
+      if (server.isRegistered(objectName)) {
+        server.unregisterMBean(objectName);
+      }
+      server.registerMBean(new MetricsMBean(), objectName);
+      _objectName = objectName;
+    } catch (JMException ex) {
+      _log.warn("error registering metrics with JMX", ex);
+    }
+  }
+
+  @PreDestroy
+  public void stop() {
+    if (_objectName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(_objectName);
+      } catch (JMException ex) {
+        _log.warn("error unregistering metrics from JMX", ex);
+      }
+      _objectName = null;
+    }
+  }
+
+  public void increment(String name) {
+    add(name, null, 1);
+  }
+
+  public void increment(String name, String labelValue) {
+    add(name, labelValue, 1);
+  }
+
+  public void add(String name, double value) {
+    add(name, null, value);
+  }
+
+  /**
+   * Adds to a counter.
+   * 
+   * @param name
+   * @param labelValue the value of the metric's label, or null if it has none
+   * @param value
+   */
+  public void add(String name, String labelValue, double value) {
+    getSample(name, labelValue).add(value);
+  }
+
+  public void set(String name, double value) {
+    getSample(name, null).set(value);
+  }
+
+  /**
+   * Records one observation, typically a duration in seconds, of a summary.
+   * 
+   * @param name
+   * @param labelValue the value of the metric's label, or null if it has none
+   * @param value
+   */
+  public void observe(String name, String labelValue, double value) {
+    getSample(name, labelValue).observe(value);
+  }
+
+  public void observe(String name, double value) {
+    observe(name, null, value);
+  }
+
+  /**
+   * 
+   * @return the current value of every sample, keyed the way it appears in the
+   *         Prometheus text format, e.g. {@code
+   *         nextbus_downloads_total{command="routeList"}}
+   */
+  public Map<String, Double> getValues() {
+    Map<String, Double> values = new LinkedHashMap<String, Double>();
+    for (Family family : _families.values()) {
+      for (Map.Entry<String, Sample> entry : family.getSortedSamples()) {
+        Sample sample = entry.getValue();
+        String labels = getLabels(family, entry.getKey());
+        if (SUMMARY.equals(family.type)) {
+          values.put(family.name + "_count" + labels, sample.getCount());
+          values.put(family.name + "_sum" + labels, sample.getValue());
+        } else {
+          values.put(family.name + labels, sample.getValue());
+        }
+      }
+    }
+    return values;
+  }
+
+  /**
+   * Writes every metric in version 0.0.4 of the Prometheus text exposition
+   * format.
+   * 
+   * @param out
+   * @throws IOException
+   */
+  public void writePrometheusText(Writer out) throws IOException {
+    for (Family family : _families.values()) {
+      out.write("# HELP " + family.name + " " + family.help + "\n");
+      out.write("# TYPE " + family.name + " " + family.type + "\n");
+      for (Map.Entry<String, Sample> entry : family.getSortedSamples()) {
+        Sample sample = entry.getValue();
+        String labels = getLabels(family, entry.getKey());
+        if (SUMMARY.equals(family.type)) {
+          out.write(family.name + "_count" + labels + " "
+              + format(sample.getCount()) + "\n");
+          out.write(family.name + "_sum" + labels + " "
+              + format(sample.getValue()) + "\n");
+        } else {
+          out.write(family.name + labels + " " + format(sample.getValue())
+              + "\n");
+        }
+      }
+    }
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  private void declare(String name, String type, String labelName, String help) {
+    _families.put(name, new Family(name, type, labelName, help));
+  }
+
+  private Sample getSample(String name, String labelValue) {
+    Family family = _families.get(name);
+    if (family == null) {
+      throw new IllegalArgumentException("unknown metric: " + name);
+    }
+    String key = labelValue != null ? labelValue : "";
+    Sample sample = family.samples.get(key);
+    if (sample == null) {
+      sample = new Sample();
+      Sample existing = family.samples.putIfAbsent(key, sample);
+      if (existing != null) {
+        sample = existing;
+      }
+    }
+    return sample;
+  }
+
+  private static String getLabels(Family family, String labelValue) {
+    if (family.labelName == null) {
+      return "";
+    }
+    String escaped = labelValue.replace("\\", "\\\\").replace("\"",
+        "\\\"").replace("\n", "\\n");
+    return "{" + family.labelName + "=\"" + escaped + "\"}";
+  }
+
+  private static String format(double value) {
+    if (Double.isInfinite(value)) {
+      return value > 0 ? "+Inf" : "-Inf";
+    }
+    if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+      return Long.toString((long) value);
+    }
+    return Double.toString(value);
+  }
+
+  private static class Family {
+
+    private final String name;
+
+    private final String type;
+
+    private final String labelName;
+
+    private final String help;
+
+    private final ConcurrentMap<String, Sample> samples = new ConcurrentHashMap<String, Sample>();
+
+    public Family(String name, String type, String labelName, String help) {
+      this.name = name;
+      this.type = type;
+      this.labelName = labelName;
+      this.help = help;
+    }
+
+    public List<Map.Entry<String, Sample>> getSortedSamples() {
+      List<String> keys = new ArrayList<String>(samples.keySet());
+      Collections.sort(keys);
+      List<Map.Entry<String, Sample>> entries = new ArrayList<Map.Entry<String, Sample>>();
+      for (String key : keys) {
+        entries.add(new AbstractMap.SimpleImmutableEntry<String, Sample>(
+            key, samples.get(key)));
+      }
+      return entries;
+    }
+  }
+
+  /**
+   * The value of a counter or gauge, or the count and sum of a summary
+   */
+  private static class Sample {
+
+    private double _value;
+
+    private long _count;
+
+    public synchronized void add(double value) {
+      _value += value;
+    }
+
+    public synchronized void set(double value) {
+      _value = value;
+    }
+
+    public synchronized void observe(double value) {
+      _value += value;
+      _count++;
+    }
+
+    public synchronized double getValue() {
+      return _value;
+    }
+
+    public synchronized double getCount() {
+      return _count;
+    }
+  }
+
+  /**
+   * Publishes each sample as a read-only attribute
+   */
+  private class MetricsMBean implements DynamicMBean {
+
+    @Override
+    public Object getAttribute(String attribute)
+        throws AttributeNotFoundException {
+      Double value = getValues().get(attribute);
+      if (value == null) {
+        throw new AttributeNotFoundException(attribute);
+      }
+      return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+      Map<String, Double> values = getValues();
+      AttributeList list = new AttributeList();
+      for (String attribute : attributes) {
+        Double value = values.get(attribute);
+        if (value != null) {
+          list.add(new Attribute(attribute, value));
+        }
+      }
+      return list;
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+      List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+      for (String name : getValues().keySet()) {
+        attributes.add(new MBeanAttributeInfo(name, "double", name, true,
+            false, false));
+      }
+      return new MBeanInfo(MetricsService.class.getName(),
+          "NextBus to GTFS-realtime metrics",
+          attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null,
+          null, null);
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute)
+        throws AttributeNotFoundException {
+      throw new AttributeNotFoundException("metrics are read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+      return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+      throw new UnsupportedOperationException(actionName);
+    }
+  }
+}
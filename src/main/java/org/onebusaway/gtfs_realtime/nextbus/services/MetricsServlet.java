@@ -0,0 +1,70 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.nextbus.services;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URL;
+
+import javax.inject.Inject;
+import javax.servlet.Servlet;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.onebusaway.guice.jetty_exporter.ServletSource;
+
+/**
+ * Serves the contents of {@link MetricsService} in the Prometheus text format
+ * on the embedded web server, at the url set with {@link #setUrl(URL)}.
+ */
+public class MetricsServlet extends HttpServlet implements ServletSource {
+
+  private static final long serialVersionUID = 1L;
+
+  private MetricsService _metricsService;
+
+  private URL _url;
+
+  @Inject
+  public void setMetricsService(MetricsService metricsService) {
+    _metricsService = metricsService;
+  }
+
+  public void setUrl(URL url) {
+    _url = url;
+  }
+
+  @Override
+  public URL getUrl() {
+    return _url;
+  }
+
+  @Override
+  public Servlet getServlet() {
+    return this;
+  }
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+      throws ServletException, IOException {
+    resp.setContentType("text/plain; version=0.0.4; charset=utf-8");
+    Writer out = resp.getWriter();
+    _metricsService.writePrometheusText(out);
+    out.flush();
+  }
+}
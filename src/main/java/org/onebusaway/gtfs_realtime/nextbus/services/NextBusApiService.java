@@ -28,6 +28,7 @@ import java.io.UnsupportedEncodingException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 import javax.inject.Inject;
@@ -57,15 +58,40 @@ public class NextBusApiService {
 
   private String _agencyId;
 
-  private Digester _digester = getDigester();
+  /**
+   * A {@link Digester} isn't safe for concurrent use, and routes are matched
+   * in parallel, so each thread gets its own.
+   */
+  private ThreadLocal<Digester> _digester = new ThreadLocal<Digester>() {
+    @Override
+    protected Digester initialValue() {
+      return getDigester();
+    }
+  };
 
   private File _cacheDirectory;
 
+  private MetricsService _metricsService = new MetricsService();
+
+  private PipelineTracer _tracer = new PipelineTracer();
+
+  private final LogRateLimiter _logLimiter = new LogRateLimiter();
+
   @Inject
   public void setDownloader(DownloaderService downloader) {
     _downloader = downloader;
   }
 
+  @Inject
+  public void setMetricsService(MetricsService metricsService) {
+    _metricsService = metricsService;
+  }
+
+  @Inject
+  public void setPipelineTracer(PipelineTracer tracer) {
+    _tracer = tracer;
+  }
+
   public void setAgencyId(String agencyId) {
     _agencyId = agencyId;
   }
@@ -97,13 +123,18 @@ public class NextBusApiService {
     return (List<NBRoute>) digestUrl(url, true);
   }
 
-  @SuppressWarnings("unchecked")
   public List<NBPredictions> downloadPredictions(RouteStopCoverage coverage)
       throws IOException {
+    return downloadPredictions(coverage.getRouteTag(), coverage.getStopTags());
+  }
+
+  @SuppressWarnings("unchecked")
+  public List<NBPredictions> downloadPredictions(String routeTag,
+      Collection<String> stopTags) throws IOException {
     String url = getBaseUrl() + "/service/publicXMLFeed?command=predictionsForMultiStops&a="
         + _agencyId;
-    for (String stopTag : coverage.getStopTags()) {
-      url += "&stops=" + coverage.getRouteTag() + "%7c" + stopTag;
+    for (String stopTag : stopTags) {
+      url += "&stops=" + routeTag + "%7c" + stopTag;
     }
     return (List<NBPredictions>) digestUrl(url, false);
   }
@@ -144,7 +175,17 @@ public class NextBusApiService {
       }
     }
     InputStream in = _downloader.openUrl(url);
+    String command = DownloaderService.getCommand(url);
+    Object trace = _tracer.begin(PipelineStage.PARSE);
+    long t0 = System.nanoTime();
     Object result = safeDigest(in);
+    _metricsService.observe(MetricsService.PARSE_TIME, command,
+        (System.nanoTime() - t0) / 1e9);
+    _tracer.end(trace, DownloaderService.getRouteTag(url), -1,
+        result instanceof List<?> ? ((List<?>) result).size() : 0);
+    if (result == null) {
+      _metricsService.increment(MetricsService.PARSE_ERRORS, command);
+    }
     if (cache && cacheFile != null) {
       ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(
           new FileOutputStream(cacheFile)));
@@ -156,9 +197,12 @@ public class NextBusApiService {
 
   private Object safeDigest(InputStream in) throws IOException {
     try {
-      return _digester.parse(in);
+      return _digester.get().parse(in);
     } catch (Exception ex) {
-      _log.error("Error digesting: " + ex.toString());
+      if (_logLimiter.isLoggable("digest")) {
+        _log.error("Error digesting: " + ex.toString()
+            + _logLimiter.getSuppressedSuffix("digest"));
+      }
       return null;
     }
     finally {
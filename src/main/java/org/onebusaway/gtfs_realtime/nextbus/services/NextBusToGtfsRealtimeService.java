@@ -17,11 +17,12 @@ package org.onebusaway.gtfs_realtime.nextbus.services;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -31,7 +32,6 @@ import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
-import org.onebusaway.collections.FactoryMap;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeIncrementalUpdate;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeSink;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeGuiceBindingTypes.TripUpdates;
@@ -47,10 +47,6 @@ import org.slf4j.LoggerFactory;
 
 import com.google.transit.realtime.GtfsRealtime.FeedEntity;
 import com.google.transit.realtime.GtfsRealtime.Position;
-import com.google.transit.realtime.GtfsRealtime.TripDescriptor;
-import com.google.transit.realtime.GtfsRealtime.TripUpdate;
-import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeEvent;
-import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeUpdate;
 import com.google.transit.realtime.GtfsRealtime.VehicleDescriptor;
 import com.google.transit.realtime.GtfsRealtime.VehiclePosition;
 
@@ -59,8 +55,6 @@ public class NextBusToGtfsRealtimeService {
 
   private static final Logger _log = LoggerFactory.getLogger(NextBusToGtfsRealtimeService.class);
 
-  private static final PredictionComparator _predictionComparator = new PredictionComparator();
-
   private RouteStopCoverageService _routeStopCoverageService;
 
   private NextBusApiService _nextBusApiService;
@@ -71,12 +65,49 @@ public class NextBusToGtfsRealtimeService {
 
   private GtfsRealtimeSink _vehiclePositionsSink;
 
+  private MetricsService _metricsService = new MetricsService();
+
+  private PipelineTracer _tracer = new PipelineTracer();
+
+  private FeedHealthService _feedHealthService = new FeedHealthService();
+
+  private final LogRateLimiter _logLimiter = new LogRateLimiter();
+
   private ExecutorService _executor;
 
   private Future<?> _task;
 
+  private final TripUpdateFactory _tripUpdateFactory = new TripUpdateFactory();
+
   private Map<String, Long> _prevVehiclePositionRequestTimeByRouteTag = new HashMap<String, Long>();
 
+  /**
+   * When stop coverage is rotating or adaptive, the most recent predictions for
+   * each stop, keyed by route tag and then stop tag.
+   */
+  private Map<String, Map<String, NBPredictions>> _recentPredictionsByRouteTag = new HashMap<String, Map<String, NBPredictions>>();
+
+  /**
+   * The index of the current processing cycle, used to select the stops polled
+   * for rotating stop coverage.
+   */
+  private volatile int _cycle = 0;
+
+  /**
+   * Time, in milliseconds, taken by the most recent processing cycle
+   */
+  private volatile long _lastCycleDuration = 0;
+
+  /**
+   * Totals for the current cycle, for the per-cycle summary. Only touched by
+   * the processing thread.
+   */
+  private int _cyclePredictionCount = 0;
+
+  private int _cycleTripUpdateCount = 0;
+
+  private int _cycleVehiclePositionCount = 0;
+
   /**
    * The minimum amount of time, in seconds, between repeated requests for the
    * same route.
@@ -115,6 +146,21 @@ public class NextBusToGtfsRealtimeService {
     _vehiclePositionsSink = vehiclePositionsSink;
   }
 
+  @Inject
+  public void setMetricsService(MetricsService metricsService) {
+    _metricsService = metricsService;
+  }
+
+  @Inject
+  public void setPipelineTracer(PipelineTracer tracer) {
+    _tracer = tracer;
+  }
+
+  @Inject
+  public void setFeedHealthService(FeedHealthService feedHealthService) {
+    _feedHealthService = feedHealthService;
+  }
+
   /**
    * Sets the minimum amount of time, in seconds, between repeated requests for
    * the same route.
@@ -125,6 +171,10 @@ public class NextBusToGtfsRealtimeService {
     _minimumTimeBetweenRequests = mininmumTimeInSeconds;
   }
 
+  public int getMinimumTimeBetweenRequests() {
+    return _minimumTimeBetweenRequests;
+  }
+
   public void setEnableTripUpdates(boolean enableTripUpdates) {
     _tripUpdatesEnabled = enableTripUpdates;
   }
@@ -133,6 +183,23 @@ public class NextBusToGtfsRealtimeService {
     _vehiclePositionsEnabled = enableVehiclePositions;
   }
 
+  /**
+   * 
+   * @return the number of processing cycles completed so far
+   */
+  public int getCycleCount() {
+    return _cycle;
+  }
+
+  /**
+   * 
+   * @return the time, in milliseconds, taken by the most recent processing
+   *         cycle, not counting the sleep between cycles
+   */
+  public long getLastCycleDuration() {
+    return _lastCycleDuration;
+  }
+
   /****
    * Service Entry Point
    ****/
@@ -159,23 +226,129 @@ public class NextBusToGtfsRealtimeService {
       throws IOException {
 
     String routeTag = routeStopCoverage.getRouteTag();
-    _log.info("route=" + routeTag);
+    _log.debug("route=" + routeTag);
 
+    int predictionCount = 0;
     if (_tripUpdatesEnabled) {
-      generateTripUpdates(routeStopCoverage);
+      predictionCount = generateTripUpdates(routeStopCoverage);
     }
 
     if (_vehiclePositionsEnabled) {
       generateVehiclePositions(routeTag);
     }
+
+    _feedHealthService.noteSuccess(routeTag, predictionCount);
+    _cyclePredictionCount += predictionCount;
   }
 
-  private void generateTripUpdates(RouteStopCoverage routeStopCoverage)
+  /**
+   * 
+   * @param routeStopCoverage
+   * @return the number of predictions the trip updates were built from
+   * @throws IOException
+   */
+  private int generateTripUpdates(RouteStopCoverage routeStopCoverage)
       throws IOException {
-    List<NBPredictions> allPredictions = _nextBusApiService.downloadPredictions(routeStopCoverage);
+    Set<String> stopTags = _routeStopCoverageService.getStopTagsForCycle(
+        routeStopCoverage, _cycle);
+    List<NBPredictions> allPredictions = _nextBusApiService.downloadPredictions(
+        routeStopCoverage.getRouteTag(), stopTags);
+    _routeStopCoverageService.notePredictionsForCycle(
+        routeStopCoverage.getRouteTag(), allPredictions, _cycle);
+    if (routeStopCoverage.getStopTagSliceCount() > 0) {
+      allPredictions = mergeWithRecentPredictions(
+          routeStopCoverage.getRouteTag(), allPredictions);
+    }
+    return publishPredictions(routeStopCoverage.getRouteTag(), allPredictions);
+  }
+
+  /**
+   * Flattens the predictions for a route, maps them to GTFS ids and publishes
+   * the resulting trip updates. This is the per-route work of each cycle once
+   * the predictions are downloaded.
+   * 
+   * @param routeTag
+   * @param allPredictions
+   * @return the number of predictions the trip updates were built from
+   */
+  public int publishPredictions(String routeTag,
+      List<NBPredictions> allPredictions) {
     List<FlatPrediction> flatPredictions = flattenPredictions(allPredictions);
-    Map<TripUpdateId, List<FlatPrediction>> predictionsById = groupPredictionsById(flatPredictions);
-    processPredictionGroup(predictionsById);
+    processPredictionGroup(routeTag, flatPredictions);
+    return flatPredictions.size();
+  }
+
+  /**
+   * With rotating stop coverage, only a slice of the stops along a route is
+   * polled in any given cycle. Here we cache the freshly-downloaded predictions
+   * and fill in the remaining stops with their most recent predictions, minus
+   * any predicted times that have already passed.
+   * 
+   * @param routeTag
+   * @param predictions the freshly-downloaded predictions
+   * @return the fresh predictions plus the most recent cached predictions for
+   *         all other stops along the route
+   */
+  private List<NBPredictions> mergeWithRecentPredictions(String routeTag,
+      List<NBPredictions> predictions) {
+    Map<String, NBPredictions> recentPredictions = _recentPredictionsByRouteTag.get(routeTag);
+    if (recentPredictions == null) {
+      recentPredictions = new HashMap<String, NBPredictions>();
+      _recentPredictionsByRouteTag.put(routeTag, recentPredictions);
+    }
+    Map<String, NBPredictions> freshPredictions = new HashMap<String, NBPredictions>();
+    for (NBPredictions stopPredictions : predictions) {
+      freshPredictions.put(stopPredictions.getStopTag(), stopPredictions);
+    }
+    recentPredictions.putAll(freshPredictions);
+
+    long now = System.currentTimeMillis();
+    List<NBPredictions> merged = new ArrayList<NBPredictions>(predictions);
+    for (Iterator<NBPredictions> it = recentPredictions.values().iterator(); it.hasNext();) {
+      NBPredictions stopPredictions = it.next();
+      if (freshPredictions.containsKey(stopPredictions.getStopTag())) {
+        continue;
+      }
+      NBPredictions pruned = pruneExpiredPredictions(stopPredictions, now);
+      if (pruned == null) {
+        it.remove();
+      } else {
+        merged.add(pruned);
+      }
+    }
+    return merged;
+  }
+
+  /**
+   * 
+   * @param predictions
+   * @param now
+   * @return a copy of the specified predictions with all predicted times
+   *         before now removed, or null if no predictions remain
+   */
+  private static NBPredictions pruneExpiredPredictions(
+      NBPredictions predictions, long now) {
+    NBPredictions pruned = new NBPredictions();
+    pruned.setAgencyTitle(predictions.getAgencyTitle());
+    pruned.setRouteCode(predictions.getRouteCode());
+    pruned.setRouteTag(predictions.getRouteTag());
+    pruned.setRouteTitle(predictions.getRouteTitle());
+    pruned.setStopTag(predictions.getStopTag());
+    pruned.setStopTitle(predictions.getStopTitle());
+    boolean hasPredictions = false;
+    for (NBDirection direction : predictions.getDirections()) {
+      NBDirection prunedDirection = new NBDirection();
+      prunedDirection.setTag(direction.getTag());
+      prunedDirection.setTitle(direction.getTitle());
+      for (NBPrediction prediction : direction.getPredictions()) {
+        if (prediction.getEpochTime() >= now) {
+          prunedDirection.addPrediction(prediction);
+          hasPredictions = true;
+        }
+      }
+      pruned.addDirection(prunedDirection);
+    }
+    return hasPredictions ? pruned : null;
   }
 
   private List<FlatPrediction> flattenPredictions(
@@ -203,58 +376,16 @@ public class NextBusToGtfsRealtimeService {
     return flattened;
   }
 
-  private Map<TripUpdateId, List<FlatPrediction>> groupPredictionsById(
-      List<FlatPrediction> flatPredictions) {
-    Map<TripUpdateId, List<FlatPrediction>> predictionsById = new FactoryMap<TripUpdateId, List<FlatPrediction>>(
-        new ArrayList<FlatPrediction>());
-    for (FlatPrediction prediction : flatPredictions) {
-      String vehicleId = prediction.getVehicle();
-      if (vehicleId == null) {
-        continue;
-      }
-      String tripId = prediction.getTripTag();
-      TripUpdateId id = new TripUpdateId(vehicleId, tripId);
-      predictionsById.get(id).add(prediction);
-    }
-    return predictionsById;
-  }
-
-  private void processPredictionGroup(
-      Map<TripUpdateId, List<FlatPrediction>> predictionsById) {
+  private void processPredictionGroup(String routeTag,
+      List<FlatPrediction> predictions) {
+    Object trace = _tracer.begin(PipelineStage.PROCESS_PREDICTIONS);
     GtfsRealtimeIncrementalUpdate update = new GtfsRealtimeIncrementalUpdate();
-    for (Map.Entry<TripUpdateId, List<FlatPrediction>> entry : predictionsById.entrySet()) {
-      TripUpdateId id = entry.getKey();
-      List<FlatPrediction> predictions = entry.getValue();
-      Collections.sort(predictions, _predictionComparator);
-      FlatPrediction first = predictions.get(0);
-
-      TripUpdate.Builder tripUpdate = TripUpdate.newBuilder();
-      TripDescriptor.Builder tripDescriptor = TripDescriptor.newBuilder();
-      if (first.getRouteTag() != null) {
-        tripDescriptor.setRouteId(first.getRouteTag());
-      }
-      if (id.getTripId() != null) {
-        tripDescriptor.setTripId(id.getTripId());
-      }
-      tripUpdate.setTrip(tripDescriptor);
-      VehicleDescriptor.Builder vehicle = VehicleDescriptor.newBuilder();
-      vehicle.setId(id.getVehicleId());
-      tripUpdate.setVehicle(vehicle);
-
-      for (FlatPrediction prediction : predictions) {
-        StopTimeUpdate.Builder stopTimeUpdate = StopTimeUpdate.newBuilder();
-        stopTimeUpdate.setStopId(prediction.getStopTag());
-        StopTimeEvent.Builder stopTimeEvent = StopTimeEvent.newBuilder();
-        stopTimeEvent.setTime(prediction.getEpochTime() / 1000);
-        stopTimeUpdate.setDeparture(stopTimeEvent);
-        tripUpdate.addStopTimeUpdate(stopTimeUpdate);
-      }
-      FeedEntity.Builder feedEntity = FeedEntity.newBuilder();
-      feedEntity.setId(id.getFeedEntityId());
-      feedEntity.setTripUpdate(tripUpdate);
-      update.addUpdatedEntity(feedEntity.build());
-    }
+    int entityCount = _tripUpdateFactory.addTripUpdates(predictions, update);
     _tripUpdatesSink.handleIncrementalUpdate(update);
+    _tracer.end(trace, routeTag, -1, entityCount);
+    _metricsService.add(MetricsService.ENTITIES_PUBLISHED, "trip_updates",
+        entityCount);
+    _cycleTripUpdateCount += entityCount;
   }
 
   private void generateVehiclePositions(String routeTag) throws IOException {
@@ -286,6 +417,51 @@ public class NextBusToGtfsRealtimeService {
       update.addUpdatedEntity(feedEntity.build());
     }
     _vehiclePositionsSink.handleIncrementalUpdate(update);
+    _metricsService.add(MetricsService.ENTITIES_PUBLISHED,
+        "vehicle_positions", vehicles.size());
+    _cycleVehiclePositionCount += vehicles.size();
+  }
+
+  private void noteRoutes(List<RouteStopCoverage> coverage) {
+    List<String> routeTags = new ArrayList<String>(coverage.size());
+    for (RouteStopCoverage routeStopCoverage : coverage) {
+      routeTags.add(routeStopCoverage.getRouteTag());
+    }
+    _feedHealthService.noteRoutes(routeTags);
+    pruneRecentPredictions(coverage);
+  }
+
+  /**
+   * Drops the cached predictions for routes that are no longer covered, or no
+   * longer polled in slices, and for stops that are no longer part of a
+   * route's coverage, so the cache doesn't grow across route configuration
+   * refreshes.
+   * 
+   * @param coverage the current route stop coverage
+   */
+  private void pruneRecentPredictions(List<RouteStopCoverage> coverage) {
+    if (_recentPredictionsByRouteTag.isEmpty()) {
+      return;
+    }
+    Map<String, RouteStopCoverage> coverageByRouteTag = new HashMap<String, RouteStopCoverage>();
+    for (RouteStopCoverage routeStopCoverage : coverage) {
+      coverageByRouteTag.put(routeStopCoverage.getRouteTag(), routeStopCoverage);
+    }
+    for (Iterator<Map.Entry<String, Map<String, NBPredictions>>> it = _recentPredictionsByRouteTag.entrySet().iterator(); it.hasNext();) {
+      Map.Entry<String, Map<String, NBPredictions>> entry = it.next();
+      RouteStopCoverage routeStopCoverage = coverageByRouteTag.get(entry.getKey());
+      if (routeStopCoverage == null
+          || routeStopCoverage.getStopTagSliceCount() == 0) {
+        it.remove();
+        continue;
+      }
+      Set<String> stopTags = new HashSet<String>(
+          routeStopCoverage.getStopTags());
+      for (Set<String> slice : routeStopCoverage.getStopTagSlices()) {
+        stopTags.addAll(slice);
+      }
+      entry.getValue().keySet().retainAll(stopTags);
+    }
   }
 
   private class ProcessingTask implements Runnable {
@@ -295,7 +471,12 @@ public class NextBusToGtfsRealtimeService {
 
       while (true) {
         List<RouteStopCoverage> coverage = _routeStopCoverageService.getRouteStopCoverage();
+        noteRoutes(coverage);
         long t0 = System.currentTimeMillis();
+        int errorCount = 0;
+        _cyclePredictionCount = 0;
+        _cycleTripUpdateCount = 0;
+        _cycleVehiclePositionCount = 0;
         for (RouteStopCoverage routeStopCoverage : coverage) {
           if (Thread.interrupted()) {
             return;
@@ -303,19 +484,36 @@ public class NextBusToGtfsRealtimeService {
           try {
             processRoute(routeStopCoverage);
           } catch (Exception ex) {
-            _log.warn("error processing routeStopCoverage: ", ex);
+            if (_logLimiter.isLoggable("routeError")) {
+              _log.warn("error processing routeStopCoverage: route="
+                  + routeStopCoverage.getRouteTag()
+                  + _logLimiter.getSuppressedSuffix("routeError"), ex);
+            }
+            errorCount++;
+            _metricsService.increment(MetricsService.ROUTE_ERRORS);
+            _feedHealthService.noteError(routeStopCoverage.getRouteTag(), ex);
           }
         }
         long t1 = System.currentTimeMillis();
+        _lastCycleDuration = t1 - t0;
+        _cycle++;
+        _metricsService.increment(MetricsService.CYCLES);
+        _metricsService.observe(MetricsService.CYCLE_TIME, (t1 - t0) / 1000.0);
+        _metricsService.set(MetricsService.LAST_CYCLE_TIME, (t1 - t0) / 1000.0);
 
         /**
          * Check to see if we need to wait a while before making our next batch
          * of route requests.
          */
         long remainingTime = _minimumTimeBetweenRequests * 1000 - (t1 - t0);
+        _log.info("cycle=" + _cycle + " routes=" + coverage.size()
+            + " errors=" + errorCount + " predictions="
+            + _cyclePredictionCount + " tripUpdates=" + _cycleTripUpdateCount
+            + " vehiclePositions=" + _cycleVehiclePositionCount
+            + " duration=" + (t1 - t0) + " sleep="
+            + Math.max(0, remainingTime));
         if (remainingTime > 0) {
           try {
-            _log.info("sleeping for " + remainingTime);
             Thread.sleep(remainingTime);
           } catch (InterruptedException e) {
             return;
@@ -325,14 +523,4 @@ public class NextBusToGtfsRealtimeService {
 
     }
   }
-
-  private static class PredictionComparator implements
-      Comparator<FlatPrediction> {
-    @Override
-    public int compare(FlatPrediction o1, FlatPrediction o2) {
-      long t1 = o1.getEpochTime();
-      long t2 = o2.getEpochTime();
-      return t1 == t2 ? 0 : (t1 < t2 ? -1 : 1);
-    }
-  }
 }
@@ -15,6 +15,7 @@
  */
 package org.onebusaway.gtfs_realtime.nextbus.services;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -23,65 +24,92 @@ import java.util.Set;
 
 import javax.inject.Singleton;
 
+import org.onebusaway.collections.Counter;
 import org.onebusaway.collections.Max;
 import org.onebusaway.gtfs.model.Route;
 import org.onebusaway.gtfs.model.Stop;
-import org.onebusaway.gtfs.model.StopTime;
-import org.onebusaway.gtfs.model.Trip;
-import org.onebusaway.gtfs.services.GtfsRelationalDao;
+import org.onebusaway.gtfs_realtime.nextbus.model.GtfsMatchingData;
 import org.onebusaway.gtfs_realtime.nextbus.model.api.NBRoute;
 import org.onebusaway.gtfs_realtime.nextbus.model.api.NBStop;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 @Singleton
 public class NextBusToGtfsRouteMatching {
 
+  private static Logger _log = LoggerFactory.getLogger(NextBusToGtfsRouteMatching.class);
+
+  private final LogRateLimiter _logLimiter = new LogRateLimiter();
+
   public Map<NBRoute, Route> getRouteMatches(List<NBRoute> routes,
-      GtfsRelationalDao dao, Map<NBStop, List<Stop>> potentialStopMatches) {
-    Map<Route, Set<Stop>> stopsByRoute = getStopsByRoute(dao);
+      GtfsMatchingData gtfs, Map<NBStop, List<Stop>> potentialStopMatches) {
+    Map<Stop, Set<Route>> routesByStop = getRoutesByStop(gtfs);
     Map<NBRoute, Route> routeMatches = new HashMap<NBRoute, Route>();
 
     for (NBRoute nbRoute : routes) {
-      Max<Route> m = new Max<Route>();
-      for (Map.Entry<Route, Set<Stop>> entry : stopsByRoute.entrySet()) {
-        Route gtfsRoute = entry.getKey();
-        Set<Stop> gtfsStops = entry.getValue();
-        double hits = 0;
-        for (NBStop nbStop : nbRoute.getStops()) {
-          List<Stop> list = potentialStopMatches.get(nbStop);
-          if (hasMatchingPotentialStop(gtfsStops, list)) {
-            hits++;
-          }
+      /**
+       * We only score GTFS routes that serve at least one of the potential
+       * stops for the NextBus route, counting the NextBus stops each one hits.
+       */
+      Counter<Route> hits = new Counter<Route>();
+      for (NBStop nbStop : nbRoute.getStops()) {
+        Set<Route> candidates = getRoutesForPotentialStops(routesByStop,
+            potentialStopMatches.get(nbStop));
+        for (Route candidate : candidates) {
+          hits.increment(candidate);
+        }
+      }
+      if (hits.size() == 0) {
+        if (_logLimiter.isLoggable("noRouteMatch")) {
+          _log.warn("no route match for route: tag=" + nbRoute.getTag()
+              + _logLimiter.getSuppressedSuffix("noRouteMatch"));
         }
-        double ratio = hits / nbRoute.getStops().size();
-        m.add(ratio, gtfsRoute);
+        continue;
+      }
+      Max<Route> m = new Max<Route>();
+      for (Map.Entry<Route, Integer> entry : hits.getEntrySet()) {
+        double ratio = entry.getValue().doubleValue()
+            / nbRoute.getStops().size();
+        m.add(ratio, entry.getKey());
       }
       routeMatches.put(nbRoute, m.getMaxElement());
     }
     return routeMatches;
   }
 
-  private Map<Route, Set<Stop>> getStopsByRoute(GtfsRelationalDao dao) {
-    Map<Route, Set<Stop>> stopsByRoute = new HashMap<Route, Set<Stop>>();
-    for (Route route : dao.getAllRoutes()) {
-      Set<Stop> stops = new HashSet<Stop>();
-      for (Trip trip : dao.getTripsForRoute(route)) {
-        for (StopTime stopTime : dao.getStopTimesForTrip(trip)) {
-          stops.add(stopTime.getStop());
+  private Map<Stop, Set<Route>> getRoutesByStop(GtfsMatchingData gtfs) {
+    Map<Stop, Set<Route>> routesByStop = new HashMap<Stop, Set<Route>>();
+    for (int trip = 0; trip < gtfs.getTripCount(); ++trip) {
+      Route route = gtfs.getTrip(trip).getRoute();
+      for (int i = gtfs.getStartOfTrip(trip); i < gtfs.getEndOfTrip(trip); ++i) {
+        Stop stop = gtfs.getStop(i);
+        Set<Route> routes = routesByStop.get(stop);
+        if (routes == null) {
+          routes = new HashSet<Route>();
+          routesByStop.put(stop, routes);
         }
+        routes.add(route);
       }
-      stopsByRoute.put(route, stops);
     }
-    return stopsByRoute;
+    return routesByStop;
   }
 
-  private boolean hasMatchingPotentialStop(Set<Stop> gtfsStops, List<Stop> list) {
-    if (list != null) {
-      for (Stop potentialStop : list) {
-        if (gtfsStops.contains(potentialStop)) {
-          return true;
-        }
+  private Set<Route> getRoutesForPotentialStops(
+      Map<Stop, Set<Route>> routesByStop, List<Stop> list) {
+    if (list == null || list.isEmpty()) {
+      return Collections.emptySet();
+    }
+    if (list.size() == 1) {
+      Set<Route> routes = routesByStop.get(list.get(0));
+      return routes != null ? routes : Collections.<Route> emptySet();
+    }
+    Set<Route> routes = new HashSet<Route>();
+    for (Stop potentialStop : list) {
+      Set<Route> routesForStop = routesByStop.get(potentialStop);
+      if (routesForStop != null) {
+        routes.addAll(routesForStop);
       }
     }
-    return false;
+    return routes;
   }
 }
@@ -15,39 +15,57 @@
  */
 package org.onebusaway.gtfs_realtime.nextbus.services;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collections;
-import java.util.Date;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
-import org.onebusaway.collections.MappingLibrary;
+import org.apache.commons.codec.binary.Hex;
 import org.onebusaway.collections.Min;
 import org.onebusaway.gtfs.impl.GtfsRelationalDaoImpl;
 import org.onebusaway.gtfs.model.Agency;
 import org.onebusaway.gtfs.model.Route;
 import org.onebusaway.gtfs.model.Stop;
-import org.onebusaway.gtfs.model.StopTime;
 import org.onebusaway.gtfs.model.calendar.ServiceDate;
-import org.onebusaway.gtfs.serialization.GtfsReader;
 import org.onebusaway.gtfs.services.GtfsRelationalDao;
 import org.onebusaway.gtfs_realtime.nextbus.model.FlatPrediction;
+import org.onebusaway.gtfs_realtime.nextbus.model.GtfsMatchingData;
+import org.onebusaway.gtfs_realtime.nextbus.model.GtfsMatchingSnapshot;
 import org.onebusaway.gtfs_realtime.nextbus.model.RouteDirectionStopKey;
-import org.onebusaway.gtfs_realtime.nextbus.model.ServiceDateBlockKey;
 import org.onebusaway.gtfs_realtime.nextbus.model.StopTimeIndex;
 import org.onebusaway.gtfs_realtime.nextbus.model.StopTimeIndices;
+import org.onebusaway.gtfs_realtime.nextbus.model.StopTimeMappings;
+import org.onebusaway.gtfs_realtime.nextbus.model.api.NBDirection;
 import org.onebusaway.gtfs_realtime.nextbus.model.api.NBRoute;
 import org.onebusaway.gtfs_realtime.nextbus.model.api.NBStop;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Attempt to match NextBus route, stop, and block tags to GTFS route, stop, and
@@ -58,6 +76,10 @@ import org.onebusaway.gtfs_realtime.nextbus.model.api.NBStop;
 @Singleton
 public class NextBusToGtfsService {
 
+  private static final Logger _log = LoggerFactory.getLogger(NextBusToGtfsService.class);
+
+  private static final VehicleBlockTimeComparator VEHICLE_BLOCK_TIME_COMPARATOR = new VehicleBlockTimeComparator();
+
   private NextBusToGtfsStopMatching _stopMatching;
 
   private NextBusToGtfsRouteMatching _routeMatching;
@@ -68,15 +90,101 @@ public class NextBusToGtfsService {
 
   private boolean _gtfsTripMatching;
 
-  private ConcurrentMap<String, String> _routeIdMappings = new ConcurrentHashMap<String, String>();
+  private File _cacheDirectory;
+
+  private ScheduledExecutorService _executor;
+
+  private MetricsService _metricsService = new MetricsService();
+
+  private PipelineTracer _tracer = new PipelineTracer();
+
+  private StartupProfiler _startupProfiler = new StartupProfiler();
+
+  /**
+   * The current results of matching. A rebuild assembles a complete new
+   * instance off to the side and swaps it in with a single write, so readers
+   * always see a consistent set of mappings.
+   */
+  private volatile MatchingResults _results = new MatchingResults(
+      TimeZone.getDefault(), Collections.<String, String> emptyMap(),
+      Collections.<RouteDirectionStopKey, String> emptyMap(),
+      new StopTimeMappings());
+
+  /**
+   * The route configurations from the most recent call to
+   * {@link #matchToGtfs(List)}, reused when rebuilding after a GTFS change.
+   */
+  private volatile List<NBRoute> _routeConfigurations;
+
+  /**
+   * How often, in seconds, we check the GTFS path for changes. A value of zero
+   * or less disables the check.
+   */
+  private int _gtfsReloadInterval = 60;
+
+  /**
+   * The number of threads used when rebuilding after a GTFS change, kept below
+   * the number of cores so the rebuild doesn't starve the processing loop.
+   */
+  private int _gtfsReloadThreadCount = Math.max(1,
+      Runtime.getRuntime().availableProcessors() / 2);
+
+  private ExecutorService _reloadExecutor;
+
+  private ScheduledFuture<?> _gtfsWatchTask;
+
+  /**
+   * The background rebuild submitted by the watch task, if any
+   */
+  private Future<?> _gtfsReload;
+
+  /**
+   * The fingerprint of the GTFS path that the current results were built from.
+   * Only set once a rebuild succeeds, so that a failed rebuild is retried when
+   * the watch task next sees the changed feed.
+   */
+  private volatile String _gtfsFingerprint;
+
+  /**
+   * A changed fingerprint that we've seen once but not yet acted on. We wait
+   * for the fingerprint to hold steady across two checks so that we don't
+   * pick up a feed that is still being copied into place.
+   */
+  private String _pendingGtfsFingerprint;
 
-  private ConcurrentMap<RouteDirectionStopKey, String> _stopIdMappings = new ConcurrentHashMap<RouteDirectionStopKey, String>();
+  private ConcurrentMap<String, VehicleStatus> _vehicleStatusById = new ConcurrentHashMap<String, VehicleStatus>();
 
-  private ConcurrentMap<ServiceDateBlockKey, StopTimeIndices> _stopTimeMappings = new ConcurrentHashMap<ServiceDateBlockKey, StopTimeIndices>();
+  /**
+   * Vehicles we haven't seen a prediction for in this long, in milliseconds,
+   * are evicted from the vehicle state store.
+   */
+  private long _vehicleStatusTimeout = 60 * 60 * 1000;
 
-  private TimeZone _agencyTimeZone = TimeZone.getDefault();
+  /**
+   * The maximum number of vehicles we track at once. When exceeded, the vehicles
+   * that have been idle the longest are evicted.
+   */
+  private int _maxVehicleStatusCount = 10000;
 
-  private Map<String, VehicleStatus> _vehicleStatusById = new HashMap<String, NextBusToGtfsService.VehicleStatus>();
+  /**
+   * How often, in milliseconds, we sweep the vehicle state store for idle
+   * vehicles.
+   */
+  private long _vehicleStatusEvictionInterval = 60 * 1000;
+
+  private volatile long _lastVehicleStatusEvictionTime = 0;
+
+  /**
+   * Slack, in seconds, allowed on either side of the scheduled span of a block
+   * when deciding if a prediction time falls on a particular service date.
+   */
+  private int _serviceDateSlack = 60 * 60;
+
+  /**
+   * The number of threads used to match the stops and trips of routes in
+   * parallel.
+   */
+  private int _matchingThreadCount = Runtime.getRuntime().availableProcessors();
 
   @Inject
   public void setStopMatching(NextBusToGtfsStopMatching stopMatching) {
@@ -93,132 +201,678 @@ public class NextBusToGtfsService {
     _tripMatching = tripMatching;
   }
 
+  @Inject
+  public void setExecutor(ScheduledExecutorService executor) {
+    _executor = executor;
+  }
+
+  @Inject
+  public void setMetricsService(MetricsService metricsService) {
+    _metricsService = metricsService;
+  }
+
+  @Inject
+  public void setPipelineTracer(PipelineTracer tracer) {
+    _tracer = tracer;
+  }
+
+  @Inject
+  public void setStartupProfiler(StartupProfiler startupProfiler) {
+    _startupProfiler = startupProfiler;
+  }
+
   public void setGtfsPath(File path) {
     _gtfsPath = path;
   }
 
+  /**
+   * When set, the results of matching are saved to a snapshot in the
+   * specified directory and reused on restart as long as the GTFS and NextBus
+   * route configurations are unchanged.
+   * 
+   * @param cacheDirectory
+   */
+  public void setCacheDirectory(File cacheDirectory) {
+    _cacheDirectory = cacheDirectory;
+  }
+
   public void setGtfsTripMatching(boolean gtfsTripMatching) {
     _gtfsTripMatching = gtfsTripMatching;
   }
 
-  public synchronized void matchToGtfs(List<NBRoute> routes) {
-    if (_gtfsPath == null) {
-      return;
-    }
-    GtfsRelationalDao dao = readGtfs();
+  public void setVehicleStatusTimeout(long vehicleStatusTimeoutInMillis) {
+    _vehicleStatusTimeout = vehicleStatusTimeoutInMillis;
+  }
 
-    updateTimeZone(dao);
+  public void setMaxVehicleStatusCount(int maxVehicleStatusCount) {
+    _maxVehicleStatusCount = maxVehicleStatusCount;
+  }
 
-    Map<NBStop, List<Stop>> potentialStopMatches = _stopMatching.getPotentialStopMatches(
-        routes, dao.getAllStops());
+  public void setMatchingThreadCount(int matchingThreadCount) {
+    _matchingThreadCount = matchingThreadCount;
+  }
 
-    Map<NBRoute, Route> routeMatches = _routeMatching.getRouteMatches(routes,
-        dao, potentialStopMatches);
+  public void setGtfsReloadInterval(int gtfsReloadIntervalInSeconds) {
+    _gtfsReloadInterval = gtfsReloadIntervalInSeconds;
+  }
 
-    _routeIdMappings.clear();
-    for (Map.Entry<NBRoute, Route> entry : routeMatches.entrySet()) {
-      NBRoute nbRoute = entry.getKey();
-      Route gtfsRoute = entry.getValue();
-      _routeIdMappings.put(nbRoute.getTag(), gtfsRoute.getId().getId());
-    }
+  public void setGtfsReloadThreadCount(int gtfsReloadThreadCount) {
+    _gtfsReloadThreadCount = gtfsReloadThreadCount;
+  }
 
-    Map<RouteDirectionStopKey, String> stopIdMappings = _stopMatching.getStopMatches(
-        routeMatches, potentialStopMatches, dao);
-    _stopIdMappings.clear();
-    _stopIdMappings.putAll(stopIdMappings);
+  @PostConstruct
+  public void start() {
+    if (_gtfsPath == null || _gtfsReloadInterval <= 0) {
+      return;
+    }
+    _reloadExecutor = Executors.newSingleThreadExecutor();
+    _gtfsWatchTask = _executor.scheduleWithFixedDelay(new GtfsWatchTask(),
+        _gtfsReloadInterval, _gtfsReloadInterval, TimeUnit.SECONDS);
+  }
 
-    if (_gtfsTripMatching) {
-      Map<ServiceDateBlockKey, StopTimeIndices> mapping = _tripMatching.getTripMatches(
-          routeMatches, stopIdMappings, dao);
-      _stopTimeMappings.clear();
-      _stopTimeMappings.putAll(mapping);
+  @PreDestroy
+  public void stop() {
+    if (_gtfsWatchTask != null) {
+      _gtfsWatchTask.cancel(true);
+      _gtfsWatchTask = null;
+    }
+    if (_reloadExecutor != null) {
+      _reloadExecutor.shutdownNow();
+      _reloadExecutor = null;
     }
   }
 
+  public void matchToGtfs(List<NBRoute> routes) {
+    _routeConfigurations = routes;
+    rebuild(routes, _matchingThreadCount);
+  }
+
   public void mapToGtfsIfApplicable(List<FlatPrediction> predictions) {
     if (_gtfsPath == null)
       return;
 
+    Object trace = _tracer.begin(PipelineStage.MAP_TO_GTFS);
+    String routeTag = predictions.isEmpty() ? null
+        : predictions.get(0).getRouteTag();
+    MatchingResults results = _results;
+
+    int matchedStops = 0;
     for (FlatPrediction prediction : predictions) {
-      String updatedRouteTag = _routeIdMappings.get(prediction.getRouteTag());
-      String updatedStopTag = _stopIdMappings.get(new RouteDirectionStopKey(
+      String updatedRouteTag = results.routeIdMappings.get(prediction.getRouteTag());
+      String updatedStopTag = results.stopIdMappings.get(new RouteDirectionStopKey(
           prediction.getRouteTag(), prediction.getDirTag(),
           prediction.getStopTag()));
 
       if (updatedRouteTag != null)
         prediction.setRouteTag(updatedRouteTag);
-      if (updatedStopTag != null)
+      if (updatedStopTag != null) {
         prediction.setStopTag(updatedStopTag);
+        matchedStops++;
+      }
     }
+    _metricsService.add(MetricsService.GTFS_PREDICTIONS, "matched",
+        matchedStops);
+    _metricsService.add(MetricsService.GTFS_PREDICTIONS, "unmatched",
+        predictions.size() - matchedStops);
 
     if (_gtfsTripMatching) {
-      Map<String, List<FlatPrediction>> predictionsByVehicleId = MappingLibrary.mapToValueList(
-          predictions, "vehicle");
-      for (Map.Entry<String, List<FlatPrediction>> tripEntry : predictionsByVehicleId.entrySet()) {
-        String vehicleId = tripEntry.getKey();
-        VehicleStatus status = updateVehicleStatus(vehicleId);
-        List<FlatPrediction> predictionsForVehicle = tripEntry.getValue();
-        Map<String, List<FlatPrediction>> predictionsByBlock = MappingLibrary.mapToValueList(
-            predictionsForVehicle, "block");
-        for (Map.Entry<String, List<FlatPrediction>> blockEntry : predictionsByBlock.entrySet()) {
-          String blockId = blockEntry.getKey();
-          List<FlatPrediction> predictionsForBlock = blockEntry.getValue();
-          Collections.sort(predictionsForBlock);
-          FlatPrediction firstPrediction = predictionsForBlock.get(0);
-          StopTimeIndices stopTimeIndices = _stopTimeMappings.get(new ServiceDateBlockKey(
-              firstPrediction.getRouteTag(), blockId, status.getServiceDate()));
-          if (stopTimeIndices != null) {
-            applyStopTimeIndicesToPredictions(predictionsForBlock, status,
-                stopTimeIndices);
+      long now = System.currentTimeMillis();
+      FlatPrediction[] sorted = getPredictionsSortedByVehicleAndBlock(predictions);
+      List<FlatPrediction> sortedList = Arrays.asList(sorted);
+      int vehicleFrom = 0;
+      while (vehicleFrom < sorted.length) {
+        String vehicleId = sorted[vehicleFrom].getVehicle();
+        int vehicleTo = vehicleFrom + 1;
+        while (vehicleTo < sorted.length
+            && vehicleId.equals(sorted[vehicleTo].getVehicle())) {
+          vehicleTo++;
+        }
+        VehicleStatus status = updateVehicleStatus(vehicleId, now);
+        int blockFrom = vehicleFrom;
+        while (blockFrom < vehicleTo) {
+          String blockId = sorted[blockFrom].getBlock();
+          int blockTo = blockFrom + 1;
+          while (blockTo < vehicleTo
+              && equals(blockId, sorted[blockTo].getBlock())) {
+            blockTo++;
           }
+          if (blockId != null) {
+            List<FlatPrediction> predictionsForBlock = sortedList.subList(
+                blockFrom, blockTo);
+            FlatPrediction firstPrediction = predictionsForBlock.get(0);
+            synchronized (status) {
+              StopTimeIndices stopTimeIndices = updateServiceDateForBlock(
+                  results, status, firstPrediction.getRouteTag(), blockId,
+                  firstPrediction.getEpochTime());
+              if (stopTimeIndices != null) {
+                applyStopTimeIndicesToPredictions(predictionsForBlock, status,
+                    stopTimeIndices);
+              }
+            }
+          }
+          blockFrom = blockTo;
         }
+        vehicleFrom = vehicleTo;
       }
+      evictIdleVehiclesIfNeeded(now);
     }
+    _tracer.end(trace, routeTag, -1, predictions.size());
   }
 
   /****
    * Private Methods
    ****/
 
-  private GtfsRelationalDao readGtfs() {
+  /**
+   * 
+   * @param predictions
+   * @return the predictions that have a vehicle id, sorted by vehicle, then
+   *         block, then time, such that the predictions for each vehicle and
+   *         block form a contiguous run in time order. The sort is stable, so
+   *         predictions with the same time keep their original order.
+   */
+  private static FlatPrediction[] getPredictionsSortedByVehicleAndBlock(
+      List<FlatPrediction> predictions) {
+    int count = 0;
+    for (int i = 0; i < predictions.size(); ++i) {
+      if (predictions.get(i).getVehicle() != null) {
+        count++;
+      }
+    }
+    FlatPrediction[] sorted = new FlatPrediction[count];
+    count = 0;
+    for (int i = 0; i < predictions.size(); ++i) {
+      FlatPrediction prediction = predictions.get(i);
+      if (prediction.getVehicle() != null) {
+        sorted[count++] = prediction;
+      }
+    }
+    Arrays.sort(sorted, VEHICLE_BLOCK_TIME_COMPARATOR);
+    return sorted;
+  }
+
+  private static boolean equals(String a, String b) {
+    return a == null ? b == null : a.equals(b);
+  }
+
+  /**
+   * Rebuilds all matching results for the specified route configurations and
+   * publishes them in one step. Concurrent rebuilds are serialized, while
+   * readers keep using the previous results until the swap.
+   * 
+   * @param routes
+   * @param threadCount the number of threads to match with
+   */
+  private synchronized void rebuild(List<NBRoute> routes, int threadCount) {
+    if (_gtfsPath == null) {
+      return;
+    }
+
+    long t0 = System.currentTimeMillis();
+    String fingerprint;
+    String snapshotKey = null;
+    Object phase = _startupProfiler.beginPhase("fingerprint");
+    try {
+      fingerprint = computeGtfsFingerprint();
+      if (_cacheDirectory != null) {
+        snapshotKey = computeSnapshotKey(routes);
+      }
+    } finally {
+      _startupProfiler.endPhase(phase);
+    }
+
+    if (snapshotKey != null) {
+      boolean loaded;
+      phase = _startupProfiler.beginPhase("snapshotLoad");
+      try {
+        loaded = loadSnapshot(snapshotKey);
+      } finally {
+        _startupProfiler.endPhase(phase);
+      }
+      if (loaded) {
+        _gtfsFingerprint = fingerprint;
+        updateMatchingMetrics(routes, t0);
+        return;
+      }
+    }
+
+    GtfsMatchingData gtfs;
+    phase = _startupProfiler.beginPhase("gtfsRead");
+    try {
+      Object trace = _tracer.begin(PipelineStage.GTFS_READ);
+      gtfs = readGtfs(threadCount);
+      _tracer.end(trace, null, -1, gtfs.getDao().getAllTrips().size());
+    } finally {
+      _startupProfiler.endPhase(phase);
+    }
+    GtfsRelationalDao dao = gtfs.getDao();
+
+    TimeZone agencyTimeZone = getAgencyTimeZone(dao);
+
+    Map<NBStop, List<Stop>> potentialStopMatches;
+    phase = _startupProfiler.beginPhase("potentialStopMatching");
+    try {
+      Object trace = _tracer.begin(PipelineStage.POTENTIAL_STOP_MATCHING);
+      potentialStopMatches = _stopMatching.getPotentialStopMatches(routes,
+          dao.getAllStops());
+      _tracer.end(trace, null, -1, potentialStopMatches.size());
+    } finally {
+      _startupProfiler.endPhase(phase);
+    }
+
+    Map<NBRoute, Route> routeMatches;
+    phase = _startupProfiler.beginPhase("routeMatching");
+    try {
+      Object trace = _tracer.begin(PipelineStage.ROUTE_MATCHING);
+      routeMatches = _routeMatching.getRouteMatches(routes, gtfs,
+          potentialStopMatches);
+      _tracer.end(trace, null, -1, routeMatches.size());
+    } finally {
+      _startupProfiler.endPhase(phase);
+    }
+
+    Map<String, String> routeIdMappings = new HashMap<String, String>();
+    for (Map.Entry<NBRoute, Route> entry : routeMatches.entrySet()) {
+      NBRoute nbRoute = entry.getKey();
+      Route gtfsRoute = entry.getValue();
+      routeIdMappings.put(nbRoute.getTag(), gtfsRoute.getId().getId());
+    }
+
+    /**
+     * Stop and trip matching for each route run as independent tasks, so we
+     * build the lazily-computed DAO relations up-front, before they are shared
+     * across threads.
+     */
+    warmUpRelations(dao);
+
+    Map<RouteDirectionStopKey, String> stopIdMappings = null;
+    StopTimeMappings stopTimeMappings = new StopTimeMappings();
+
+    ExecutorService executor = Executors.newFixedThreadPool(threadCount);
     try {
+      phase = _startupProfiler.beginPhase("stopMatching");
+      try {
+        stopIdMappings = _stopMatching.getStopMatches(routeMatches,
+            potentialStopMatches, gtfs, executor);
+      } finally {
+        _startupProfiler.endPhase(phase);
+      }
+
+      if (_gtfsTripMatching) {
+        phase = _startupProfiler.beginPhase("tripMatching");
+        try {
+          stopTimeMappings = _tripMatching.getTripMatches(routeMatches,
+              stopIdMappings, gtfs, executor);
+        } finally {
+          _startupProfiler.endPhase(phase);
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    _results = new MatchingResults(agencyTimeZone, routeIdMappings,
+        stopIdMappings, stopTimeMappings);
+    _gtfsFingerprint = fingerprint;
+
+    if (snapshotKey != null) {
+      phase = _startupProfiler.beginPhase("snapshotSave");
+      try {
+        saveSnapshot(snapshotKey);
+      } finally {
+        _startupProfiler.endPhase(phase);
+      }
+    }
+    updateMatchingMetrics(routes, t0);
+  }
 
-      GtfsRelationalDaoImpl dao = new GtfsRelationalDaoImpl();
+  /**
+   * Publishes how many of the routes and stops in the route configurations
+   * were matched by the current results.
+   * 
+   * @param routes
+   * @param startTime when the rebuild started
+   */
+  private void updateMatchingMetrics(List<NBRoute> routes, long startTime) {
+    MatchingResults results = _results;
+    int matchedRoutes = 0;
+    int matchedStops = 0;
+    int stops = 0;
+    for (NBRoute route : routes) {
+      if (results.routeIdMappings.containsKey(route.getTag())) {
+        matchedRoutes++;
+      }
+      for (NBDirection direction : route.getDirections()) {
+        for (NBStop stop : direction.getStops()) {
+          stops++;
+          if (results.stopIdMappings.containsKey(new RouteDirectionStopKey(
+              route.getTag(), direction.getTag(), stop.getTag()))) {
+            matchedStops++;
+          }
+        }
+      }
+    }
+    _metricsService.set(MetricsService.GTFS_MATCHED_ROUTES, matchedRoutes);
+    _metricsService.set(MetricsService.GTFS_UNMATCHED_ROUTES, routes.size()
+        - matchedRoutes);
+    _metricsService.set(MetricsService.GTFS_MATCHED_STOPS, matchedStops);
+    _metricsService.set(MetricsService.GTFS_UNMATCHED_STOPS, stops
+        - matchedStops);
+    _metricsService.set(MetricsService.GTFS_MATCHING_TIME,
+        (System.currentTimeMillis() - startTime) / 1000.0);
+  }
 
-      GtfsReader reader = new GtfsReader();
-      reader.setInputLocation(_gtfsPath);
-      reader.setEntityStore(dao);
-      reader.run();
+  private GtfsMatchingData readGtfs(int threadCount) {
+    try {
 
-      return dao;
+      GtfsMatchingDataReader reader = new GtfsMatchingDataReader();
+      reader.setParallelism(threadCount);
+      return reader.read(_gtfsPath);
 
     } catch (IOException ex) {
       throw new IllegalStateException("error reading GTFS", ex);
     }
   }
 
-  private void updateTimeZone(GtfsRelationalDao dao) {
+  /**
+   * 
+   * @param routes
+   * @return a fingerprint of everything that goes into matching: the GTFS
+   *         feed, the NextBus route configurations, and whether trip matching
+   *         is enabled
+   */
+  private String computeSnapshotKey(List<NBRoute> routes) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      updateDigest(digest, Boolean.toString(_gtfsTripMatching));
+      updateDigestWithFile(digest, _gtfsPath);
+      for (NBRoute route : routes) {
+        updateDigest(digest, "route " + route.getTag());
+        for (NBStop stop : route.getStops()) {
+          updateDigest(digest, "stop " + stop.getTag() + " " + stop.getLat()
+              + " " + stop.getLon());
+        }
+        for (NBDirection direction : route.getDirections()) {
+          updateDigest(digest, "direction " + direction.getTag());
+          for (NBStop stop : direction.getStops()) {
+            updateDigest(digest, stop.getTag());
+          }
+        }
+      }
+      return new String(Hex.encodeHex(digest.digest()));
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    } catch (IOException ex) {
+      throw new IllegalStateException("error reading GTFS", ex);
+    }
+  }
+
+  private void updateDigest(MessageDigest digest, String value)
+      throws IOException {
+    digest.update(value.getBytes("UTF-8"));
+    digest.update((byte) '\n');
+  }
+
+  private void updateDigestWithFile(MessageDigest digest, File file)
+      throws IOException {
+    if (file.isDirectory()) {
+      File[] files = file.listFiles();
+      Arrays.sort(files);
+      for (File child : files) {
+        if (child.isFile()) {
+          updateDigest(digest, child.getName());
+          updateDigestWithFile(digest, child);
+        }
+      }
+      return;
+    }
+    InputStream in = new BufferedInputStream(new FileInputStream(file));
+    try {
+      byte[] buffer = new byte[64 * 1024];
+      int n = 0;
+      while ((n = in.read(buffer)) != -1) {
+        digest.update(buffer, 0, n);
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * 
+   * @return a cheap fingerprint of the GTFS path, built from the names, sizes
+   *         and modification times of its files
+   */
+  private String computeGtfsFingerprint() {
+    StringBuilder b = new StringBuilder();
+    if (_gtfsPath.isDirectory()) {
+      File[] files = _gtfsPath.listFiles();
+      if (files != null) {
+        Arrays.sort(files);
+        for (File file : files) {
+          appendFileFingerprint(b, file);
+        }
+      }
+    } else {
+      appendFileFingerprint(b, _gtfsPath);
+    }
+    return b.toString();
+  }
+
+  private void appendFileFingerprint(StringBuilder b, File file) {
+    b.append(file.getName()).append(' ').append(file.length()).append(' ').append(
+        file.lastModified()).append('\n');
+  }
+
+  private File getSnapshotFile() {
+    return new File(_cacheDirectory, "gtfs-matching.snapshot");
+  }
+
+  private boolean loadSnapshot(String snapshotKey) {
+    File file = getSnapshotFile();
+    GtfsMatchingSnapshot snapshot = null;
+    try {
+      snapshot = GtfsMatchingSnapshot.read(file, snapshotKey);
+    } catch (Exception ex) {
+      _log.warn("error reading matching snapshot " + file, ex);
+    }
+    if (snapshot == null) {
+      return false;
+    }
+    StopTimeMappings stopTimeMappings = snapshot.getStopTimeMappings();
+    if (stopTimeMappings == null) {
+      stopTimeMappings = new StopTimeMappings();
+    }
+    _results = new MatchingResults(
+        TimeZone.getTimeZone(snapshot.getTimeZoneId()),
+        snapshot.getRouteIdMappings(), snapshot.getStopIdMappings(),
+        stopTimeMappings);
+    _log.info("loaded matching snapshot " + file);
+    return true;
+  }
+
+  private void saveSnapshot(String snapshotKey) {
+    File file = getSnapshotFile();
+    MatchingResults results = _results;
+    GtfsMatchingSnapshot snapshot = new GtfsMatchingSnapshot(
+        results.agencyTimeZone.getID(), results.routeIdMappings,
+        results.stopIdMappings, _gtfsTripMatching ? results.stopTimeMappings
+            : null);
+    try {
+      snapshot.write(file, snapshotKey);
+    } catch (IOException ex) {
+      _log.warn("error writing matching snapshot " + file, ex);
+    }
+  }
+
+  private TimeZone getAgencyTimeZone(GtfsRelationalDao dao) {
     for (Agency agency : dao.getAllAgencies()) {
       if (agency.getTimezone() == null)
         continue;
-      _agencyTimeZone = TimeZone.getTimeZone(agency.getTimezone());
-      return;
+      return TimeZone.getTimeZone(agency.getTimezone());
     }
+    return TimeZone.getDefault();
   }
 
-  private VehicleStatus updateVehicleStatus(String vehicleId) {
+  /**
+   * {@link GtfsRelationalDaoImpl} builds its trips-by-route relation on first
+   * use, which isn't safe to race from multiple threads.
+   */
+  private void warmUpRelations(GtfsRelationalDao dao) {
+    for (Route route : dao.getAllRoutes()) {
+      dao.getTripsForRoute(route);
+      break;
+    }
+  }
+
+  private VehicleStatus updateVehicleStatus(String vehicleId, long now) {
     VehicleStatus status = _vehicleStatusById.get(vehicleId);
     if (status == null) {
-      Calendar c = Calendar.getInstance(_agencyTimeZone);
-      ServiceDate serviceDate = new ServiceDate(c);
-      Date asDate = serviceDate.getAsDate(_agencyTimeZone);
-      status = new VehicleStatus(serviceDate, asDate.getTime());
-      _vehicleStatusById.put(vehicleId, status);
+      status = new VehicleStatus();
+      VehicleStatus existing = _vehicleStatusById.putIfAbsent(vehicleId,
+          status);
+      if (existing != null) {
+        status = existing;
+      }
     }
-    status.touch();
+    status.touch(now);
     return status;
   }
 
+  /**
+   * Determine the service date that a vehicle's current block is operating
+   * on. A block that runs past midnight is still operating on the previous
+   * service date, while a vehicle that has moved on to a new day's block should
+   * roll over to the new service date. We consider the service dates around the
+   * prediction time and pick the one whose scheduled block span best contains
+   * the prediction.
+   * 
+   * The result is cached on the vehicle status and only recomputed when the
+   * vehicle changes route or block, or when the prediction time falls outside
+   * the scheduled span of the block on the cached service date.
+   * 
+   * @param results
+   * @param status
+   * @param routeId
+   * @param blockId
+   * @param predictionTime
+   * @return the stop time indices for the block on the resolved service date,
+   *         or null if the block isn't active around the prediction time
+   */
+  private StopTimeIndices updateServiceDateForBlock(MatchingResults results,
+      VehicleStatus status, String routeId, String blockId,
+      long predictionTime) {
+
+    StopTimeMappings mappings = results.stopTimeMappings;
+    TimeZone agencyTimeZone = results.agencyTimeZone;
+
+    if (status.isForBlock(routeId, blockId)) {
+      StopTimeIndices indices = mappings.getStopTimeIndices(routeId, blockId,
+          status.getServiceDate());
+      if (indices != null
+          && getDistanceFromBlockSpan(indices, status.getServiceDateValue(),
+              predictionTime) == 0) {
+        return indices;
+      }
+    }
+
+    Calendar c = Calendar.getInstance(agencyTimeZone);
+    c.setTimeInMillis(predictionTime);
+    ServiceDate today = new ServiceDate(c);
+    ServiceDate[] candidates = {
+        today.previous(agencyTimeZone), today, today.next(agencyTimeZone)};
+
+    Min<ServiceDate> m = new Min<ServiceDate>();
+    for (ServiceDate candidate : candidates) {
+      StopTimeIndices indices = mappings.getStopTimeIndices(routeId, blockId,
+          candidate);
+      if (indices == null) {
+        continue;
+      }
+      long serviceDateValue = candidate.getAsDate(agencyTimeZone).getTime();
+      long distance = getDistanceFromBlockSpan(indices, serviceDateValue,
+          predictionTime);
+      if (distance <= _serviceDateSlack) {
+        m.add(distance, candidate);
+      }
+    }
+
+    if (m.isEmpty()) {
+      status.setBlock(routeId, blockId, null, 0);
+      return null;
+    }
+
+    ServiceDate serviceDate = m.getMinElement();
+    if (!serviceDate.equals(status.getServiceDate())) {
+      _log.debug("vehicle block=" + blockId + " now on service date "
+          + serviceDate);
+    }
+    status.setBlock(routeId, blockId, serviceDate,
+        serviceDate.getAsDate(agencyTimeZone).getTime());
+    return mappings.getStopTimeIndices(routeId, blockId, serviceDate);
+  }
+
+  /**
+   * 
+   * @param indices
+   * @param serviceDateValue
+   * @param time
+   * @return the number of seconds the specified time falls before or after
+   *         the scheduled span of the block, or 0 if it falls within it
+   */
+  private long getDistanceFromBlockSpan(StopTimeIndices indices,
+      long serviceDateValue, long time) {
+    long effectiveTime = (time - serviceDateValue) / 1000;
+    if (effectiveTime < indices.getMinTime()) {
+      return indices.getMinTime() - effectiveTime;
+    }
+    if (effectiveTime > indices.getMaxTime()) {
+      return effectiveTime - indices.getMaxTime();
+    }
+    return 0;
+  }
+
+  /**
+   * Evicts vehicles we haven't seen in {@link #_vehicleStatusTimeout} and, if
+   * we're still over {@link #_maxVehicleStatusCount}, the vehicles that have
+   * been idle the longest. The sweep runs at most once every
+   * {@link #_vehicleStatusEvictionInterval}.
+   * 
+   * @param now
+   */
+  private void evictIdleVehiclesIfNeeded(long now) {
+    if (now - _lastVehicleStatusEvictionTime < _vehicleStatusEvictionInterval
+        && _vehicleStatusById.size() <= _maxVehicleStatusCount) {
+      return;
+    }
+    _lastVehicleStatusEvictionTime = now;
+
+    long evictIfOlderThan = now - _vehicleStatusTimeout;
+    for (Iterator<VehicleStatus> it = _vehicleStatusById.values().iterator(); it.hasNext();) {
+      if (it.next().getLastUpdateTime() < evictIfOlderThan) {
+        it.remove();
+      }
+    }
+
+    int excess = _vehicleStatusById.size() - _maxVehicleStatusCount;
+    if (excess > 0) {
+      List<Long> updateTimes = new ArrayList<Long>();
+      for (VehicleStatus status : _vehicleStatusById.values()) {
+        updateTimes.add(status.getLastUpdateTime());
+      }
+      Collections.sort(updateTimes);
+      long evictIfNotNewerThan = updateTimes.get(Math.min(excess,
+          updateTimes.size()) - 1);
+      for (Iterator<VehicleStatus> it = _vehicleStatusById.values().iterator(); it.hasNext()
+          && excess > 0;) {
+        if (it.next().getLastUpdateTime() <= evictIfNotNewerThan) {
+          it.remove();
+          excess--;
+        }
+      }
+    }
+  }
+
   public void applyStopTimeIndicesToPredictions(
       List<FlatPrediction> predictions, VehicleStatus status,
       StopTimeIndices stopTimeIndices) {
@@ -234,7 +888,8 @@ public class NextBusToGtfsService {
       if (i < 0) {
         i = -(i + 1);
       }
-      Min<Integer> m = new Min<Integer>();
+      int bestIndex = -1;
+      double bestScore = Double.POSITIVE_INFINITY;
       for (int j = Math.max(0, i - 1); j < Math.min(i + 1, stopTimeArray.length); ++j) {
         int scheduleDeviation = effectiveTime - stopTimeArray[j];
         /**
@@ -248,59 +903,181 @@ public class NextBusToGtfsService {
         double score = Math.abs(scheduleDeviation
             - status.getLastScheduleDeviation())
             + scheduleDeviationFactor * Math.abs(scheduleDeviation);
-        m.add(score, j);
+        if (score < bestScore) {
+          bestScore = score;
+          bestIndex = j;
+        }
       }
-      if (m.isEmpty()) {
+      if (bestIndex == -1) {
         continue;
       }
-      i = m.getMinElement();
+      i = bestIndex;
 
       int scheduleDeviation = effectiveTime - stopTimeArray[i];
       status.setLastScheduleDeviation(scheduleDeviation);
 
       int[] indices = index.getIndices();
       int indexIntoAllStopTimes = indices[i];
-      List<StopTime> stopTimes = stopTimeIndices.getStopTimes();
-      StopTime stopTime = stopTimes.get(indexIntoAllStopTimes);
-      prediction.setTripTag(stopTime.getTrip().getId().getId());
+      prediction.setTripTag(stopTimeIndices.getTripId(indexIntoAllStopTimes));
 
       for (int nextPredictionIndex = predictionIndex + 1; nextPredictionIndex < predictions.size(); ++nextPredictionIndex) {
         FlatPrediction nextPrediction = predictions.get(nextPredictionIndex);
-        indexIntoAllStopTimes = getNextStopTimeIndexWithStopId(stopTimes,
+        indexIntoAllStopTimes = stopTimeIndices.getNextIndexWithStopId(
             indexIntoAllStopTimes + 1, nextPrediction.getStopTag());
-        if (indexIntoAllStopTimes == stopTimes.size()) {
+        if (indexIntoAllStopTimes == stopTimeIndices.size()) {
           break;
         }
-        StopTime nextStopTime = stopTimes.get(indexIntoAllStopTimes);
-        nextPrediction.setTripTag(nextStopTime.getTrip().getId().getId());
+        nextPrediction.setTripTag(stopTimeIndices.getTripId(indexIntoAllStopTimes));
       }
       return;
     }
   }
 
-  private int getNextStopTimeIndexWithStopId(List<StopTime> stopTimes,
-      int currentIndex, String stopTag) {
-    while (currentIndex < stopTimes.size()) {
-      StopTime stopTime = stopTimes.get(currentIndex);
-      if (stopTime.getStop().getId().getId().equals(stopTag)) {
-        break;
+  /**
+   * Orders predictions by vehicle, then block (predictions without a block
+   * first), then time.
+   */
+  private static class VehicleBlockTimeComparator implements
+      Comparator<FlatPrediction> {
+
+    @Override
+    public int compare(FlatPrediction o1, FlatPrediction o2) {
+      int c = o1.getVehicle().compareTo(o2.getVehicle());
+      if (c != 0) {
+        return c;
+      }
+      String b1 = o1.getBlock();
+      String b2 = o2.getBlock();
+      if (b1 != b2) {
+        if (b1 == null) {
+          return -1;
+        }
+        if (b2 == null) {
+          return 1;
+        }
+        c = b1.compareTo(b2);
+        if (c != 0) {
+          return c;
+        }
+      }
+      return o1.compareTo(o2);
+    }
+  }
+
+  /**
+   * An immutable set of matching results, published as a unit.
+   */
+  private static class MatchingResults {
+
+    final TimeZone agencyTimeZone;
+
+    final Map<String, String> routeIdMappings;
+
+    final Map<RouteDirectionStopKey, String> stopIdMappings;
+
+    final StopTimeMappings stopTimeMappings;
+
+    public MatchingResults(TimeZone agencyTimeZone,
+        Map<String, String> routeIdMappings,
+        Map<RouteDirectionStopKey, String> stopIdMappings,
+        StopTimeMappings stopTimeMappings) {
+      this.agencyTimeZone = agencyTimeZone;
+      this.routeIdMappings = Collections.unmodifiableMap(new HashMap<String, String>(
+          routeIdMappings));
+      this.stopIdMappings = Collections.unmodifiableMap(new HashMap<RouteDirectionStopKey, String>(
+          stopIdMappings));
+      this.stopTimeMappings = stopTimeMappings;
+    }
+  }
+
+  /**
+   * Checks the GTFS path for changes and, once a change has settled, rebuilds
+   * the matching results on the reload thread.
+   */
+  private class GtfsWatchTask implements Runnable {
+
+    @Override
+    public void run() {
+      try {
+        if (_gtfsReload != null && !_gtfsReload.isDone()) {
+          return;
+        }
+        List<NBRoute> routes = _routeConfigurations;
+        String fingerprint = _gtfsFingerprint;
+        if (routes == null || fingerprint == null) {
+          return;
+        }
+        String current = computeGtfsFingerprint();
+        if (current.equals(fingerprint)) {
+          _pendingGtfsFingerprint = null;
+          return;
+        }
+        if (!current.equals(_pendingGtfsFingerprint)) {
+          _pendingGtfsFingerprint = current;
+          return;
+        }
+        _pendingGtfsFingerprint = null;
+        _log.info("GTFS changed, rebuilding matching in the background");
+        _gtfsReload = _reloadExecutor.submit(new GtfsReloadTask(routes));
+      } catch (Exception ex) {
+        _log.warn("error checking GTFS for changes", ex);
+      }
+    }
+  }
+
+  private class GtfsReloadTask implements Runnable {
+
+    private final List<NBRoute> _routes;
+
+    public GtfsReloadTask(List<NBRoute> routes) {
+      _routes = routes;
+    }
+
+    @Override
+    public void run() {
+      try {
+        long t = System.currentTimeMillis();
+        rebuild(_routes, _gtfsReloadThreadCount);
+        _log.info("GTFS matching rebuilt in "
+            + (System.currentTimeMillis() - t) + " ms");
+      } catch (Exception ex) {
+        _log.warn("error rebuilding GTFS matching, keeping previous results",
+            ex);
       }
-      currentIndex++;
     }
-    return currentIndex;
   }
 
   private static class VehicleStatus {
 
-    private final ServiceDate _serviceDate;
+    private String _routeId;
 
-    private final long _serviceDateValue;
+    private String _blockId;
 
-    private long _lastUpdateTime;
+    private ServiceDate _serviceDate;
+
+    private long _serviceDateValue;
+
+    private volatile long _lastUpdateTime;
 
     private int _lastScheduleDeviation;
 
-    public VehicleStatus(ServiceDate serviceDate, long serviceDateValue) {
+    public boolean isForBlock(String routeId, String blockId) {
+      return _serviceDate != null && routeId.equals(_routeId)
+          && blockId.equals(_blockId);
+    }
+
+    /**
+     * Updates the block and service date the vehicle is operating on. The
+     * schedule deviation history is reset if either has changed.
+     */
+    public void setBlock(String routeId, String blockId,
+        ServiceDate serviceDate, long serviceDateValue) {
+      if (!routeId.equals(_routeId) || !blockId.equals(_blockId)
+          || serviceDate == null || !serviceDate.equals(_serviceDate)) {
+        _lastScheduleDeviation = 0;
+      }
+      _routeId = routeId;
+      _blockId = blockId;
       _serviceDate = serviceDate;
       _serviceDateValue = serviceDateValue;
     }
@@ -321,8 +1098,12 @@ public class NextBusToGtfsService {
       _lastScheduleDeviation = lastScheduleDeviation;
     }
 
-    public void touch() {
-      _lastUpdateTime = System.currentTimeMillis();
+    public long getLastUpdateTime() {
+      return _lastUpdateTime;
+    }
+
+    public void touch(long now) {
+      _lastUpdateTime = now;
     }
 
   }
@@ -16,24 +16,27 @@
 package org.onebusaway.gtfs_realtime.nextbus.services;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 
+import javax.inject.Inject;
 import javax.inject.Singleton;
 
-import org.onebusaway.collections.MappingLibrary;
 import org.onebusaway.collections.Min;
 import org.onebusaway.geospatial.model.CoordinateBounds;
 import org.onebusaway.geospatial.services.SphericalGeometryLibrary;
 import org.onebusaway.gtfs.model.Route;
 import org.onebusaway.gtfs.model.Stop;
-import org.onebusaway.gtfs.model.StopTime;
 import org.onebusaway.gtfs.model.Trip;
-import org.onebusaway.gtfs.services.GtfsRelationalDao;
+import org.onebusaway.gtfs_realtime.nextbus.model.GtfsMatchingData;
 import org.onebusaway.gtfs_realtime.nextbus.model.RouteDirectionStopKey;
 import org.onebusaway.gtfs_realtime.nextbus.model.api.NBDirection;
 import org.onebusaway.gtfs_realtime.nextbus.model.api.NBRoute;
@@ -50,12 +53,21 @@ public class NextBusToGtfsStopMatching {
 
   private static Logger _log = LoggerFactory.getLogger(NextBusToGtfsStopMatching.class);
 
+  private final LogRateLimiter _logLimiter = new LogRateLimiter();
+
   private double _stopMatchingDistanceThreshold = 75;
 
+  private PipelineTracer _tracer = new PipelineTracer();
+
   public void setStopMatchingThreshold(double stopMatchingThreshold) {
     _stopMatchingDistanceThreshold = stopMatchingThreshold;
   }
 
+  @Inject
+  public void setPipelineTracer(PipelineTracer tracer) {
+    _tracer = tracer;
+  }
+
   @SuppressWarnings("unchecked")
   public Map<NBStop, List<Stop>> getPotentialStopMatches(
       List<NBRoute> nbRoutes, Collection<Stop> gtfsStops) {
@@ -78,8 +90,11 @@ public class NextBusToGtfsStopMatching {
           b.getMaxLat());
       List<Stop> stopsInEnvelope = tree.query(env);
       if (stopsInEnvelope.isEmpty()) {
-        _log.warn("stop with no match: tag=" + nbStop.getTag() + " lat="
-            + nbStop.getLat() + " lon=" + nbStop.getLon());
+        if (_logLimiter.isLoggable("noStopMatch")) {
+          _log.warn("stop with no match: tag=" + nbStop.getTag() + " lat="
+              + nbStop.getLat() + " lon=" + nbStop.getLon()
+              + _logLimiter.getSuppressedSuffix("noStopMatch"));
+        }
         stopsWithNoMatches++;
       }
       potentialMatches.put(nbStop, stopsInEnvelope);
@@ -93,70 +108,79 @@ public class NextBusToGtfsStopMatching {
     return potentialMatches;
   }
 
+  /**
+   * Assigns the stops of each matched route as an independent task on the
+   * specified executor, merging the results once all routes are done.
+   */
   public Map<RouteDirectionStopKey, String> getStopMatches(
       Map<NBRoute, Route> routeMatches,
-      Map<NBStop, List<Stop>> potentialStopMatches, GtfsRelationalDao dao) {
-
-    Map<RouteDirectionStopKey, String> stopIdMappings = new HashMap<RouteDirectionStopKey, String>();
+      final Map<NBStop, List<Stop>> potentialStopMatches,
+      final GtfsMatchingData gtfs, ExecutorService executor) {
 
+    List<Callable<Map<RouteDirectionStopKey, String>>> tasks = new ArrayList<Callable<Map<RouteDirectionStopKey, String>>>();
     for (Map.Entry<NBRoute, Route> entry : routeMatches.entrySet()) {
+      final NBRoute nbRoute = entry.getKey();
+      final Route gtfsRoute = entry.getValue();
+      tasks.add(new Callable<Map<RouteDirectionStopKey, String>>() {
+        @Override
+        public Map<RouteDirectionStopKey, String> call() {
+          Object trace = _tracer.begin(PipelineStage.STOP_MATCHING);
+          Map<RouteDirectionStopKey, String> stopIdMappings = getStopMatchesForRoute(
+              nbRoute, gtfsRoute, potentialStopMatches, gtfs);
+          _tracer.end(trace, nbRoute.getTag(), -1, stopIdMappings.size());
+          return stopIdMappings;
+        }
+      });
+    }
 
-      NBRoute nbRoute = entry.getKey();
-      Route gtfsRoute = entry.getValue();
+    Map<RouteDirectionStopKey, String> stopIdMappings = new HashMap<RouteDirectionStopKey, String>();
+    for (Map<RouteDirectionStopKey, String> result : MatchingTasks.invokeAll(
+        executor, tasks)) {
+      stopIdMappings.putAll(result);
+    }
+    return stopIdMappings;
+  }
 
-      Set<List<Stop>> stopSequences = getStopSequencesForRoute(dao, gtfsRoute);
+  /****
+   * Private Methods
+   ****/
 
-      List<Map<Stop, Integer>> stopSequenceIndices = new ArrayList<Map<Stop, Integer>>();
-      for (List<Stop> stopSequence : stopSequences) {
-        Map<Stop, Integer> index = new HashMap<Stop, Integer>();
-        for (int i = 0; i < stopSequence.size(); ++i) {
-          index.put(stopSequence.get(i), i);
-        }
-        stopSequenceIndices.add(index);
-      }
+  private Map<RouteDirectionStopKey, String> getStopMatchesForRoute(
+      NBRoute nbRoute, Route gtfsRoute,
+      Map<NBStop, List<Stop>> potentialStopMatches, GtfsMatchingData gtfs) {
 
-      for (NBDirection direction : nbRoute.getDirections()) {
+    Map<RouteDirectionStopKey, String> stopIdMappings = new HashMap<RouteDirectionStopKey, String>();
 
-        List<Match> matches = new ArrayList<Match>();
-        for (NBStop fromStop : direction.getStops()) {
-          List<Stop> toStops = potentialStopMatches.get(fromStop);
-          if (toStops.isEmpty()) {
-            continue;
-          }
-          Match m = new Match(fromStop, toStops);
-          matches.add(m);
-        }
+    Set<List<Stop>> stopSequences = getStopSequencesForRoute(gtfs, gtfsRoute);
 
-        Min<Assignment> m = new Min<Assignment>();
-        Assignment assignment = new Assignment(direction.getStops(),
-            stopSequenceIndices);
-        matches = applyDirectMatchesToAssignment(matches, assignment);
-        recursivelyBuildAndScoreAssignment(matches, 0, assignment, m);
-        Assignment bestAssignment = m.getMinElement();
+    List<Map<Stop, Integer>> stopSequenceIndices = new ArrayList<Map<Stop, Integer>>();
+    for (List<Stop> stopSequence : stopSequences) {
+      Map<Stop, Integer> index = new HashMap<Stop, Integer>();
+      for (int i = 0; i < stopSequence.size(); ++i) {
+        index.put(stopSequence.get(i), i);
+      }
+      stopSequenceIndices.add(index);
+    }
 
-        if (bestAssignment == null) {
-          throw new IllegalStateException();
-        }
+    for (NBDirection direction : nbRoute.getDirections()) {
 
-        for (NBStop stop : direction.getStops()) {
-          Stop gtfsStop = bestAssignment.getGtfsStopForNBStop(stop);
-          if (gtfsStop == null) {
-            continue;
-          }
-          String stopId = gtfsStop.getId().getId();
-          RouteDirectionStopKey key = new RouteDirectionStopKey(
-              nbRoute.getTag(), direction.getTag(), stop.getTag());
-          stopIdMappings.put(key, stopId);
+      Map<NBStop, Stop> bestAssignment = findBestAssignment(
+          direction.getStops(), potentialStopMatches, stopSequenceIndices);
+
+      for (NBStop stop : direction.getStops()) {
+        Stop gtfsStop = bestAssignment.get(stop);
+        if (gtfsStop == null) {
+          continue;
         }
+        String stopId = gtfsStop.getId().getId();
+        RouteDirectionStopKey key = new RouteDirectionStopKey(
+            nbRoute.getTag(), direction.getTag(), stop.getTag());
+        stopIdMappings.put(key, stopId);
       }
     }
     return stopIdMappings;
   }
 
-  /****
-   * Private Methods
-   ****/
-
   private Map<String, NBStop> getStopsByTag(List<NBRoute> routes) {
     Map<String, NBStop> stopsByTag = new HashMap<String, NBStop>();
     for (NBRoute route : routes) {
@@ -167,58 +191,215 @@ public class NextBusToGtfsStopMatching {
     return stopsByTag;
   }
 
-  private Set<List<Stop>> getStopSequencesForRoute(GtfsRelationalDao dao,
+  private Set<List<Stop>> getStopSequencesForRoute(GtfsMatchingData gtfs,
       Route route) {
-    List<Trip> trips = dao.getTripsForRoute(route);
+    List<Trip> trips = gtfs.getDao().getTripsForRoute(route);
     Set<List<Stop>> sequences = new HashSet<List<Stop>>();
     for (Trip trip : trips) {
-      List<StopTime> stopTimes = dao.getStopTimesForTrip(trip);
-      List<Stop> stops = MappingLibrary.map(stopTimes, "stop");
+      int tripIndex = gtfs.getTripIndex(trip);
+      if (tripIndex == -1) {
+        continue;
+      }
+      List<Stop> stops = new ArrayList<Stop>();
+      for (int i = gtfs.getStartOfTrip(tripIndex); i < gtfs.getEndOfTrip(tripIndex); ++i) {
+        stops.add(gtfs.getStop(i));
+      }
       sequences.add(stops);
     }
     return sequences;
   }
 
-  private List<Match> applyDirectMatchesToAssignment(List<Match> matches,
-      Assignment assignment) {
-    List<Match> remainingMatches = new ArrayList<Match>();
-    for (Match match : matches) {
-      if (match.to.size() == 1) {
-        assignment.applyMatch(match, 0);
-      } else {
-        remainingMatches.add(match);
+  /**
+   * Find the assignment of NextBus stops to candidate GTFS stops that best
+   * agrees with one of the GTFS stop sequences for the route, where the score
+   * of an assignment against a sequence is the number of NextBus stops that
+   * are either unmatched in the sequence or out-of-order with respect to the
+   * previous matched stop.
+   * 
+   * Rather than enumerating every combination of candidates, we align the
+   * NextBus stop sequence against each GTFS stop sequence with a Viterbi-style
+   * dynamic program (see {@link #alignStopsToSequence(List, List, Map)}),
+   * which is polynomial in the number of stops and candidates.
+   * 
+   * @param stops the NextBus stops of a direction, in order
+   * @param potentialStopMatches
+   * @param stopSequenceIndices for each GTFS stop sequence, the position of
+   *          each stop in the sequence
+   * @return the best assignment of NextBus stop to GTFS stop
+   */
+  private Map<NBStop, Stop> findBestAssignment(List<NBStop> stops,
+      Map<NBStop, List<Stop>> potentialStopMatches,
+      List<Map<Stop, Integer>> stopSequenceIndices) {
+
+    List<NBStop> matchedStops = new ArrayList<NBStop>();
+    List<List<Stop>> candidates = new ArrayList<List<Stop>>();
+    Map<NBStop, Stop> defaultAssignment = new HashMap<NBStop, Stop>();
+    for (NBStop stop : stops) {
+      List<Stop> toStops = potentialStopMatches.get(stop);
+      if (toStops == null || toStops.isEmpty()) {
+        continue;
       }
+      matchedStops.add(stop);
+      candidates.add(toStops);
+      defaultAssignment.put(stop, toStops.get(0));
     }
-    return remainingMatches;
-  }
 
-  private void recursivelyBuildAndScoreAssignment(List<Match> matches,
-      int depth, Assignment assignment, Min<Assignment> m) {
-    if (depth == matches.size()) {
-      double score = scoreAssignment(assignment);
+    Min<Map<NBStop, Stop>> m = new Min<Map<NBStop, Stop>>();
+    m.add(scoreAssignment(matchedStops, defaultAssignment, stopSequenceIndices),
+        defaultAssignment);
+
+    for (Map<Stop, Integer> indices : stopSequenceIndices) {
+      List<Stop> choices = alignStopsToSequence(matchedStops, candidates,
+          indices);
+      Map<NBStop, Stop> assignment = resolveAssignment(matchedStops,
+          candidates, choices, stopSequenceIndices);
+      double score = scoreAssignment(matchedStops, assignment,
+          stopSequenceIndices);
       if (score < m.getMinValue()) {
-        m.add(score, new Assignment(assignment));
+        m.add(score, assignment);
+      }
+    }
+
+    return m.getMinElement();
+  }
+
+  /**
+   * Computes the best choice of candidate GTFS stop for each NextBus stop with
+   * respect to a single GTFS stop sequence. The state of the dynamic program
+   * after each NextBus stop is the sequence position of the last matched stop,
+   * since that alone determines the out-of-order penalty of all subsequent
+   * choices. A state with an earlier last position and no higher score
+   * dominates, so we only keep the Pareto frontier of states at each step.
+   * 
+   * @param stops NextBus stops that have at least one candidate, in order
+   * @param candidates candidate GTFS stops for each NextBus stop
+   * @param indices the position of each stop in the GTFS stop sequence
+   * @return the chosen GTFS stop for each NextBus stop
+   */
+  private List<Stop> alignStopsToSequence(List<NBStop> stops,
+      List<List<Stop>> candidates, Map<Stop, Integer> indices) {
+
+    List<AlignmentState> states = new ArrayList<AlignmentState>();
+    states.add(new AlignmentState(-1, 0, null, null));
+
+    for (int k = 0; k < stops.size(); ++k) {
+      Map<Integer, AlignmentState> next = new HashMap<Integer, AlignmentState>();
+      for (AlignmentState state : states) {
+        for (Stop candidate : candidates.get(k)) {
+          Integer index = indices.get(candidate);
+          int lastIndex = state.lastIndex;
+          int score = state.score;
+          if (index == null) {
+            /**
+             * We penalize for unmatched stops
+             */
+            score++;
+          } else {
+            /**
+             * We penalize for out-of-order stop sequences
+             */
+            if (index < lastIndex) {
+              score++;
+            }
+            lastIndex = index;
+          }
+          AlignmentState existing = next.get(lastIndex);
+          if (existing == null || score < existing.score) {
+            next.put(lastIndex, new AlignmentState(lastIndex, score, state,
+                candidate));
+          }
+        }
+      }
+      states = getParetoFrontier(next.values());
+    }
+
+    AlignmentState best = null;
+    for (AlignmentState state : states) {
+      if (best == null || state.score < best.score) {
+        best = state;
+      }
+    }
+
+    Stop[] choices = new Stop[stops.size()];
+    for (int k = stops.size() - 1; k >= 0; --k) {
+      choices[k] = best.choice;
+      best = best.prev;
+    }
+    return Arrays.asList(choices);
+  }
+
+  private List<AlignmentState> getParetoFrontier(
+      Collection<AlignmentState> states) {
+    List<AlignmentState> sorted = new ArrayList<AlignmentState>(states);
+    Collections.sort(sorted);
+    List<AlignmentState> frontier = new ArrayList<AlignmentState>();
+    int bestScore = Integer.MAX_VALUE;
+    for (AlignmentState state : sorted) {
+      if (state.score < bestScore) {
+        frontier.add(state);
+        bestScore = state.score;
+      }
+    }
+    return frontier;
+  }
+
+  /**
+   * The alignment treats each occurrence of a NextBus stop independently, but
+   * a stop tag that appears more than once in a direction (a loop, for
+   * example) can only map to a single GTFS stop. When occurrences disagree, we
+   * pick whichever of their choices gives the best overall score.
+   * 
+   * @param stops
+   * @param candidates
+   * @param choices the aligned choice for each occurrence
+   * @param stopSequenceIndices
+   * @return
+   */
+  private Map<NBStop, Stop> resolveAssignment(List<NBStop> stops,
+      List<List<Stop>> candidates, List<Stop> choices,
+      List<Map<Stop, Integer>> stopSequenceIndices) {
+
+    Map<NBStop, Stop> assignment = new HashMap<NBStop, Stop>();
+    Map<NBStop, Set<Stop>> conflicts = new HashMap<NBStop, Set<Stop>>();
+    for (int k = 0; k < stops.size(); ++k) {
+      NBStop stop = stops.get(k);
+      Stop choice = choices.get(k);
+      Stop existing = assignment.put(stop, choice);
+      if (existing != null && !existing.equals(choice)) {
+        Set<Stop> options = conflicts.get(stop);
+        if (options == null) {
+          options = new HashSet<Stop>();
+          conflicts.put(stop, options);
+        }
+        options.add(existing);
+        options.add(choice);
       }
+    }
 
-    } else {
-      Match match = matches.get(depth);
-      for (int i = 0; i < match.to.size(); ++i) {
-        assignment.applyMatch(match, i);
-        recursivelyBuildAndScoreAssignment(matches, depth + 1, assignment, m);
+    for (Map.Entry<NBStop, Set<Stop>> entry : conflicts.entrySet()) {
+      NBStop stop = entry.getKey();
+      Min<Stop> m = new Min<Stop>();
+      for (Stop option : entry.getValue()) {
+        assignment.put(stop, option);
+        m.add(scoreAssignment(stops, assignment, stopSequenceIndices), option);
       }
+      assignment.put(stop, m.getMinElement());
     }
+
+    return assignment;
   }
 
-  private double scoreAssignment(Assignment assignment) {
+  private double scoreAssignment(List<NBStop> stops,
+      Map<NBStop, Stop> assignment, List<Map<Stop, Integer>> stopSequenceIndices) {
 
     List<Stop> stopsInOrder = new ArrayList<Stop>();
-    for (NBStop stop : assignment._stopsInOrder) {
-      stopsInOrder.add(assignment._stops.get(stop));
+    for (NBStop stop : stops) {
+      stopsInOrder.add(assignment.get(stop));
     }
 
     int min = Integer.MAX_VALUE;
 
-    for (Map<Stop, Integer> indices : assignment._stopSequenceIndices) {
+    for (Map<Stop, Integer> indices : stopSequenceIndices) {
       int score = 0;
       int lastIndex = -1;
       for (Stop stop : stopsInOrder) {
@@ -244,61 +425,27 @@ public class NextBusToGtfsStopMatching {
     return min;
   }
 
-  private static class Match {
-    public final NBStop from;
-    public final List<Stop> to;
-
-    public Match(NBStop fromStop, List<Stop> toStops) {
-      this.from = fromStop;
-      this.to = toStops;
-    }
-
-    @Override
-    public String toString() {
-      return from.getTag() + " " + to;
-    }
-  }
-
-  private static class Assignment {
+  private static class AlignmentState implements Comparable<AlignmentState> {
 
-    public final List<NBStop> _stopsInOrder;
+    public final int lastIndex;
 
-    private final List<Map<Stop, Integer>> _stopSequenceIndices;
+    public final int score;
 
-    private Map<NBStop, Stop> _stops = new HashMap<NBStop, Stop>();
+    public final AlignmentState prev;
 
-    public Assignment(List<NBStop> stopsInOrder,
-        List<Map<Stop, Integer>> stopSequenceIndices) {
-      _stopsInOrder = stopsInOrder;
-      _stopSequenceIndices = stopSequenceIndices;
-    }
-
-    public Assignment(Assignment o) {
-      _stopsInOrder = o._stopsInOrder;
-      _stopSequenceIndices = o._stopSequenceIndices;
-      _stops.putAll(o._stops);
-    }
+    public final Stop choice;
 
-    public Stop getGtfsStopForNBStop(NBStop stop) {
-      return _stops.get(stop);
-    }
-
-    public void applyMatch(Match match, int index) {
-      NBStop from = match.from;
-      Stop to = match.to.get(index);
-      if (from.getTag() == null) {
-        throw new IllegalStateException();
-      }
-      _stops.put(from, to);
+    public AlignmentState(int lastIndex, int score, AlignmentState prev,
+        Stop choice) {
+      this.lastIndex = lastIndex;
+      this.score = score;
+      this.prev = prev;
+      this.choice = choice;
     }
 
     @Override
-    public String toString() {
-      StringBuilder b = new StringBuilder();
-      for (NBStop stop : _stopsInOrder) {
-        b.append(_stops.get(stop).getId().getId()).append(" ");
-      }
-      return b.toString();
+    public int compareTo(AlignmentState o) {
+      return this.lastIndex - o.lastIndex;
     }
   }
 }
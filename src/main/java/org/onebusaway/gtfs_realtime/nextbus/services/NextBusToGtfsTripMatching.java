@@ -24,28 +24,30 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
+import org.onebusaway.collections.Counter;
 import org.onebusaway.collections.MappingLibrary;
 import org.onebusaway.collections.Min;
-import org.onebusaway.collections.tuple.T2;
-import org.onebusaway.collections.tuple.Tuples;
 import org.onebusaway.gtfs.impl.calendar.CalendarServiceDataFactoryImpl;
 import org.onebusaway.gtfs.model.AgencyAndId;
 import org.onebusaway.gtfs.model.Route;
 import org.onebusaway.gtfs.model.ServiceCalendar;
-import org.onebusaway.gtfs.model.StopTime;
 import org.onebusaway.gtfs.model.Trip;
 import org.onebusaway.gtfs.model.calendar.CalendarServiceData;
-import org.onebusaway.gtfs.model.calendar.ServiceDate;
 import org.onebusaway.gtfs.services.GtfsRelationalDao;
 import org.onebusaway.gtfs.services.calendar.CalendarServiceDataFactory;
 import org.onebusaway.gtfs_realtime.nextbus.model.FlatStopTime;
+import org.onebusaway.gtfs_realtime.nextbus.model.GtfsMatchingData;
 import org.onebusaway.gtfs_realtime.nextbus.model.RouteDirectionStopKey;
-import org.onebusaway.gtfs_realtime.nextbus.model.ServiceDateBlockKey;
+import org.onebusaway.gtfs_realtime.nextbus.model.ServiceIdActiveDates;
 import org.onebusaway.gtfs_realtime.nextbus.model.StopTimeIndices;
+import org.onebusaway.gtfs_realtime.nextbus.model.StopTimeMappings;
 import org.onebusaway.gtfs_realtime.nextbus.model.api.NBRoute;
 import org.onebusaway.gtfs_realtime.nextbus.model.api.NBStopTime;
 import org.onebusaway.gtfs_realtime.nextbus.model.api.NBTrip;
@@ -57,9 +59,23 @@ public class NextBusToGtfsTripMatching {
 
   private static final Logger _log = LoggerFactory.getLogger(NextBusToGtfsTripMatching.class);
 
+  private final LogRateLimiter _logLimiter = new LogRateLimiter();
+
   private static final Map<String, String> _serviceClassToDaymask = new HashMap<String, String>();
 
-  private int _tripIndex = 0;
+  /**
+   * The score of a NextBus trip that has no stop times in common with any
+   * candidate GTFS trip.
+   */
+  private static final int NO_MATCH_SCORE = 4 * 60 * 60;
+
+  private final AtomicInteger _tripIndex = new AtomicInteger();
+
+  /**
+   * GTFS trips whose span doesn't come within this many seconds of a NextBus
+   * trip are not considered as matches for it.
+   */
+  private int _tripMatchingTimeWindow = 3 * 60 * 60;
 
   static {
     _serviceClassToDaymask.put("mtwth", "1111000");
@@ -74,83 +90,178 @@ public class NextBusToGtfsTripMatching {
 
   private NextBusApiService _nextBusApiServie;
 
+  private PipelineTracer _tracer = new PipelineTracer();
+
   @Inject
   public void setNextBusApiService(NextBusApiService nextBusApiService) {
     _nextBusApiServie = nextBusApiService;
   }
 
-  public Map<ServiceDateBlockKey, StopTimeIndices> getTripMatches(
-      Map<NBRoute, Route> routeMatches,
-      Map<RouteDirectionStopKey, String> stopIdMappings, GtfsRelationalDao dao) {
+  @Inject
+  public void setPipelineTracer(PipelineTracer tracer) {
+    _tracer = tracer;
+  }
 
-    Map<ServiceDateBlockKey, StopTimeIndices> mappings = new HashMap<ServiceDateBlockKey, StopTimeIndices>();
+  /**
+   * Aligns the schedules of each matched route as an independent task on the
+   * specified executor. The schedules are downloaded on the calling thread
+   * first, one route at a time, so only the alignment itself runs in parallel.
+   * The stop time indices are built from the results on the calling thread, in
+   * route order, since they share id tables.
+   */
+  public StopTimeMappings getTripMatches(Map<NBRoute, Route> routeMatches,
+      final Map<RouteDirectionStopKey, String> stopIdMappings,
+      final GtfsMatchingData gtfs, ExecutorService executor) {
 
-    CalendarServiceDataFactory factory = new CalendarServiceDataFactoryImpl(dao);
+    CalendarServiceDataFactory factory = new CalendarServiceDataFactoryImpl(
+        gtfs.getDao());
     CalendarServiceData data = factory.createData();
 
+    List<Callable<List<BlockMatch>>> tasks = new ArrayList<Callable<List<BlockMatch>>>();
     for (Map.Entry<NBRoute, Route> entry : routeMatches.entrySet()) {
-      NBRoute nbRoute = entry.getKey();
-      Route gtfsRoute = entry.getValue();
-      List<NBRoute> schedules = getSchedulesForRoute(nbRoute);
-      Map<String, List<AgencyAndId>> serviceIdsByServiceClass = getApplicableServiceIdsForByServiceClass(
-          dao, gtfsRoute, schedules);
-      Map<String, List<List<StopTime>>> tripStopTimesByServiceClass = computeTripStopTimesByServiceClass(
-          dao, gtfsRoute, serviceIdsByServiceClass);
-
-      List<FlatStopTime> stopTimes = flattenSchedules(schedules, stopIdMappings);
-      Map<String, List<FlatStopTime>> stopTimesByScheduleClass = MappingLibrary.mapToValueList(
-          stopTimes, "scheduleClass");
-
-      for (Map.Entry<String, List<FlatStopTime>> scheduleClassEntry : stopTimesByScheduleClass.entrySet()) {
-
-        List<FlatStopTime> stopTimesForScheduleClass = scheduleClassEntry.getValue();
-        Map<String, List<FlatStopTime>> stopTimesByServiceClass = MappingLibrary.mapToValueList(
-            stopTimesForScheduleClass, "serviceClass");
-
-        for (Map.Entry<String, List<FlatStopTime>> serviceClassEntry : stopTimesByServiceClass.entrySet()) {
-          String serviceClass = serviceClassEntry.getKey();
-          List<AgencyAndId> serviceIds = serviceIdsByServiceClass.get(serviceClass);
-
-          Min<T2<AgencyAndId, Map<String, StopTimeIndices>>> m = new Min<T2<AgencyAndId, Map<String, StopTimeIndices>>>();
+      final NBRoute nbRoute = entry.getKey();
+      final Route gtfsRoute = entry.getValue();
+      final List<NBRoute> schedules = getSchedulesForRoute(nbRoute);
+      tasks.add(new Callable<List<BlockMatch>>() {
+        @Override
+        public List<BlockMatch> call() {
+          Object trace = _tracer.begin(PipelineStage.TRIP_MATCHING);
+          List<BlockMatch> blockMatches = getTripMatchesForRoute(gtfsRoute,
+              schedules, stopIdMappings, gtfs);
+          _tracer.end(trace, nbRoute.getTag(), -1, blockMatches.size());
+          return blockMatches;
+        }
+      });
+    }
 
-          for (AgencyAndId serviceId : serviceIds) {
+    ServiceIdActiveDates activeDates = new ServiceIdActiveDates();
+    StopTimeMappings mappings = new StopTimeMappings(activeDates);
+    Map<AgencyAndId, Integer> serviceIndices = new HashMap<AgencyAndId, Integer>();
+
+    for (List<BlockMatch> blockMatches : MatchingTasks.invokeAll(executor,
+        tasks)) {
+      for (BlockMatch blockMatch : blockMatches) {
+        AgencyAndId serviceId = blockMatch.serviceId;
+        Integer serviceIndex = serviceIndices.get(serviceId);
+        if (serviceIndex == null) {
+          serviceIndex = activeDates.addServiceDates(data.getServiceDatesForServiceId(serviceId));
+          serviceIndices.put(serviceId, serviceIndex);
+        }
+        StopTimeIndices indices = createStopTimeIndices(gtfs,
+            blockMatch.trips, mappings);
+        mappings.putStopTimeIndices(blockMatch.routeId, blockMatch.blockId,
+            serviceIndex, indices);
+      }
+    }
 
-            List<FlatStopTime> stopTimesForServiceClass = serviceClassEntry.getValue();
-            List<List<StopTime>> gtfsStopTimesByTrip = tripStopTimesByServiceClass.get(serviceClass);
-            Map<String, StopTimeIndices> stopTimeIndices = new HashMap<String, StopTimeIndices>();
+    return mappings;
+  }
 
-            double score = findBestStopTimeIndicesForNextBusBlocks(
-                stopTimesForServiceClass, gtfsStopTimesByTrip, stopTimeIndices);
-            m.add(score, Tuples.tuple(serviceId, stopTimeIndices));
-          }
+  private StopTimeIndices createStopTimeIndices(GtfsMatchingData gtfs,
+      List<GtfsTrip> trips, StopTimeMappings mappings) {
+    int n = 0;
+    for (GtfsTrip trip : trips) {
+      n += trip.size();
+    }
+    int[] stopOrdinals = new int[n];
+    int[] times = new int[n];
+    int[] stopSequences = new int[n];
+    int[] tripOrdinals = new int[n];
+    int index = 0;
+    for (GtfsTrip trip : trips) {
+      int tripOrdinal = mappings.getTripIds().intern(
+          gtfs.getTrip(trip.getTripIndex()).getId().getId());
+      for (int i = 0; i < trip.size(); ++i) {
+        int stopTimeIndex = trip.getStopTimeIndex(i);
+        stopOrdinals[index] = mappings.getStopIds().intern(
+            gtfs.getStop(stopTimeIndex).getId().getId());
+        times[index] = trip.getTime(i);
+        stopSequences[index] = gtfs.getStopSequence(stopTimeIndex);
+        tripOrdinals[index] = tripOrdinal;
+        index++;
+      }
+    }
+    return StopTimeIndices.create(stopOrdinals, times, stopSequences,
+        tripOrdinals, mappings.getStopIds(), mappings.getTripIds());
+  }
 
-          T2<AgencyAndId, Map<String, StopTimeIndices>> best = m.getMinElement();
-          AgencyAndId serviceId = best.getFirst();
-          Map<String, StopTimeIndices> stopTimeIndicesByBlockId = best.getSecond();
-          List<ServiceDate> serviceDates = data.getServiceDatesForServiceId(serviceId);
-          for (ServiceDate serviceDate : serviceDates) {
-            for (Map.Entry<String, StopTimeIndices> gentry : stopTimeIndicesByBlockId.entrySet()) {
-              mappings.put(new ServiceDateBlockKey(gtfsRoute.getId().getId(),
-                  gentry.getKey(), serviceDate), gentry.getValue());
-            }
-          }
+  private List<BlockMatch> getTripMatchesForRoute(Route gtfsRoute,
+      List<NBRoute> schedules,
+      Map<RouteDirectionStopKey, String> stopIdMappings, GtfsMatchingData gtfs) {
+
+    List<BlockMatch> blockMatches = new ArrayList<BlockMatch>();
+
+    Map<String, List<AgencyAndId>> serviceIdsByServiceClass = getApplicableServiceIdsForByServiceClass(
+        gtfs.getDao(), gtfsRoute, schedules);
+    Map<String, GtfsTripIndex> tripIndicesByServiceClass = computeTripIndicesByServiceClass(
+        gtfs, gtfsRoute, serviceIdsByServiceClass);
+
+    List<FlatStopTime> stopTimes = flattenSchedules(schedules, stopIdMappings);
+    Map<String, List<FlatStopTime>> stopTimesByScheduleClass = MappingLibrary.mapToValueList(
+        stopTimes, "scheduleClass");
+
+    for (Map.Entry<String, List<FlatStopTime>> scheduleClassEntry : stopTimesByScheduleClass.entrySet()) {
+
+      List<FlatStopTime> stopTimesForScheduleClass = scheduleClassEntry.getValue();
+      Map<String, List<FlatStopTime>> stopTimesByServiceClass = MappingLibrary.mapToValueList(
+          stopTimesForScheduleClass, "serviceClass");
+
+      for (Map.Entry<String, List<FlatStopTime>> serviceClassEntry : stopTimesByServiceClass.entrySet()) {
+        String serviceClass = serviceClassEntry.getKey();
+        List<AgencyAndId> serviceIds = serviceIdsByServiceClass.get(serviceClass);
+
+        /**
+         * The block alignment only depends on the service class, so we compute
+         * it once and then pick the service id whose trips account for the
+         * most matched NextBus trips.
+         */
+        List<FlatStopTime> stopTimesForServiceClass = serviceClassEntry.getValue();
+        GtfsTripIndex gtfsTrips = tripIndicesByServiceClass.get(serviceClass);
+        Map<String, List<GtfsTrip>> tripsByBlockId = new HashMap<String, List<GtfsTrip>>();
+        Counter<AgencyAndId> matchesByServiceId = new Counter<AgencyAndId>();
+
+        findBestStopTimesForNextBusBlocks(stopTimesForServiceClass, gtfsTrips,
+            tripsByBlockId, matchesByServiceId);
+
+        AgencyAndId serviceId = getBestServiceId(serviceIds,
+            matchesByServiceId);
+        for (Map.Entry<String, List<GtfsTrip>> blockEntry : tripsByBlockId.entrySet()) {
+          blockMatches.add(new BlockMatch(gtfsRoute.getId().getId(),
+              blockEntry.getKey(), serviceId, blockEntry.getValue()));
         }
       }
     }
 
-    return mappings;
+    return blockMatches;
+  }
+
+  /**
+   * 
+   * @param serviceIds the applicable service ids for a service class
+   * @param matchesByServiceId the number of NextBus trips matched to a GTFS
+   *          trip with each service id
+   * @return the service id with the most matched trips, with ties going to
+   *         the earlier service id in the list
+   */
+  private AgencyAndId getBestServiceId(List<AgencyAndId> serviceIds,
+      Counter<AgencyAndId> matchesByServiceId) {
+    AgencyAndId best = serviceIds.get(0);
+    for (AgencyAndId serviceId : serviceIds) {
+      if (matchesByServiceId.getCount(serviceId) > matchesByServiceId.getCount(best)) {
+        best = serviceId;
+      }
+    }
+    return best;
   }
 
-  private double findBestStopTimeIndicesForNextBusBlocks(
-      List<FlatStopTime> stopTimesForServiceClass,
-      List<List<StopTime>> gtfsStopTimesByTrip,
-      Map<String, StopTimeIndices> resultingStopTimeIndicesByBlockid) {
+  private void findBestStopTimesForNextBusBlocks(
+      List<FlatStopTime> stopTimesForServiceClass, GtfsTripIndex gtfsTrips,
+      Map<String, List<GtfsTrip>> resultingTripsByBlockId,
+      Counter<AgencyAndId> matchesByServiceId) {
 
     Map<String, List<FlatStopTime>> stopTimesByBlock = MappingLibrary.mapToValueList(
         stopTimesForServiceClass, "blockTag");
 
-    double score = 0;
-
     for (Map.Entry<String, List<FlatStopTime>> blockEntry : stopTimesByBlock.entrySet()) {
       List<FlatStopTime> stopTimesForBlock = blockEntry.getValue();
 
@@ -159,37 +270,52 @@ public class NextBusToGtfsTripMatching {
       Map<Integer, List<FlatStopTime>> stopTimesByTrip = MappingLibrary.mapToValueList(
           stopTimesForBlock, "tripIndex");
 
-      List<StopTime> bestStopTimesForBlock = new ArrayList<StopTime>();
+      List<GtfsTrip> bestTripsForBlock = new ArrayList<GtfsTrip>();
 
       List<List<FlatStopTime>> stopTimesSortedByTrip = new ArrayList<List<FlatStopTime>>(
           stopTimesByTrip.values());
       Collections.sort(stopTimesSortedByTrip, new FlatStopTimeListComparator());
 
       for (List<FlatStopTime> stopTimesForTrip : stopTimesSortedByTrip) {
-        score += findBestGtfsTripForNextBusTrip(stopTimesForTrip,
-            gtfsStopTimesByTrip, bestStopTimesForBlock);
+        findBestGtfsTripForNextBusTrip(stopTimesForTrip,
+            gtfsTrips, bestTripsForBlock, matchesByServiceId);
       }
-      Collections.sort(bestStopTimesForBlock);
-      StopTimeIndices indices = StopTimeIndices.create(bestStopTimesForBlock);
-      resultingStopTimeIndicesByBlockid.put(blockEntry.getKey(), indices);
+      resultingTripsByBlockId.put(blockEntry.getKey(), bestTripsForBlock);
     }
-
-    return score;
   }
 
-  private double findBestGtfsTripForNextBusTrip(List<FlatStopTime> nextBusTrip,
-      List<List<StopTime>> gtfsStopTimesByTrip,
-      List<StopTime> bestStopTimesForBlock) {
+  private void findBestGtfsTripForNextBusTrip(List<FlatStopTime> nextBusTrip,
+      GtfsTripIndex gtfsTrips, List<GtfsTrip> bestTripsForBlock,
+      Counter<AgencyAndId> matchesByServiceId) {
 
     Collections.sort(nextBusTrip);
 
-    Min<List<StopTime>> m = new Min<List<StopTime>>();
-    for (List<StopTime> gtfsTrip : gtfsStopTimesByTrip) {
+    /**
+     * Any GTFS trip that doesn't come within the time window of the NextBus
+     * trip would score over our acceptance threshold anyway, so we only score
+     * the trips whose span overlaps the window.
+     */
+    int nbStartTime = nextBusTrip.get(0).getEpochTime() / 1000;
+    int nbEndTime = nextBusTrip.get(nextBusTrip.size() - 1).getEpochTime() / 1000;
+    int fromIndex = gtfsTrips.getFirstIndexStartingAtOrAfter(nbStartTime
+        - _tripMatchingTimeWindow - gtfsTrips.getMaxDuration());
+    int toIndex = gtfsTrips.getFirstIndexStartingAtOrAfter(nbEndTime
+        + _tripMatchingTimeWindow + 1);
+
+    Min<GtfsTrip> m = new Min<GtfsTrip>();
+    for (int i = fromIndex; i < toIndex; ++i) {
+      GtfsTrip gtfsTrip = gtfsTrips.getTrip(i);
+      if (gtfsTrip.getEndTime() < nbStartTime - _tripMatchingTimeWindow) {
+        continue;
+      }
       double score = computeStopTimeAlignmentScore(nextBusTrip, gtfsTrip);
       m.add(score, gtfsTrip);
     }
 
-    if (m.getMinValue() > 2 * 60) {
+    if (m.isEmpty() || m.getMinValue() > 2 * 60) {
+      if (!_logLimiter.isLoggable("noTripMatch")) {
+        return;
+      }
       StringBuilder b = new StringBuilder();
       for (FlatStopTime stopTime : nextBusTrip) {
         b.append("\n  ");
@@ -208,13 +334,14 @@ public class NextBusToGtfsTripMatching {
         b.append(stopTime.getEpochTimeAsString());
 
       }
-      _log.warn("no good match found for trip:" + b.toString());
+      _log.warn("no good match found for trip:" + b.toString()
+          + _logLimiter.getSuppressedSuffix("noTripMatch"));
     } else {
-      List<StopTime> bestStopTimes = m.getMinElement();
-      bestStopTimesForBlock.addAll(bestStopTimes);
+      GtfsTrip bestTrip = m.getMinElement();
+      bestTripsForBlock.add(bestTrip);
+      matchesByServiceId.increment(bestTrip.getServiceId());
 
     }
-    return m.getMinValue();
   }
 
   private List<NBRoute> getSchedulesForRoute(NBRoute nbRoute) {
@@ -231,6 +358,7 @@ public class NextBusToGtfsTripMatching {
     for (NBRoute schedule : schedules) {
       List<NBTrip> trips = schedule.getTrips();
       for (NBTrip trip : trips) {
+        int tripIndex = _tripIndex.getAndIncrement();
         for (NBStopTime stopTime : trip.getStopTimes()) {
 
           /**
@@ -248,7 +376,7 @@ public class NextBusToGtfsTripMatching {
           flat.setScheduleClass(schedule.getScheduleClass());
           flat.setServiceClass(schedule.getServiceClass());
           flat.setStopTag(stopTime.getTag());
-          flat.setTripIndex(_tripIndex);
+          flat.setTripIndex(tripIndex);
 
           RouteDirectionStopKey key = new RouteDirectionStopKey(
               flat.getRouteTag(), flat.getDirectionTag(), flat.getStopTag());
@@ -257,7 +385,6 @@ public class NextBusToGtfsTripMatching {
 
           flattened.add(flat);
         }
-        _tripIndex++;
       }
     }
     return flattened;
@@ -280,47 +407,82 @@ public class NextBusToGtfsTripMatching {
     return serviceIdsByServiceClass;
   }
 
-  private Map<String, List<List<StopTime>>> computeTripStopTimesByServiceClass(
-      GtfsRelationalDao dao, Route gtfsRoute,
+  private Map<String, GtfsTripIndex> computeTripIndicesByServiceClass(
+      GtfsMatchingData gtfs, Route gtfsRoute,
       Map<String, List<AgencyAndId>> serviceIdsByServiceClass) {
 
-    Map<String, List<List<StopTime>>> tripStopTimesByServiceClass = new HashMap<String, List<List<StopTime>>>();
+    Map<String, GtfsTripIndex> tripIndicesByServiceClass = new HashMap<String, GtfsTripIndex>();
 
     Map<AgencyAndId, List<Trip>> tripsByServiceId = MappingLibrary.mapToValueList(
-        dao.getTripsForRoute(gtfsRoute), "serviceId");
+        gtfs.getDao().getTripsForRoute(gtfsRoute), "serviceId");
+
+    /**
+     * A service id can belong to more than one service class, so we cache the
+     * per-trip indices to only build them once.
+     */
+    Map<Trip, GtfsTrip> gtfsTripsByTrip = new HashMap<Trip, GtfsTrip>();
 
     for (Map.Entry<String, List<AgencyAndId>> entry : serviceIdsByServiceClass.entrySet()) {
       String serviceClass = entry.getKey();
       List<AgencyAndId> serviceIds = entry.getValue();
-      List<List<StopTime>> allStopTimes = new ArrayList<List<StopTime>>();
+      List<GtfsTrip> gtfsTrips = new ArrayList<GtfsTrip>();
       for (AgencyAndId serviceId : serviceIds) {
         List<Trip> trips = tripsByServiceId.get(serviceId);
         if (trips != null) {
           for (Trip trip : trips) {
-            List<StopTime> tripStopTimes = dao.getStopTimesForTrip(trip);
-            tripStopTimes = excludeUnspecifiedStopTimes(tripStopTimes);
-            if (!tripStopTimes.isEmpty()) {
-              allStopTimes.add(tripStopTimes);
+            GtfsTrip gtfsTrip = gtfsTripsByTrip.get(trip);
+            if (gtfsTrip == null && !gtfsTripsByTrip.containsKey(trip)) {
+              int tripIndex = gtfs.getTripIndex(trip);
+              if (tripIndex != -1) {
+                gtfsTrip = createGtfsTrip(gtfs, tripIndex);
+              }
+              gtfsTripsByTrip.put(trip, gtfsTrip);
+            }
+            if (gtfsTrip != null) {
+              gtfsTrips.add(gtfsTrip);
             }
           }
         }
       }
-      Collections.sort(allStopTimes, new StopTimeListComparator());
-      tripStopTimesByServiceClass.put(serviceClass, allStopTimes);
+      tripIndicesByServiceClass.put(serviceClass, new GtfsTripIndex(gtfsTrips));
     }
 
-    return tripStopTimesByServiceClass;
+    return tripIndicesByServiceClass;
   }
 
-  private List<StopTime> excludeUnspecifiedStopTimes(
-      List<StopTime> tripStopTimes) {
-    List<StopTime> specified = new ArrayList<StopTime>();
-    for (StopTime stopTime : tripStopTimes) {
-      if (stopTime.isArrivalTimeSet() && stopTime.isDepartureTimeSet()) {
-        specified.add(stopTime);
+  /**
+   * 
+   * @param gtfs
+   * @param tripIndex
+   * @return the trip, excluding stop times with unspecified times, or null if
+   *         no stop times remain
+   */
+  private GtfsTrip createGtfsTrip(GtfsMatchingData gtfs, int tripIndex) {
+    int from = gtfs.getStartOfTrip(tripIndex);
+    int to = gtfs.getEndOfTrip(tripIndex);
+    int n = 0;
+    for (int i = from; i < to; ++i) {
+      if (gtfs.isArrivalAndDepartureTimeSet(i)) {
+        n++;
+      }
+    }
+    if (n == 0) {
+      return null;
+    }
+    int[] stopTimeIndices = new int[n];
+    int[] times = new int[n];
+    String[] stopIds = new String[n];
+    int index = 0;
+    for (int i = from; i < to; ++i) {
+      if (gtfs.isArrivalAndDepartureTimeSet(i)) {
+        stopTimeIndices[index] = i;
+        times[index] = (gtfs.getArrivalTime(i) + gtfs.getDepartureTime(i)) / 2;
+        stopIds[index] = gtfs.getStop(i).getId().getId();
+        index++;
       }
     }
-    return specified;
+    return new GtfsTrip(tripIndex, gtfs.getTrip(tripIndex).getServiceId(),
+        stopTimeIndices, times, stopIds);
   }
 
   private List<AgencyAndId> getApplicableServiceIdsForServiceClass(
@@ -372,60 +534,33 @@ public class NextBusToGtfsTripMatching {
   private void fixTripGroupingsForBlock(List<FlatStopTime> stopTimesForBlock) {
     Collections.sort(stopTimesForBlock);
     String prevDirection = null;
+    int tripIndex = 0;
     for (FlatStopTime stopTime : stopTimesForBlock) {
       if (prevDirection == null
           || !prevDirection.equals(stopTime.getDirectionTag())) {
         prevDirection = stopTime.getDirectionTag();
-        _tripIndex++;
+        tripIndex = _tripIndex.getAndIncrement();
       }
-      stopTime.setTripIndex(_tripIndex);
+      stopTime.setTripIndex(tripIndex);
     }
   }
 
   private double computeStopTimeAlignmentScore(List<FlatStopTime> nbStopTimes,
-      List<StopTime> gtfsStopTimes) {
-
-    Map<String, StopTimes> gtfsStopIdToStopTimes = new HashMap<String, StopTimes>();
-    for (int index = 0; index < gtfsStopTimes.size(); index++) {
-      StopTime stopTime = gtfsStopTimes.get(index);
-      String stopId = stopTime.getStop().getId().getId();
-      StopTimes stopTimes = gtfsStopIdToStopTimes.get(stopId);
-      if (stopTimes == null) {
-        stopTimes = new StopTimes();
-        gtfsStopIdToStopTimes.put(stopId, stopTimes);
-      }
-      stopTimes.addStopTime(stopTime, index);
-    }
-
-    for (StopTimes stopTimes : gtfsStopIdToStopTimes.values()) {
-      stopTimes.pack();
-    }
-
-    Map<FlatStopTime, Integer> mapping = new HashMap<FlatStopTime, Integer>();
-
-    for (FlatStopTime nbStopTime : nbStopTimes) {
-      StopTimes stopTimes = gtfsStopIdToStopTimes.get(nbStopTime.getGtfsStopId());
-      if (stopTimes == null) {
-        mapping.put(nbStopTime, -1);
-      } else {
-        int bestIndex = stopTimes.computeBestStopTimeIndex(nbStopTime.getEpochTime() / 1000);
-        mapping.put(nbStopTime, bestIndex);
-      }
-    }
+      GtfsTrip gtfsTrip) {
 
     int lastIndex = -1;
     int score = 0;
     boolean allMisses = true;
 
-    for (Map.Entry<FlatStopTime, Integer> entry : mapping.entrySet()) {
-      FlatStopTime nbStopTime = entry.getKey();
-      int index = entry.getValue();
-      StopTime gtfsStopTime = null;
-      if (0 <= index && index < gtfsStopTimes.size()) {
-        gtfsStopTime = gtfsStopTimes.get(index);
-      }
+    /**
+     * The NextBus stop times are already sorted by time, so we check the order
+     * of the matched GTFS stop times in that same order.
+     */
+    for (FlatStopTime nbStopTime : nbStopTimes) {
+      int index = gtfsTrip.computeBestStopTimeIndex(
+          nbStopTime.getGtfsStopId(), nbStopTime.getEpochTime() / 1000);
 
-      if (gtfsStopTime == null) {
+      if (index < 0) {
         score += 15; // A miss is a 15 minute penalty
       } else {
         allMisses = false;
@@ -433,29 +568,113 @@ public class NextBusToGtfsTripMatching {
           score += 15; // Out of order is a 10 minute penalty
         }
         int delta = Math.abs(nbStopTime.getEpochTime() / 1000
-            - getTime(gtfsStopTime)) / 60;
+            - gtfsTrip.getTime(index)) / 60;
         score += delta;
         lastIndex = index;
       }
     }
 
     if (allMisses)
-      return 4 * 60 * 60;
+      return NO_MATCH_SCORE;
     return score;
   }
 
-  private static int getTime(StopTime stopTime) {
-    return (stopTime.getDepartureTime() + stopTime.getArrivalTime()) / 2;
+  /**
+   * The stop times of a GTFS trip, along with the indices we need to align
+   * NextBus stop times against them. Built once per trip and reused for every
+   * NextBus trip we score against it.
+   */
+  private static class GtfsTrip {
+
+    private final int tripIndex;
+
+    private final AgencyAndId serviceId;
+
+    /**
+     * Indices into {@link GtfsMatchingData} of the trip's stop times with
+     * specified arrival and departure times, in sequence order
+     */
+    private final int[] stopTimeIndices;
+
+    private final int[] times;
+
+    private final Map<String, StopTimes> stopTimesByStopId = new HashMap<String, StopTimes>();
+
+    public GtfsTrip(int tripIndex, AgencyAndId serviceId,
+        int[] stopTimeIndices, int[] times, String[] stopIds) {
+      this.tripIndex = tripIndex;
+      this.serviceId = serviceId;
+      this.stopTimeIndices = stopTimeIndices;
+      this.times = times;
+      Map<String, List<Integer>> indicesByStopId = new HashMap<String, List<Integer>>();
+      for (int index = 0; index < stopIds.length; index++) {
+        List<Integer> indices = indicesByStopId.get(stopIds[index]);
+        if (indices == null) {
+          indices = new ArrayList<Integer>();
+          indicesByStopId.put(stopIds[index], indices);
+        }
+        indices.add(index);
+      }
+      for (Map.Entry<String, List<Integer>> entry : indicesByStopId.entrySet()) {
+        stopTimesByStopId.put(entry.getKey(),
+            new StopTimes(times, entry.getValue()));
+      }
+    }
+
+    public int getTripIndex() {
+      return tripIndex;
+    }
+
+    public AgencyAndId getServiceId() {
+      return serviceId;
+    }
+
+    public int size() {
+      return times.length;
+    }
+
+    public int getStopTimeIndex(int index) {
+      return stopTimeIndices[index];
+    }
+
+    public int getTime(int index) {
+      return times[index];
+    }
+
+    public int getStartTime() {
+      return times[0];
+    }
+
+    public int getEndTime() {
+      return times[times.length - 1];
+    }
+
+    /**
+     * @return the index into the trip's stop times of the first visit to the
+     *         specified stop at or after the specified time, or -1 if there is
+     *         no such stop time
+     */
+    public int computeBestStopTimeIndex(String stopId, int time) {
+      StopTimes stopTimes = stopId != null ? stopTimesByStopId.get(stopId)
+          : null;
+      if (stopTimes == null) {
+        return -1;
+      }
+      return stopTimes.computeBestStopTimeIndex(time);
+    }
   }
 
   private static class StopTimes {
-    private List<StopTime> stopTimes = new ArrayList<StopTime>();
-    private List<Integer> indices = new ArrayList<Integer>();
-    private int[] times;
-
-    public void addStopTime(StopTime stopTime, int index) {
-      stopTimes.add(stopTime);
-      indices.add(index);
+    private final int[] indices;
+    private final int[] times;
+
+    public StopTimes(int[] tripTimes, List<Integer> indices) {
+      this.indices = new int[indices.size()];
+      this.times = new int[indices.size()];
+      for (int i = 0; i < indices.size(); ++i) {
+        this.indices[i] = indices.get(i);
+        this.times[i] = tripTimes[this.indices[i]];
+      }
     }
 
     public int computeBestStopTimeIndex(int time) {
@@ -463,18 +682,59 @@ public class NextBusToGtfsTripMatching {
       if (index < 0) {
         index = -(index + 1);
       }
-      if (index < 0 || index >= indices.size()) {
+      if (index < 0 || index >= indices.length) {
         return -1;
       }
-      return indices.get(index);
+      return indices[index];
+    }
+  }
+
+  /**
+   * The GTFS trips of a service class, sorted by start time so that we can
+   * find the trips that could possibly match a NextBus trip with a binary
+   * search.
+   */
+  private static class GtfsTripIndex {
+
+    private final List<GtfsTrip> trips;
+
+    private final int[] startTimes;
+
+    private int maxDuration = 0;
+
+    public GtfsTripIndex(List<GtfsTrip> trips) {
+      this.trips = new ArrayList<GtfsTrip>(trips);
+      Collections.sort(this.trips, new GtfsTripComparator());
+      this.startTimes = new int[this.trips.size()];
+      for (int i = 0; i < this.trips.size(); ++i) {
+        GtfsTrip trip = this.trips.get(i);
+        startTimes[i] = trip.getStartTime();
+        maxDuration = Math.max(maxDuration,
+            trip.getEndTime() - trip.getStartTime());
+      }
+    }
+
+    public GtfsTrip getTrip(int index) {
+      return trips.get(index);
     }
 
-    public void pack() {
-      times = new int[stopTimes.size()];
-      for (int i = 0; i < stopTimes.size(); ++i) {
-        StopTime stopTime = stopTimes.get(i);
-        times[i] = getTime(stopTime);
+    public int getMaxDuration() {
+      return maxDuration;
+    }
+
+    /**
+     * @return the index of the first trip that starts at or after the
+     *         specified time, or the number of trips if there is none
+     */
+    public int getFirstIndexStartingAtOrAfter(int time) {
+      int index = Arrays.binarySearch(startTimes, time);
+      if (index < 0) {
+        return -(index + 1);
+      }
+      while (index > 0 && startTimes[index - 1] == time) {
+        index--;
       }
+      return index;
     }
   }
 
@@ -489,14 +749,34 @@ public class NextBusToGtfsTripMatching {
     }
 
   }
-  private static class StopTimeListComparator implements
-      Comparator<List<StopTime>> {
+
+  /**
+   * The GTFS trips matched to a NextBus block for a service id.
+   */
+  private static class BlockMatch {
+
+    private final String routeId;
+
+    private final String blockId;
+
+    private final AgencyAndId serviceId;
+
+    private final List<GtfsTrip> trips;
+
+    public BlockMatch(String routeId, String blockId, AgencyAndId serviceId,
+        List<GtfsTrip> trips) {
+      this.routeId = routeId;
+      this.blockId = blockId;
+      this.serviceId = serviceId;
+      this.trips = trips;
+    }
+  }
+
+  private static class GtfsTripComparator implements Comparator<GtfsTrip> {
 
     @Override
-    public int compare(List<StopTime> o1, List<StopTime> o2) {
-      StopTime stopTime1 = o1.get(0);
-      StopTime stopTime2 = o2.get(0);
-      return stopTime1.getDepartureTime() - stopTime2.getDepartureTime();
+    public int compare(GtfsTrip o1, GtfsTrip o2) {
+      return o1.getStartTime() - o2.getStartTime();
     }
   }
 }
@@ -0,0 +1,68 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.nextbus.services;
+
+/**
+ * The stages of the processing pipeline reported to a {@link PipelineTracer}.
+ */
+public enum PipelineStage {
+
+  /**
+   * A single NextBus API request, until the whole response body has been
+   * received.
+   */
+  DOWNLOAD,
+
+  /**
+   * Parsing a NextBus API response.
+   */
+  PARSE,
+
+  /**
+   * Mapping the predictions for a route to GTFS ids.
+   */
+  MAP_TO_GTFS,
+
+  /**
+   * Turning the predictions for a route into GTFS-realtime entities.
+   */
+  PROCESS_PREDICTIONS,
+
+  /**
+   * Reading the GTFS feed before matching.
+   */
+  GTFS_READ,
+
+  /**
+   * Finding the GTFS stops near each NextBus stop.
+   */
+  POTENTIAL_STOP_MATCHING,
+
+  /**
+   * Matching NextBus routes to GTFS routes.
+   */
+  ROUTE_MATCHING,
+
+  /**
+   * Matching the stops of a single route.
+   */
+  STOP_MATCHING,
+
+  /**
+   * Matching the blocks of a single route.
+   */
+  TRIP_MATCHING
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.nextbus.services;
+
+import java.util.Iterator;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Brackets each stage of the processing pipeline so that an external profiler
+ * can attribute time to a logical unit of work, like the predictions download
+ * for a particular route. The default implementation does nothing.
+ * 
+ * An alternate implementation can be supplied on the classpath through the
+ * standard {@link ServiceLoader} mechanism, which is how the Java Flight
+ * Recorder events in the optional "jfr" build profile are installed.
+ */
+public class PipelineTracer {
+
+  private static final Logger _log = LoggerFactory.getLogger(PipelineTracer.class);
+
+  /**
+   * 
+   * @return the first {@link PipelineTracer} registered on the classpath, or
+   *         the default no-op tracer if there is none
+   */
+  public static PipelineTracer load() {
+    try {
+      Iterator<PipelineTracer> it = ServiceLoader.load(PipelineTracer.class).iterator();
+      if (it.hasNext()) {
+        PipelineTracer tracer = it.next();
+        _log.info("using pipeline tracer " + tracer.getClass().getName());
+        return tracer;
+      }
+    } catch (ServiceConfigurationError ex) {
+      _log.warn("error loading pipeline tracer", ex);
+    }
+    return new PipelineTracer();
+  }
+
+  /**
+   * 
+   * @param stage
+   * @return a token to pass to {@link #end(Object, String, long, int)} when
+   *         the stage completes
+   */
+  public Object begin(PipelineStage stage) {
+    return null;
+  }
+
+  /**
+   * 
+   * @param token the token returned by {@link #begin(PipelineStage)}
+   * @param routeTag the NextBus route tag the stage worked on, or null
+   * @param bytes the number of bytes transferred, or -1 if unknown
+   * @param count the number of elements produced by the stage
+   */
+  public void end(Object token, String routeTag, long bytes, int count) {
+
+  }
+}
@@ -0,0 +1,171 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.nextbus.services;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.onebusaway.gtfs_realtime.nextbus.model.CapturedDownload;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Answers NextBus API requests from a capture archive written by
+ * {@link DownloaderService} instead of the network.
+ * 
+ * Replay runs on its own clock, which starts at the time of the first captured
+ * download when the first request comes in and then advances at
+ * {@link #setSpeed(double)} times real time. Each request gets the most recent
+ * captured response for the same request as of the replay clock, or the
+ * earliest one if the clock hasn't reached it yet. Requests are matched on
+ * everything but the host and the vehicleLocations {@code t} parameter, which
+ * changes on every request. Once the clock passes the end of the archive, the
+ * last response for each request is served indefinitely.
+ * 
+ * Replay doesn't shift the timestamps inside the responses, so anything that
+ * compares prediction times against the wall clock sees them as they were when
+ * captured.
+ */
+public class ReplayDownloaderService extends DownloaderService {
+
+  private static final Logger _log = LoggerFactory.getLogger(ReplayDownloaderService.class);
+
+  private final DownloadArchiveReader _archive;
+
+  private final Map<String, List<CapturedDownload>> _downloadsByKey = new HashMap<String, List<CapturedDownload>>();
+
+  private final long _archiveStartTime;
+
+  private final long _archiveEndTime;
+
+  private double _speed = 1.0;
+
+  private long _replayStartTime = -1;
+
+  private boolean _reachedEnd = false;
+
+  public ReplayDownloaderService(File captureDirectory) throws IOException {
+    _archive = new DownloadArchiveReader(captureDirectory);
+    List<CapturedDownload> downloads = _archive.getDownloads();
+    if (downloads.isEmpty()) {
+      throw new IllegalStateException("capture archive is empty: "
+          + captureDirectory);
+    }
+    for (CapturedDownload download : downloads) {
+      String key = getKey(download.getUrl());
+      List<CapturedDownload> forKey = _downloadsByKey.get(key);
+      if (forKey == null) {
+        forKey = new ArrayList<CapturedDownload>();
+        _downloadsByKey.put(key, forKey);
+      }
+      forKey.add(download);
+    }
+    _archiveStartTime = downloads.get(0).getTimestamp();
+    _archiveEndTime = downloads.get(downloads.size() - 1).getTimestamp();
+  }
+
+  /**
+   * 
+   * @param speed how many times faster than real time to play back the archive
+   */
+  public void setSpeed(double speed) {
+    _speed = speed;
+  }
+
+  public double getSpeed() {
+    return _speed;
+  }
+
+  /**
+   * 
+   * @return the current time on the replay clock
+   */
+  public synchronized long getReplayTime() {
+    long now = System.currentTimeMillis();
+    if (_replayStartTime == -1) {
+      _replayStartTime = now;
+    }
+    return _archiveStartTime + (long) ((now - _replayStartTime) * _speed);
+  }
+
+  @Override
+  public synchronized InputStream openUrl(String uri) throws IOException {
+    long replayTime = getReplayTime();
+    if (replayTime > _archiveEndTime && !_reachedEnd) {
+      _log.info("replay reached the end of the capture archive");
+      _reachedEnd = true;
+    }
+    List<CapturedDownload> downloads = _downloadsByKey.get(getKey(uri));
+    if (downloads == null) {
+      throw new IOException("no captured response for " + uri);
+    }
+    CapturedDownload download = getMostRecent(downloads, replayTime);
+    InputStream in = new ByteArrayInputStream(_archive.readContent(download));
+    String contentEncoding = download.getContentEncoding();
+    if (contentEncoding != null && contentEncoding.equalsIgnoreCase("gzip")) {
+      in = new GZIPInputStream(in);
+    }
+    return in;
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  /**
+   * 
+   * @param downloads sorted by timestamp
+   * @param time
+   * @return the last download at or before the specified time, or the first
+   *         download if they are all after it
+   */
+  private static CapturedDownload getMostRecent(
+      List<CapturedDownload> downloads, long time) {
+    int low = 0;
+    int high = downloads.size() - 1;
+    while (low < high) {
+      int mid = (low + high + 1) >>> 1;
+      if (downloads.get(mid).getTimestamp() <= time) {
+        low = mid;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return downloads.get(low);
+  }
+
+  /**
+   * 
+   * @param url
+   * @return the url without its scheme and host, or the vehicleLocations
+   *         {@code t} parameter
+   */
+  private static String getKey(String url) {
+    int index = url.indexOf("://");
+    if (index != -1) {
+      int pathIndex = url.indexOf('/', index + 3);
+      url = pathIndex != -1 ? url.substring(pathIndex) : "";
+    }
+    return url.replaceAll("&t=[^&]*", "");
+  }
+}
@@ -20,6 +20,7 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ScheduledExecutorService;
@@ -34,6 +35,7 @@ import javax.inject.Singleton;
 import org.onebusaway.collections.Counter;
 import org.onebusaway.gtfs_realtime.nextbus.model.RouteStopCoverage;
 import org.onebusaway.gtfs_realtime.nextbus.model.api.NBDirection;
+import org.onebusaway.gtfs_realtime.nextbus.model.api.NBPredictions;
 import org.onebusaway.gtfs_realtime.nextbus.model.api.NBRoute;
 import org.onebusaway.gtfs_realtime.nextbus.model.api.NBStop;
 import org.slf4j.Logger;
@@ -61,14 +63,24 @@ public class RouteStopCoverageService {
 
   private NextBusToGtfsService _matchingService;
 
+  private AdaptiveStopSelection _adaptiveStopSelection;
+
   private ScheduledExecutorService _executor;
 
+  private MetricsService _metricsService = new MetricsService();
+
+  private StartupProfiler _startupProfiler = new StartupProfiler();
+
   private volatile List<RouteStopCoverage> _routeStopCoverage = Collections.emptyList();
 
   private final RefreshTask _refreshTask = new RefreshTask();
 
   private ScheduledFuture<?> _refreshTaskInstance;
 
+  private boolean _rotatingStopCoverage = false;
+
+  private boolean _adaptiveStopCoverage = false;
+
   @Inject
   public void setNextBusApiService(NextBusApiService nextBusApiService) {
     _nextBusApiService = nextBusApiService;
@@ -79,11 +91,78 @@ public class RouteStopCoverageService {
     _matchingService = matchingService;
   }
 
+  @Inject
+  public void setAdaptiveStopSelection(
+      AdaptiveStopSelection adaptiveStopSelection) {
+    _adaptiveStopSelection = adaptiveStopSelection;
+  }
+
   @Inject
   public void setExecutor(ScheduledExecutorService executor) {
     _executor = executor;
   }
 
+  @Inject
+  public void setMetricsService(MetricsService metricsService) {
+    _metricsService = metricsService;
+  }
+
+  @Inject
+  public void setStartupProfiler(StartupProfiler startupProfiler) {
+    _startupProfiler = startupProfiler;
+  }
+
+  /**
+   * When enabled, the stops of each route not included in the anchor set are
+   * split into disjoint slices that are polled round-robin, such that every
+   * stop receives fresh predictions within a bounded number of cycles at the
+   * same per-cycle request cost as the fixed stop selection.
+   * 
+   * @param rotatingStopCoverage
+   */
+  public void setRotatingStopCoverage(boolean rotatingStopCoverage) {
+    _rotatingStopCoverage = rotatingStopCoverage;
+  }
+
+  /**
+   * When enabled, the non-anchor stops polled each cycle are picked by
+   * {@link AdaptiveStopSelection} based on how informative their predictions
+   * have been, rather than strictly round-robin.
+   * 
+   * @param adaptiveStopCoverage
+   */
+  public void setAdaptiveStopCoverage(boolean adaptiveStopCoverage) {
+    _adaptiveStopCoverage = adaptiveStopCoverage;
+  }
+
+  /**
+   * 
+   * @param coverage
+   * @param cycle the index of the current processing cycle
+   * @return the stops we should request predictions for in the current cycle
+   */
+  public Set<String> getStopTagsForCycle(RouteStopCoverage coverage, int cycle) {
+    if (_adaptiveStopCoverage) {
+      return _adaptiveStopSelection.selectStopTags(coverage, cycle);
+    }
+    return coverage.getStopTagsForCycle(cycle);
+  }
+
+  /**
+   * Feed the predictions just downloaded for a route back into the stop
+   * selection.
+   * 
+   * @param routeTag
+   * @param predictions
+   * @param cycle the index of the current processing cycle
+   */
+  public void notePredictionsForCycle(String routeTag,
+      List<NBPredictions> predictions, int cycle) {
+    if (_adaptiveStopCoverage) {
+      _adaptiveStopSelection.updateStopStatistics(routeTag, predictions, cycle);
+    }
+  }
+
   public synchronized List<RouteStopCoverage> getRouteStopCoverage() {
     while (_routeStopCoverage.isEmpty()) {
       try {
@@ -130,13 +209,52 @@ public class RouteStopCoverageService {
         TimeUnit.MILLISECONDS);
   }
 
-  private synchronized void refreshRouteStopCoverage(boolean useCacheIfAvailable)
+  /**
+   * Downloads the route configurations and rebuilds the coverage model and
+   * GTFS matching without holding the lock, so that readers keep using the
+   * current coverage until the new one is published.
+   */
+  private void refreshRouteStopCoverage(boolean useCacheIfAvailable)
       throws IOException, ClassNotFoundException {
     _log.info("Rebuilding route-stop coverage model");
-    List<NBRoute> routeConfigurations = readRouteConfigurations(useCacheIfAvailable);
-    _routeStopCoverage = getRouteStopCoverageForRouteConfigurations(routeConfigurations);
+    long t0 = System.currentTimeMillis();
+    List<NBRoute> routeConfigurations;
+    Object phase = _startupProfiler.beginPhase("routeConfig");
+    try {
+      routeConfigurations = readRouteConfigurations(useCacheIfAvailable);
+    } finally {
+      _startupProfiler.endPhase(phase);
+    }
+    List<RouteStopCoverage> coverage;
+    phase = _startupProfiler.beginPhase("stopCoverage");
+    try {
+      coverage = getRouteStopCoverageForRouteConfigurations(routeConfigurations);
+    } finally {
+      _startupProfiler.endPhase(phase);
+    }
     _matchingService.matchToGtfs(routeConfigurations);
-    notifyAll();
+    synchronized (this) {
+      _routeStopCoverage = coverage;
+      notifyAll();
+    }
+    updateCoverageMetrics(routeConfigurations, coverage, t0);
+  }
+
+  private void updateCoverageMetrics(List<NBRoute> routeConfigurations,
+      List<RouteStopCoverage> coverage, long startTime) {
+    int routeStops = 0;
+    for (NBRoute route : routeConfigurations) {
+      routeStops += route.getStops().size();
+    }
+    int coveredStops = 0;
+    for (RouteStopCoverage routeStopCoverage : coverage) {
+      coveredStops += routeStopCoverage.getStopTags().size();
+    }
+    _metricsService.set(MetricsService.ROUTES, routeConfigurations.size());
+    _metricsService.set(MetricsService.ROUTE_STOPS, routeStops);
+    _metricsService.set(MetricsService.COVERED_STOPS, coveredStops);
+    _metricsService.set(MetricsService.COVERAGE_REFRESH_TIME,
+        (System.currentTimeMillis() - startTime) / 1000.0);
   }
 
   private List<NBRoute> readRouteConfigurations(boolean useCacheIfAvailable)
@@ -221,6 +339,7 @@ public class RouteStopCoverageService {
       NBStop lastStop = stops.get(stops.size() - 1);
       stopTags.add(lastStop.getTag());
     }
+    Set<String> anchorStopTags = new HashSet<String>(stopTags);
     int segmentCount = getSegmentCountForRoute(route);
     int maxCount = (int) (segmentCount * downsampleRatio);
 
@@ -240,7 +359,53 @@ public class RouteStopCoverageService {
       String max = counter.getMax();
       stopTags.add(max);
     }
-    return new RouteStopCoverage(route.getTag(), stopTags);
+    if (!_rotatingStopCoverage && !_adaptiveStopCoverage) {
+      return new RouteStopCoverage(route.getTag(), stopTags);
+    }
+    List<Set<String>> slices = computeStopTagSlicesForRoute(route,
+        anchorStopTags, stopTags.size() - anchorStopTags.size());
+    return new RouteStopCoverage(route.getTag(), stopTags, anchorStopTags,
+        slices);
+  }
+
+  /**
+   * Splits the non-anchor stops of a route into disjoint slices of at most
+   * sliceSize stops. Stops are dealt out to the slices in route order, such
+   * that each slice is spread out along the length of the route, much like the
+   * fixed stop selection.
+   * 
+   * @param route
+   * @param anchorStopTags stops that are polled every cycle and excluded from
+   *          the slices
+   * @param sliceSize the number of non-anchor stops we can afford to poll per
+   *          cycle
+   * @return
+   */
+  private List<Set<String>> computeStopTagSlicesForRoute(NBRoute route,
+      Set<String> anchorStopTags, int sliceSize) {
+    Set<String> remainingStopTags = new LinkedHashSet<String>();
+    for (NBDirection direction : route.getDirections()) {
+      for (NBStop stop : direction.getStops()) {
+        if (!anchorStopTags.contains(stop.getTag())) {
+          remainingStopTags.add(stop.getTag());
+        }
+      }
+    }
+    if (remainingStopTags.isEmpty()) {
+      return Collections.emptyList();
+    }
+    sliceSize = Math.max(1, sliceSize);
+    int sliceCount = (remainingStopTags.size() + sliceSize - 1) / sliceSize;
+    List<Set<String>> slices = new ArrayList<Set<String>>();
+    for (int i = 0; i < sliceCount; ++i) {
+      slices.add(new HashSet<String>());
+    }
+    int index = 0;
+    for (String stopTag : remainingStopTags) {
+      slices.get(index % sliceCount).add(stopTag);
+      index++;
+    }
+    return slices;
   }
 
   /**
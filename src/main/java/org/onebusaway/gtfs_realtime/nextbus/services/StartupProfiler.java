@@ -0,0 +1,215 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.nextbus.services;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import javax.inject.Singleton;
+
+import org.onebusaway.gtfs_realtime.nextbus.model.StartupPhase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records wall time, process CPU time and peak heap usage for each phase of
+ * startup, from {@link #start()} until {@link #finish()}, and logs a summary
+ * when startup is done. Phases reported outside of that window, like a later
+ * GTFS reload, are ignored, as is everything when the profiler isn't started.
+ * 
+ * Peak heap is the sum of the peaks of each heap memory pool, which can
+ * overstate the true peak a little, since the pools don't all peak at once.
+ */
+@Singleton
+public class StartupProfiler {
+
+  private static final Logger _log = LoggerFactory.getLogger(StartupProfiler.class);
+
+  private volatile boolean _recording = false;
+
+  private long _startTime;
+
+  private long _startCpuTime;
+
+  private long _endTime;
+
+  private long _endCpuTime;
+
+  private final List<StartupPhase> _phases = new ArrayList<StartupPhase>();
+
+  public synchronized void start() {
+    _phases.clear();
+    _startTime = System.currentTimeMillis();
+    _startCpuTime = getProcessCpuTime();
+    resetPeakHeap();
+    _recording = true;
+  }
+
+  /**
+   * Stops recording and logs a summary of each phase.
+   */
+  public synchronized void finish() {
+    if (!_recording) {
+      return;
+    }
+    _recording = false;
+    _endTime = System.currentTimeMillis();
+    _endCpuTime = getProcessCpuTime();
+    for (String line : getReport()) {
+      _log.info(line);
+    }
+  }
+
+  /**
+   * 
+   * @param name
+   * @return a token to pass to {@link #endPhase(Object)}, or null if we aren't
+   *         recording
+   */
+  public Object beginPhase(String name) {
+    if (!_recording) {
+      return null;
+    }
+    resetPeakHeap();
+    return new PhaseStart(name, System.currentTimeMillis(),
+        getProcessCpuTime());
+  }
+
+  public void endPhase(Object token) {
+    if (token == null) {
+      return;
+    }
+    PhaseStart start = (PhaseStart) token;
+    long cpuTime = getProcessCpuTime();
+    StartupPhase phase = new StartupPhase(start.name,
+        System.currentTimeMillis() - start.time, cpuTime < 0 ? -1
+            : (cpuTime - start.cpuTime) / 1000000, getPeakHeap());
+    synchronized (this) {
+      if (_recording) {
+        _phases.add(phase);
+      }
+    }
+  }
+
+  public synchronized List<StartupPhase> getPhases() {
+    return Collections.unmodifiableList(new ArrayList<StartupPhase>(_phases));
+  }
+
+  /**
+   * 
+   * @return the total wall time, in milliseconds, from {@link #start()} to
+   *         {@link #finish()}
+   */
+  public synchronized long getTotalWallTime() {
+    return _endTime - _startTime;
+  }
+
+  /**
+   * 
+   * @return the total process CPU time, in milliseconds, from {@link #start()}
+   *         to {@link #finish()}, or -1 if the JVM doesn't tell us
+   */
+  public synchronized long getTotalCpuTime() {
+    if (_startCpuTime < 0) {
+      return -1;
+    }
+    return (_endCpuTime - _startCpuTime) / 1000000;
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  private List<String> getReport() {
+    List<String> lines = new ArrayList<String>();
+    long phaseWallTime = 0;
+    long phaseCpuTime = 0;
+    for (StartupPhase phase : _phases) {
+      lines.add(formatPhase(phase.getName(), phase.getWallTime(),
+          phase.getCpuTime(), phase.getPeakHeap()));
+      phaseWallTime += phase.getWallTime();
+      phaseCpuTime += phase.getCpuTime();
+    }
+    long totalCpuTime = getTotalCpuTime();
+    lines.add(formatPhase("other", getTotalWallTime() - phaseWallTime,
+        totalCpuTime < 0 ? -1 : totalCpuTime - phaseCpuTime, -1));
+    lines.add(formatPhase("total", getTotalWallTime(), totalCpuTime, -1));
+    return lines;
+  }
+
+  private static String formatPhase(String name, long wallTime, long cpuTime,
+      long peakHeap) {
+    return "startup phase=" + name + " wall=" + formatSeconds(wallTime)
+        + " cpu=" + (cpuTime < 0 ? "-" : formatSeconds(cpuTime))
+        + " peakHeap=" + (peakHeap < 0 ? "-" : (peakHeap >> 20) + "M");
+  }
+
+  private static String formatSeconds(long millis) {
+    return String.format(Locale.US, "%.3fs", millis / 1000.0);
+  }
+
+  /**
+   * 
+   * @return the CPU time used by the process, in nanoseconds, or -1 if the JVM
+   *         doesn't tell us
+   */
+  private static long getProcessCpuTime() {
+    OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    if (os instanceof com.sun.management.OperatingSystemMXBean) {
+      return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+    }
+    return -1;
+  }
+
+  private static void resetPeakHeap() {
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+        pool.resetPeakUsage();
+      }
+    }
+  }
+
+  private static long getPeakHeap() {
+    long peak = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+        peak += pool.getPeakUsage().getUsed();
+      }
+    }
+    return peak;
+  }
+
+  private static class PhaseStart {
+
+    private final String name;
+
+    private final long time;
+
+    private final long cpuTime;
+
+    public PhaseStart(String name, long time, long cpuTime) {
+      this.name = name;
+      this.time = time;
+      this.cpuTime = cpuTime;
+    }
+  }
+}
@@ -0,0 +1,254 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.nextbus.services;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeIncrementalUpdate;
+import org.onebusaway.gtfs_realtime.nextbus.model.FlatPrediction;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.TripDescriptor;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeEvent;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeUpdate;
+import com.google.transit.realtime.GtfsRealtime.VehicleDescriptor;
+
+/**
+ * Builds one {@link TripUpdate} feed entity for each vehicle and trip in a set
+ * of flattened predictions. The predictions are sorted once by vehicle, trip
+ * and time and the entities are built from the resulting runs. Message builders
+ * are reused from one entity to the next, and trip and vehicle descriptors are
+ * kept as canonical instances from one cycle to the next.
+ * 
+ * Instances are not thread-safe.
+ */
+public class TripUpdateFactory {
+
+  private static final VehicleTripTimeComparator VEHICLE_TRIP_TIME_COMPARATOR = new VehicleTripTimeComparator();
+
+  /**
+   * Key used in place of a null route or trip id in the descriptor cache.
+   */
+  private static final String NO_ID = "";
+
+  /**
+   * The descriptor caches are cleared once they hold more than this many
+   * entries, so ids that are no longer in service don't accumulate.
+   */
+  private int _maxCachedDescriptors = 20000;
+
+  private Map<String, VehicleDescriptor> _vehicleDescriptors = new HashMap<String, VehicleDescriptor>();
+
+  private Map<String, Map<String, TripDescriptor>> _tripDescriptors = new HashMap<String, Map<String, TripDescriptor>>();
+
+  private int _tripDescriptorCount = 0;
+
+  private final FeedEntity.Builder _feedEntity = FeedEntity.newBuilder();
+
+  private final TripUpdate.Builder _tripUpdate = TripUpdate.newBuilder();
+
+  private final StopTimeUpdate.Builder _stopTimeUpdate = StopTimeUpdate.newBuilder();
+
+  private final StopTimeEvent.Builder _stopTimeEvent = StopTimeEvent.newBuilder();
+
+  private final StringBuilder _feedEntityId = new StringBuilder();
+
+  private FlatPrediction[] _sorted = new FlatPrediction[0];
+
+  public void setMaxCachedDescriptors(int maxCachedDescriptors) {
+    _maxCachedDescriptors = maxCachedDescriptors;
+  }
+
+  /**
+   * Adds a trip update entity to the specified update for each distinct vehicle
+   * and trip id in the predictions. Predictions without a vehicle are ignored.
+   * 
+   * @param predictions
+   * @param update
+   * @return the number of trip update entities added
+   */
+  public int addTripUpdates(List<FlatPrediction> predictions,
+      GtfsRealtimeIncrementalUpdate update) {
+
+    int n = getPredictionsSortedByVehicleAndTrip(predictions);
+    FlatPrediction[] sorted = _sorted;
+    int entityCount = 0;
+
+    int from = 0;
+    while (from < n) {
+      FlatPrediction first = sorted[from];
+      String vehicleId = first.getVehicle();
+      String tripId = first.getTripTag();
+      int to = from + 1;
+      while (to < n && vehicleId.equals(sorted[to].getVehicle())
+          && equals(tripId, sorted[to].getTripTag())) {
+        to++;
+      }
+
+      _tripUpdate.clear();
+      _tripUpdate.setTrip(getTripDescriptor(first.getRouteTag(), tripId));
+      _tripUpdate.setVehicle(getVehicleDescriptor(vehicleId));
+
+      for (int i = from; i < to; ++i) {
+        FlatPrediction prediction = sorted[i];
+        _stopTimeEvent.setTime(prediction.getEpochTime() / 1000);
+        _stopTimeUpdate.clear();
+        _stopTimeUpdate.setStopId(prediction.getStopTag());
+        _stopTimeUpdate.setDeparture(_stopTimeEvent);
+        _tripUpdate.addStopTimeUpdate(_stopTimeUpdate);
+      }
+
+      _feedEntity.clear();
+      _feedEntity.setId(getFeedEntityId(vehicleId, tripId));
+      _feedEntity.setTripUpdate(_tripUpdate);
+      update.addUpdatedEntity(_feedEntity.build());
+      entityCount++;
+
+      from = to;
+    }
+
+    /**
+     * Don't hold on to the predictions between cycles
+     */
+    Arrays.fill(sorted, 0, n, null);
+    return entityCount;
+  }
+
+  /****
+   * Private Methods
+   ****/
+
+  /**
+   * Copies the predictions that have a vehicle into {@link #_sorted}, growing
+   * it as needed, and sorts them by vehicle, then trip, then time. The sort is
+   * stable, so predictions with the same time keep their original order.
+   * 
+   * @param predictions
+   * @return the number of sorted predictions
+   */
+  private int getPredictionsSortedByVehicleAndTrip(
+      List<FlatPrediction> predictions) {
+    if (_sorted.length < predictions.size()) {
+      _sorted = new FlatPrediction[predictions.size()];
+    }
+    int n = 0;
+    for (int i = 0; i < predictions.size(); ++i) {
+      FlatPrediction prediction = predictions.get(i);
+      if (prediction.getVehicle() != null) {
+        _sorted[n++] = prediction;
+      }
+    }
+    Arrays.sort(_sorted, 0, n, VEHICLE_TRIP_TIME_COMPARATOR);
+    return n;
+  }
+
+  private VehicleDescriptor getVehicleDescriptor(String vehicleId) {
+    VehicleDescriptor descriptor = _vehicleDescriptors.get(vehicleId);
+    if (descriptor == null) {
+      if (_vehicleDescriptors.size() >= _maxCachedDescriptors) {
+        _vehicleDescriptors.clear();
+      }
+      descriptor = VehicleDescriptor.newBuilder().setId(vehicleId).build();
+      _vehicleDescriptors.put(vehicleId, descriptor);
+    }
+    return descriptor;
+  }
+
+  private TripDescriptor getTripDescriptor(String routeId, String tripId) {
+    String routeKey = routeId == null ? NO_ID : routeId;
+    String tripKey = tripId == null ? NO_ID : tripId;
+    Map<String, TripDescriptor> descriptorsForRoute = _tripDescriptors.get(routeKey);
+    if (descriptorsForRoute == null) {
+      descriptorsForRoute = new HashMap<String, TripDescriptor>();
+      _tripDescriptors.put(routeKey, descriptorsForRoute);
+    }
+    TripDescriptor descriptor = descriptorsForRoute.get(tripKey);
+    if (descriptor == null) {
+      if (_tripDescriptorCount >= _maxCachedDescriptors) {
+        _tripDescriptors.clear();
+        _tripDescriptorCount = 0;
+        descriptorsForRoute = new HashMap<String, TripDescriptor>();
+        _tripDescriptors.put(routeKey, descriptorsForRoute);
+      }
+      TripDescriptor.Builder builder = TripDescriptor.newBuilder();
+      if (routeId != null) {
+        builder.setRouteId(routeId);
+      }
+      if (tripId != null) {
+        builder.setTripId(tripId);
+      }
+      descriptor = builder.build();
+      descriptorsForRoute.put(tripKey, descriptor);
+      _tripDescriptorCount++;
+    }
+    return descriptor;
+  }
+
+  /**
+   * Same format as {@link TripUpdateId#getFeedEntityId()}.
+   */
+  private String getFeedEntityId(String vehicleId, String tripId) {
+    StringBuilder b = _feedEntityId;
+    b.setLength(0);
+    b.append("v=");
+    b.append(vehicleId);
+    if (tripId != null) {
+      b.append(",t=");
+      b.append(tripId);
+    }
+    return b.toString();
+  }
+
+  private static boolean equals(String a, String b) {
+    return a == null ? b == null : a.equals(b);
+  }
+
+  /**
+   * Orders predictions by vehicle, then trip (predictions without a trip
+   * first), then time.
+   */
+  private static class VehicleTripTimeComparator implements
+      Comparator<FlatPrediction> {
+
+    @Override
+    public int compare(FlatPrediction o1, FlatPrediction o2) {
+      int c = o1.getVehicle().compareTo(o2.getVehicle());
+      if (c != 0) {
+        return c;
+      }
+      String t1 = o1.getTripTag();
+      String t2 = o2.getTripTag();
+      if (t1 != t2) {
+        if (t1 == null) {
+          return -1;
+        }
+        if (t2 == null) {
+          return 1;
+        }
+        c = t1.compareTo(t2);
+        if (c != 0) {
+          return c;
+        }
+      }
+      return o1.compareTo(o2);
+    }
+  }
+}